@@ -0,0 +1,381 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ChannelSplitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+/** A headless analysis job: the parameters of the GICA dialog, given
+ *  as 'key=value' pairs, applied to an image file. Used by the watch 
+ *  folder and the daemon. Keys (defaults as in the dialog):
+ *  <pre>
+ *  thr=2		threshold factor
+ *  stats=exact		threshold statistics (exact, sampled, refined)
+ *  local=0		local threshold radius (0: global threshold)
+ *  estimator=montecarlo	(montecarlo, adaptive, analytic)
+ *  sample=0.25		sample factor
+ *  nstat=20		stat. #N
+ *  bs=20		error est. N
+ *  bsmax=1000		max. error est. N (adaptive)
+ *  bstarget=0.005	target precision (adaptive)
+ *  bsrel=0.01		target rel. precision (adaptive)
+ *  perm=0		permutation test runs (0: off)
+ *  permmode=shift	permutation (shift, blocks)
+ *  permch=0		channel that is permuted (0-based)
+ *  permblock=0		block size / min. shift (0: super-pixel size)
+ *  coloc=false		also Pearson, Manders M1/M2, overlap
+ *  bin=12		width/height super-pixel (topology)
+ *  nstattopo=20	stat. #N (topology)
+ *  stride=1		output stride (topology), 1 = dense
+ *  interp=bilinear	interpolation for stride &gt; 1 (bilinear, bicubic)
+ *  channels=1,2	channels to use (default: all)
+ *  z=1, t=1		slice and frame (hyperstacks)
+ *  roi=x,y,w,h		rectangular ROI inside the image, may be repeated 
+ *  		(default: full image)
+ *  labels=file.tif	label image, each label is a ROI
+ *  topology=false	also compute the topology
+ *  mapped=false	read uncompressed TIFFs memory-mapped (MappedTiff),
+ *  		without ImageProcessors (others, and local thresholds:
+ *  		opened by ImageJ). Their topology is written row 
+ *  		by row to the output file, see run(File,File)
+ *  </pre> */
+class BatchJob {
+
+    float thrFac = 2;
+    ThresholdStats.Mode stats = ThresholdStats.Mode.EXACT;
+    int localRadius = 0;
+    final GammaParams.Builder params;
+    int [] channels = null;
+    int z = 1, t = 1;
+    boolean topology = false;
+    boolean mapped = false;
+    final List<int []> rois = new ArrayList<int []>();	// x,y,w,h
+    String labels = null;
+
+    /** The result of a job */
+    static class Result {
+	String name;
+	GammaBase gn;		// (closed after the job if a GammaMosaic)
+	List<GICAmeasurement> meas = new ArrayList<GICAmeasurement>();
+	File topologyFile;	// where the topology was written, if at all
+	long nsOpen, nsGamma, nsMeasure, nsTopo;
+
+	/** The measurements as tab-separated table */
+	String toTsv() {
+	    StringBuilder ret = new StringBuilder( GICAmeasurement.tsvHeader() );
+	    ret.append("\n");
+	    for ( GICAmeasurement gm : meas )
+		ret.append( gm.tsvRow() ).append("\n");
+	    return ret.toString();
+	}
+    }
+
+    /** A job with the default parameters */
+    BatchJob() {
+	this( GammaParams.DEFAULT );
+    }
+
+    /** A job starting from parameters 'p' */
+    BatchJob( GammaParams p ) {
+	params = p.toBuilder();
+    }
+
+    /** An independent copy of this job */
+    BatchJob copy() {
+	BatchJob ret = new BatchJob( params.build() );
+	ret.thrFac = thrFac; ret.stats = stats; ret.localRadius = localRadius;
+	ret.channels = ( channels == null )?( null ):( channels.clone() );
+	ret.z = z; ret.t = t; 
+	ret.topology = topology; ret.mapped = mapped;
+	ret.rois.addAll( rois );
+	ret.labels = labels;
+	return ret;
+    }
+
+    /** Create a job from 'key=value' parameters */
+    static BatchJob parse( String [] args, int from ) {
+	BatchJob ret = new BatchJob();
+	for (int i=from; i<args.length; i++) {
+	    final int p = args[i].indexOf('=');
+	    if ( p < 1 )
+		throw new IllegalArgumentException("Not a key=value pair: "+args[i]);
+	    ret.set( args[i].substring(0,p).trim(), args[i].substring(p+1).trim() );
+	}
+	return ret;
+    }
+
+    /** Set a parameter */
+    void set( String key, String val ) {
+	key = key.toLowerCase();
+	if ( key.equals("thr") )		thrFac = Float.parseFloat( val );
+	else if ( key.equals("mapped") )	mapped = Boolean.parseBoolean( val );
+	else if ( key.equals("local") )		localRadius = Integer.parseInt( val );
+	else if ( key.equals("stats") )		stats = parseStats( val );
+	else if ( key.equals("estimator") )	params.estimator( parseEstimator( val ));
+	else if ( key.equals("sample") )	params.sampleFactor( Double.parseDouble( val ));
+	else if ( key.equals("nstat") )		params.nStatCount( Integer.parseInt( val ));
+	else if ( key.equals("bs") )		params.bsCount( Integer.parseInt( val ));
+	else if ( key.equals("bsmax") )		params.bsMax( Integer.parseInt( val ));
+	else if ( key.equals("bstarget") )	params.bsTargetErr( Double.parseDouble( val ));
+	else if ( key.equals("bsrel") )		params.bsTargetRel( Double.parseDouble( val ));
+	else if ( key.equals("perm") )		params.permutations( Integer.parseInt( val ));
+	else if ( key.equals("permmode") )	params.permMode( 
+	    val.toLowerCase().startsWith("block")?(PermutationTest.Mode.BLOCKS):
+	    (PermutationTest.Mode.SHIFT));
+	else if ( key.equals("permch") )	params.permChannel( Integer.parseInt( val ));
+	else if ( key.equals("permblock") )	params.permBlock( Integer.parseInt( val ));
+	else if ( key.equals("coloc") )		params.colocMetrics( Boolean.parseBoolean( val ));
+	else if ( key.equals("bin") )		params.binSize( Integer.parseInt( val ));
+	else if ( key.equals("nstattopo") )	params.secSize( Integer.parseInt( val ));
+	else if ( key.equals("stride") )	params.stride( Integer.parseInt( val ));
+	else if ( key.equals("interp") )	params.interpolation( parseInterpolation( val ));
+	else if ( key.equals("z") )		z = Integer.parseInt( val );
+	else if ( key.equals("t") )		t = Integer.parseInt( val );
+	else if ( key.equals("topology") )	topology = Boolean.parseBoolean( val );
+	else if ( key.equals("labels") )	labels = val;
+	else if ( key.equals("channels") ) {
+	    String [] s = val.split(",");
+	    channels = new int[ s.length ];
+	    for (int i=0; i<s.length; i++) 
+		channels[i] = Integer.parseInt( s[i].trim() );
+	}
+	else if ( key.equals("roi") ) {
+	    for ( String r : val.split(";") ) {
+		String [] s = r.split(",");
+		if ( s.length != 4 )
+		    throw new IllegalArgumentException("ROI has to be x,y,w,h: "+r);
+		rois.add( new int [] { Integer.parseInt( s[0].trim() ),
+		    Integer.parseInt( s[1].trim() ), Integer.parseInt( s[2].trim() ),
+		    Integer.parseInt( s[3].trim() ) });
+	    }
+	}
+	else 
+	    throw new IllegalArgumentException("Unknown parameter: "+key);
+    }
+
+    /** Parse the estimator, by name or label */
+    static GammaNorm.Estimator parseEstimator( String val ) {
+	for ( GammaNorm.Estimator e : GammaNorm.Estimator.values() ) 
+	    if (( e.name().equalsIgnoreCase( val.replace(" ","") ) )||
+		( e.label.equalsIgnoreCase( val ) ))
+		return e;
+	throw new IllegalArgumentException("Unknown estimator: "+val);
+    }
+
+    /** Threshold statistics mode from its name or label */
+    static ThresholdStats.Mode parseStats( String val ) {
+	for ( ThresholdStats.Mode m : ThresholdStats.Mode.values() ) 
+	    if (( m.name().equalsIgnoreCase( val.trim() ))||( m.label.equalsIgnoreCase( val.trim() )))
+		return m;
+	throw new IllegalArgumentException("Unknown threshold statistics: "+val);
+    }
+
+    /** Interpolation from its name or label */
+    static GammaNorm.Interpolation parseInterpolation( String val ) {
+	for ( GammaNorm.Interpolation m : GammaNorm.Interpolation.values() ) 
+	    if ( m.label.equalsIgnoreCase( val.trim() ) )
+		return m;
+	throw new IllegalArgumentException("Unknown interpolation: "+val);
+    }
+
+    /** Create the gamma norm for an image (selected channels) */
+    GammaNorm gammaNorm( ImagePlus imp ) {
+	
+	final int width = imp.getWidth(), height = imp.getHeight();
+	ImageStack is = imp.getStack();
+	
+	// RGB: channels into stack
+	if ( imp.getType() == ImagePlus.COLOR_RGB ) {
+	    ImageStack [] rgbSt = ChannelSplitter.splitRGB( is, true );
+	    is = new ImageStack( width, height );
+	    for ( ImageStack i : rgbSt )
+		is.addSlice( i.getProcessor(1) );
+	    imp = new ImagePlus( imp.getTitle(), is );
+	}
+
+	final boolean isHyper = ( imp.getNChannels() >= 2 ) && 
+	    (( imp.getNSlices() > 1 )||( imp.getNFrames() > 1 ));
+	final int nCh = (isHyper)?(imp.getNChannels()):(is.getSize());
+	
+	int [] ch = channels;
+	if ( ch == null ) {
+	    ch = new int[ Math.min( nCh, 8 ) ];
+	    for (int i=0; i<ch.length; i++) ch[i]=i+1;
+	}
+	if ( ch.length < 2 )
+	    throw new IllegalArgumentException("Please use at least 2 channels");
+
+	ImageStack inputData = new ImageStack( width, height );
+	for ( int c : ch ) {
+	    if (( c < 1 )||( c > nCh ))
+		throw new IllegalArgumentException("No channel "+c+" in "+imp.getTitle());
+	    inputData.addSlice( is.getProcessor( 
+		(isHyper)?(imp.getStackIndex( c, z, t )):(c) ));
+	}
+
+	GammaNorm gn = new GammaNorm( inputData, thrFac, stats, localRadius, 
+	    params.build() );
+	gn.channels	= ch;
+	gn.sourceImg	= imp;
+	return gn;
+    }
+
+    /** Create the gamma data for a memory-mapped TIFF (selected channels).
+     *  The raw pixels are only read from the mapped file. */
+    GammaMosaic gammaMosaic( MappedTiff tif ) {
+	
+	final boolean isHyper = ( tif.nChannels >= 2 ) && 
+	    (( tif.nSlices > 1 )||( tif.nFrames > 1 ));
+	final int nCh = (isHyper)?(tif.nChannels):(tif.planes());
+	
+	int [] ch = channels;
+	if ( ch == null ) {
+	    ch = new int[ Math.min( nCh, 8 ) ];
+	    for (int i=0; i<ch.length; i++) ch[i]=i+1;
+	}
+	if ( ch.length < 2 )
+	    throw new IllegalArgumentException("Please use at least 2 channels");
+	
+	int [] planes = new int[ ch.length ];
+	for (int i=0; i<ch.length; i++) {
+	    if (( ch[i] < 1 )||( ch[i] > nCh ))
+		throw new IllegalArgumentException("No channel "+ch[i]+" in "+tif);
+	    planes[i] = (isHyper)?( tif.plane( ch[i], z, t )):( ch[i]-1 );
+	}
+	
+	GammaMosaic gn = new GammaMosaic( tif.select( planes ), thrFac, stats );
+	gn.setParams( params.build() );
+	gn.channels = ch;
+	return gn;
+    }
+
+    /** Open an image file and run the job on it */
+    Result run( File f ) {
+	return run( f, null );
+    }
+
+    /** Open an image file and run the job on it. The topology, if
+     *  requested, is written to 'topoOut' (for a mapped mosaic it is 
+     *  streamed there and never held on the heap). */
+    Result run( File f, File topoOut ) {
+	final long t0 = System.nanoTime();
+	final String n = f.getName().toLowerCase();
+	// (the mosaic streams rows, so it only supports the global threshold)
+	if (( mapped )&&( localRadius == 0 )&&
+	    (( n.endsWith(".tif") )||( n.endsWith(".tiff") ))) {
+	    MappedTiff tif = null;
+	    try {
+		tif = MappedTiff.open( f );
+	    } catch ( java.io.IOException e ) {
+		Tools.log("Not mapped, opening with ImageJ: "+e.getMessage(), Tools.LL.INFO );
+	    }
+	    if ( tif != null ) {
+		final long t1 = System.nanoTime();
+		final GammaMosaic gn = gammaMosaic( tif );
+		final long nsGamma = System.nanoTime() - t1;
+		// (the off-heap mask is freed once measured, so 'ret.gn' is closed)
+		try {
+		    Result ret = run( f.getName(), gn, topoOut );
+		    ret.nsOpen  = t1 - t0;
+		    ret.nsGamma = nsGamma;
+		    return ret;
+		} finally {
+		    gn.close();
+		}
+	    }
+	}
+	ImagePlus imp = IJ.openImage( f.getPath() );
+	if ( imp == null )
+	    throw new RuntimeException("Could not open "+f);
+	final long nsOpen = System.nanoTime() - t0;
+	Result ret = run( imp, topoOut );
+	ret.nsOpen = nsOpen;
+	return ret;
+    }
+
+    /** Run the job on an image */
+    Result run( ImagePlus imp ) {
+	return run( imp, null );
+    }
+
+    /** Run the job on an image, write the topology to 'topoOut' */
+    Result run( ImagePlus imp, File topoOut ) {
+	final long t0 = System.nanoTime();
+	final GammaNorm gn = gammaNorm( imp );
+	final long nsGamma = System.nanoTime() - t0;
+	Result ret = run( imp.getTitle(), gn, topoOut );
+	ret.nsGamma = nsGamma;
+	return ret;
+    }
+
+    /** Measure (and compute the topology of) the gamma data 'gn' */
+    private Result run( String name, GammaBase gn, File topoOut ) {
+	
+	Result ret = new Result();
+	ret.name = name;
+	ret.gn = gn;
+
+	// the ROIs: label image, given ROIs or full image
+	long t0 = System.nanoTime();
+	List<RoiPixels> r = new ArrayList<RoiPixels>();
+	for ( int [] rc : rois ) {
+	    if (( rc[0] < 0 )||( rc[1] < 0 )||( rc[2] < 1 )||( rc[3] < 1 )||
+		( rc[0] > gn.width-rc[2] )||( rc[1] > gn.height-rc[3] ))
+		throw new IllegalArgumentException("ROI outside the image: "+
+		    rc[0]+","+rc[1]+","+rc[2]+","+rc[3]);
+	    r.add( RoiPixels.fromRect( rc[0], rc[1], rc[2], rc[3] ));
+	}
+	if ( labels != null ) {
+	    ImagePlus lbl = IJ.openImage( labels );
+	    if (( lbl == null )||( lbl.getWidth() != ret.gn.width )||
+		( lbl.getHeight() != ret.gn.height ))
+		throw new IllegalArgumentException("Label image missing or wrong size: "+labels);
+	    r.addAll( RoiPixels.fromLabels( lbl.getProcessor() ));
+	}
+	if ( r.isEmpty() )
+	    r.add( RoiPixels.fromRect( 0, 0, ret.gn.width, ret.gn.height ));
+
+	for ( RoiPixels rp : r ) 
+	    ret.meas.add( new GICAmeasurement( rp, ret.name ));
+	ret.gn.measureRois( ret.meas );
+	ret.nsMeasure = System.nanoTime() - t0;
+
+	// the topology
+	if ( topology ) {
+	    t0 = System.nanoTime();
+	    if ( topoOut == null )
+		throw new IllegalArgumentException(
+		    "The topology needs an output file");
+	    try {
+		ret.gn.writeTopology( ret.gn.params(), topoOut );
+	    } catch ( IOException e ) {
+		throw new RuntimeException( e );
+	    }
+	    ret.topologyFile = topoOut;
+	    ret.nsTopo = System.nanoTime() - t0;
+	}
+	return ret;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/** Classic colocalization coefficients, computed next to the gamma
+ *  norm from the raw intensities: Pearson's correlation, Manders' M1 / M2
+ *  (above the GICA thresholds of both channels) and the overlap 
+ *  coefficient. All pairs of channels are accumulated in one pass over 
+ *  the pixels, so each channel is read once, per ROI or as local maps
+ *  over windows of the super-pixel size. */
+final class ColocMetrics {
+
+    private ColocMetrics() {};
+
+    /** Sums over a set of pixels, per channel and per pair of channels */
+    private static final class Sums {
+	final int nc;
+	final double [] s, ss, sa;	// per channel: sum, squares, above thr.
+	final double [] sp, b1, b2;	// per pair: products, both above thr.
+	long n;
+
+	Sums( int c, int w ) {
+	    nc = c;
+	    s  = new double[ nc*w ]; ss = new double[ nc*w ]; sa = new double[ nc*w ];
+	    final int np = nc*(nc-1)/2;
+	    sp = new double[ np*w ]; b1 = new double[ np*w ]; b2 = new double[ np*w ];
+	}
+
+	/** Add (sign 1) or remove (sign -1) the pixels of one row 
+	 *  (per channel in 'px'), into slot 'x' or (if perColumn) x+i */
+	void add( float [][] px, int len, float [] thr, double sign, 
+	    boolean perColumn, int w ) {
+	    for (int i=0; i<len; i++) {
+		final int o = ( perColumn )?( i ):( 0 );
+		int k=0;
+		for (int c=0; c<nc; c++) {
+		    final double v = px[c][i];
+		    s[ c*w+o ]  += sign*v;
+		    ss[ c*w+o ] += sign*v*v;
+		    if ( v > thr[c] ) sa[ c*w+o ] += sign*v;
+		}
+		for (int c=0; c<nc; c++)
+		for (int d=c+1; d<nc; d++, k++) {
+		    final double vi = px[c][i], vj = px[d][i];
+		    sp[ k*w+o ] += sign*vi*vj;
+		    if (( vi > thr[c] )&&( vj > thr[d] )) {
+			b1[ k*w+o ] += sign*vi;
+			b2[ k*w+o ] += sign*vj;
+		    }
+		}
+	    }
+	    n += (long)sign*len;
+	}
+    }
+
+    /** Pearson, M1, M2 and overlap of pair 'k' (channels c, d), from
+     *  sums over 'n' pixels */
+    private static void coeffs( double n, double si, double sj, double ssi, 
+	double ssj, double sai, double saj, double sp, double b1, double b2,
+	double [] out ) {
+	
+	final double vi = n*ssi - si*si, vj = n*ssj - sj*sj;
+	out[0] = ((vi>0)&&(vj>0))?(( n*sp - si*sj )/Math.sqrt( vi*vj )):(0);
+	out[1] = (sai>0)?( b1/sai ):(0);
+	out[2] = (saj>0)?( b2/saj ):(0);
+	out[3] = ((ssi>0)&&(ssj>0))?( sp/Math.sqrt( ssi*ssj )):(0);
+    }
+
+    /** The thresholds of all channels */
+    private static float [] thresholds( GammaPlane gn ) {
+	float [] ret = new float[ gn.cCount ];
+	for (int c=0; c<ret.length; c++) ret[c] = gn.threshold(c);
+	return ret;
+    }
+
+    /** Compute the coefficients of all channel pairs (c &lt; d) for 
+     *  the ROI of 'gm', stored in 'gm' */
+    static void measure( GammaPlane gn, GICAmeasurement gm ) {
+	
+	final long t0 = Metrics.start();
+	final int nc = gn.cCount, np = nc*(nc-1)/2;
+	final RoiPixels rp = gm.area;
+	final float [] thr = thresholds( gn );
+	final float [][] px = new float[ nc ][ rp.w ];
+	final Sums sm = new Sums( nc, 1 );
+	
+	for (int s=0; s<rp.spans(); s++) {
+	    final int len = rp.spanLength(s);
+	    for (int c=0; c<nc; c++)
+		gn.rawRow( c, rp.spanY(s), rp.spanX(s), len, px[c] );
+	    sm.add( px, len, thr, 1, false, 1 );
+	}
+
+	gm.pearson = new double[ np ]; gm.m1 = new double[ np ];
+	gm.m2 = new double[ np ];      gm.overlap = new double[ np ];
+	final double [] r = new double[4];
+	int k=0;
+	for (int c=0; c<nc; c++)
+	for (int d=c+1; d<nc; d++, k++) {
+	    coeffs( sm.n, sm.s[c], sm.s[d], sm.ss[c], sm.ss[d], sm.sa[c], sm.sa[d],
+		sm.sp[k], sm.b1[k], sm.b2[k], r );
+	    gm.pearson[k] = r[0]; gm.m1[k] = r[1]; gm.m2[k] = r[2]; gm.overlap[k] = r[3];
+	}
+	Metrics.stop( Metrics.COLOC, t0, rp.count() );
+	Metrics.count( Metrics.PIXELS, (long)nc*rp.count() );
+    }
+
+    /** Local maps of the coefficients, over windows of 'bin' x 'bin' 
+     *  (values at the window centers). Four slices (Pearson, M1, M2, 
+     *  overlap) per pair of channels. Parallel over strips of rows, 
+     *  each strip keeps column sums that slide down. */
+    static ImageStack maps( final GammaPlane gn, final int bin ) {
+	
+	final int width = gn.width, height = gn.height;
+	final int nc = gn.cCount, np = nc*(nc-1)/2;
+	final float [] thr = thresholds( gn );
+	final float [][] out = new float[ 4*np ][ width*height ];
+	Metrics.count( Metrics.BYTES, 16L*np*width*height );
+	
+	final int ny = height - bin;
+	if (( ny > 0 )&&( bin < width )) {
+	    final int [][] strips = SimpleMT.split( 
+		Math.min( ny, 4*SimpleMT.getNumThreads() ), 0, ny );
+	    new SimpleMT.PFor( 0, strips.length ) {
+		public void at( int st ) {
+		    mapStrip( gn, strips[st][0], strips[st][1], bin, thr, out );
+		}
+	    };
+	}
+
+	ImageStack ret = new ImageStack( width, height );
+	final String [] name = { "Pearson", "M1", "M2", "Overlap" };
+	int k=0;
+	for (int c=0; c<nc; c++)
+	for (int d=c+1; d<nc; d++, k++) 
+	    for (int m=0; m<4; m++) 
+		ret.addSlice( name[m]+" ch"+label( gn, c )+"/ch"+label( gn, d ),
+		    new FloatProcessor( width, height, out[ 4*k+m ] ));
+	return ret;
+    }
+
+    /** channel label: image channel if known, else 1-based index */
+    private static int label( GammaPlane gn, int c ) {
+	return ( gn.channels != null )?( gn.channels[c] ):( c+1 );
+    }
+
+    /** Maps for windows starting at rows ys .. ye-1 */
+    private static void mapStrip( GammaPlane gn, int ys, int ye, int bin,
+	float [] thr, float [][] out ) {
+	
+	final long t0 = Metrics.start();
+	final int width = gn.width, nc = gn.cCount;
+	final float [][] px = new float[ nc ][ width ];
+	final Sums col = new Sums( nc, width );
+	final double [] r = new double[4];
+	final double n = (double)bin*bin;
+	
+	for (int y=ys; y<ys+bin; y++) 
+	    addRow( gn, col, px, thr, y, 1 );
+
+	final int nv = 3*nc, npr = 3*(nc*(nc-1)/2);
+	final double [] w = new double[ nv + npr ];
+	for (int y=ys; y<ye; y++) {
+	    
+	    // running sums over 'bin' columns
+	    java.util.Arrays.fill( w, 0 );
+	    for (int x=0; x<bin; x++) 
+		slide( col, w, x, 1 );
+	    
+	    for (int x=0; x<width-bin; x++) {
+		int k=0;
+		for (int c=0; c<nc; c++)
+		for (int d=c+1; d<nc; d++, k++) {
+		    coeffs( n, w[3*c], w[3*d], w[3*c+1], w[3*d+1], w[3*c+2], w[3*d+2],
+			w[nv+3*k], w[nv+3*k+1], w[nv+3*k+2], r );
+		    final int o = (y+bin/2)*width + x+bin/2;
+		    for (int m=0; m<4; m++) 
+			out[ 4*k+m ][o] = (float)r[m];
+		}
+		slide( col, w, x+bin, 1 );
+		slide( col, w, x, -1 );
+	    }
+
+	    // slide the window down
+	    addRow( gn, col, px, thr, y, -1 );
+	    if ( y+bin < gn.height )
+		addRow( gn, col, px, thr, y+bin, 1 );
+	}
+	Metrics.stop( Metrics.COLOC, t0, (long)(ye-ys)*(width-bin) );
+    }
+
+    /** Add the column sums of column 'x' to the window sums 'w' */
+    private static void slide( Sums col, double [] w, int x, double sign ) {
+	final int nc = col.nc, width = col.s.length/nc;
+	for (int c=0; c<nc; c++) {
+	    w[3*c]   += sign*col.s[ c*width+x ];
+	    w[3*c+1] += sign*col.ss[ c*width+x ];
+	    w[3*c+2] += sign*col.sa[ c*width+x ];
+	}
+	final int nv = 3*nc;
+	for (int k=0; k<nc*(nc-1)/2; k++) {
+	    w[nv+3*k]   += sign*col.sp[ k*width+x ];
+	    w[nv+3*k+1] += sign*col.b1[ k*width+x ];
+	    w[nv+3*k+2] += sign*col.b2[ k*width+x ];
+	}
+    }
+
+    /** Add (sign 1) or remove (sign -1) image row 'y' to the column sums */
+    private static void addRow( GammaPlane gn, Sums col, float [][] px, 
+	float [] thr, int y, double sign ) {
+	for (int c=0; c<col.nc; c++)
+	    gn.rawRow( c, y, 0, gn.width, px[c] );
+	col.add( px, gn.width, thr, sign, true, gn.width );
+	Metrics.count( Metrics.PIXELS, (long)col.nc*gn.width );
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runtime model of the topology, calibrated by a short micro-benchmark
+ *  on first use (cached in the ImageJ preferences). Per window, random
+ *  sampling costs a + b*bin^2 + c*n^2 (linearize the window, draw n*n
+ *  samples), the analytic estimator costs width*(d*bin + e) per row. */
+final class CostModel {
+
+    static final String PREF_KEY = "gica.costmodel";
+    static final int VERSION = 1;
+
+    final double a, b, c;   // ns per window (Monte Carlo)
+    final double d, e;	    // ns per row and pixel (analytic)
+
+    private static CostModel cached = null;
+
+    private CostModel( double [] v ) {
+	a = v[0]; b = v[1]; c = v[2]; d = v[3]; e = v[4];
+    }
+
+    /** The cost model: from cache, preferences, or calibrated now */
+    static synchronized CostModel get() {
+	if ( cached != null ) 
+	    return cached;
+	
+	// stored with version and cpu count, recalibrate if they changed
+	final String id = VERSION+":"+Runtime.getRuntime().availableProcessors();
+	String [] s = Prefs.get( PREF_KEY, "" ).split(";");
+	if (( s.length == 6 )&&( s[0].equals( id ) )) {
+	    try {
+		double [] v = new double[5];
+		for (int i=0; i<5; i++) v[i] = Double.parseDouble( s[i+1] );
+		cached = new CostModel( v );
+		return cached;
+	    } catch ( NumberFormatException ex ) {
+		// recalibrate
+	    }
+	}
+	
+	cached = calibrate();
+	Prefs.set( PREF_KEY, id+";"+cached.a+";"+cached.b+";"+cached.c+
+	    ";"+cached.d+";"+cached.e );
+	return cached;
+    }
+
+    /** Run the micro-benchmark (single thread, ~0.5 sec) */
+    static CostModel calibrate() {
+	
+	final long t0 = System.nanoTime();
+	final int sz = 160;
+	GammaData gi = new GammaData( sz, sz ), gj = new GammaData( sz, sz );
+	Random rnd = new Random( 42 );
+	for (int i=0; i<sz*sz; i++) {
+	    gi.gammas[i] = (byte)(( rnd.nextDouble() < 0.1 )?(1):(0));
+	    gj.gammas[i] = (byte)(( rnd.nextDouble() < 0.1 )?(1):(0));
+	}
+
+	// warm up (so the JIT compiled the loops), then time three 
+	// settings to separate the terms
+	for (int i=0; i<5; i++) {
+	    timeWindows( gi, gj, 8, 16, 4000 );
+	    timeRows( gi, gj, 8, 100 );
+	}
+	final double t1 = timeWindows( gi, gj,  4,  8, 2000 );
+	final double t2 = timeWindows( gi, gj, 32,  8, 500 );
+	final double t3 = timeWindows( gi, gj,  4, 64, 500 );
+	final double b  = Math.max( 0, (t2-t1)/( 32*32 - 4*4 ));
+	final double c  = Math.max( 0, (t3-t1)/( 64*64 - 8*8 ));
+	final double a  = Math.max( 0, t1 - 16*b - 64*c );
+
+	final double r1 = timeRows( gi, gj,  4, 40 );
+	final double r2 = timeRows( gi, gj, 32, 40 );
+	final double d  = Math.max( 0, (r2-r1)/( (32-4)*(double)sz ));
+	final double e  = Math.max( 0, r1/sz - 4*d );
+
+	CostModel ret = new CostModel( new double [] { a, b, c, d, e } );
+	Tools.log(String.format("Cost model calibrated in %.0f ms: %s", 
+	    (System.nanoTime()-t0)/1e6, ret ), Tools.LL.DEBUG );
+	return ret;
+    }
+
+    /** ns per window of random sampling (best of 3) */
+    private static double timeWindows( GammaData gi, GammaData gj, int bin, int n, int cnt ) {
+	final int range = gi.width - bin;
+	double best = Double.MAX_VALUE;
+	for (int r=0; r<3; r++) {
+	    final long t0 = System.nanoTime();
+	    for (int k=0; k<cnt; k++)
+		GammaData.genTopoData( gi, gj, (k*7)%range, (k*13)%range, bin, bin, n );
+	    best = Math.min( best, (System.nanoTime()-t0)/(double)cnt );
+	}
+	return best;
+    }
+
+    /** ns per row of the analytic estimator (best of 3) */
+    private static double timeRows( GammaData gi, GammaData gj, int bin, int cnt ) {
+	final int range = gi.height - bin;
+	double best = Double.MAX_VALUE;
+	for (int r=0; r<3; r++) {
+	    final long t0 = System.nanoTime();
+	    for (int k=0; k<cnt; k++)
+		GammaData.anaTopoRow( gi, gj, (k*13)%range, bin, 20 );
+	    best = Math.min( best, (System.nanoTime()-t0)/(double)cnt );
+	}
+	return best;
+    }
+
+    /** Predicted (single thread) time in ns for one window row of one pair */
+    double rowNs( int width, int bin, int n, GammaNorm.Estimator est, int stride ) {
+	final int nx = Math.max( width-bin, 0 );
+	if ( est == GammaNorm.Estimator.ANALYTIC )
+	    return width*( d*bin + e );
+	return TopologyGrid.points( nx, stride ) * ( a + b*bin*bin + c*n*n );
+    }
+
+    /** Predicted wall time (sec) of the topology of 'gn' with parameters 'p', 
+     *  computing every 'stride'-th window in x and y */
+    double predict( GammaNorm gn, GammaParams p, int stride ) {
+	final int ny = Math.max( gn.height - p.binSize, 0 );
+	final double rows = (double)gn.topoPairsV().size() * TopologyGrid.points( ny, stride );
+	return rows * rowNs( gn.width, p.binSize, p.secSize, p.estimator, stride )
+	    / SimpleMT.getNumThreads() / 1e9;
+    }
+
+    /** Smallest output stride for which the topology is predicted
+     *  to finish within 'budget' seconds */
+    int suggestStride( GammaNorm gn, GammaParams p, double budget ) {
+	int s = 1;
+	while (( s < p.binSize )&&( predict( gn, p, s ) > budget ))
+	    s++;
+	return s;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("MC window %.0f ns + %.2f ns*bin^2 + %.2f ns*n^2, "+
+	    "analytic row width*(%.2f ns*bin + %.2f ns)", a, b, c, d, e );
+    }
+
+    /** Row-level progress of a topology, with estimated time left.
+     *  Rows are counted from all threads, the ImageJ progress bar and
+     *  status are updated at most every 200 ms. */
+    static final class Progress {
+	
+	final long total;
+	final double predicted;	// sec, used until enough rows are done
+	private final AtomicLong done = new AtomicLong();
+	private final long t0 = System.nanoTime();
+	private volatile long lastUpdate = 0;
+
+	Progress( long totalRows, double predictedSec ) {
+	    total = Math.max( 1, totalRows ); predicted = predictedSec;
+	}
+
+	/** Count 'n' finished rows */
+	void rows( long n ) {
+	    final long d = done.addAndGet( n );
+	    final long now = System.nanoTime();
+	    if (( now - lastUpdate < 200000000L )&&( d < total ))
+		return;
+	    lastUpdate = now;
+	    IJ.showProgress( (double)d / total );
+	    IJ.showStatus( "GICA topology: "+(100*d/total)+"%, "+
+		formatTime( eta( d, now ) )+" left" );
+	}
+
+	/** Seconds left: from the measured rate, after 2% of the rows */
+	double eta( long d, long now ) {
+	    final double el = (now - t0)/1e9;
+	    if ( d < total/50 )
+		return Math.max( 0, predicted - el );
+	    return el * ( total - d ) / d;
+	}
+    }
+
+    /** Format seconds as h:mm:ss or m:ss */
+    static String formatTime( double sec ) {
+	final long s = Math.round( sec );
+	if ( s >= 3600 )
+	    return String.format("%d:%02d:%02d", s/3600, (s/60)%60, s%60 );
+	return String.format("%d:%02d", s/60, s%60 );
+    }
+
+}
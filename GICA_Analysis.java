@@ -18,22 +18,31 @@ package de.bio_photonics.gica;
 
 import ij.ImageStack;
 import ij.process.ImageProcessor;
+import ij.process.FloatProcessor;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.plugin.ChannelSplitter;
 import ij.plugin.PlugIn;
-import ij.gui.YesNoCancelDialog;
 
 import javax.swing.SwingWorker;
 
+import java.io.File;
+
+import java.util.List;
+import java.util.ArrayList;
+
 public class GICA_Analysis  {
 
+    /** preference key of the time budget for the topology (sec) */
+    static final String BUDGET_KEY = "gica.topoBudget";
+
 
     /** Calculate the gamma norm data for an image.
      *  Will open a parameter dialog. May return null
      *  for various reason (which are then given in the log). */ 
-    static GammaNorm computeGammaNorm( ImagePlus aip  ) {
+    static GammaBase computeGammaNorm( ImagePlus aip  ) {
 	
 	// image parameter
 	if ( aip == null ) return null;
@@ -64,9 +73,15 @@ public class GICA_Analysis  {
 	    isRGB=true;
 	}
 
+	// hyperstacks: channels are selected at the current z-slice and
+	// time point, with z-slices they may be analysed as volume
+	final boolean isHyper  = ( aip.getNChannels() >= 2 ) && 
+	    (( aip.getNSlices() > 1 )||( aip.getNFrames() > 1 ));
+	final boolean isVolume = ( isHyper ) && ( aip.getNSlices() > 1 );
+
 	// check for stack size
 	ImageStack aiStack = aip.getStack();
-	int numImages = aiStack.getSize();
+	int numImages = (isHyper)?(aip.getNChannels()):(aiStack.getSize());
 	if ((numImages <2)||(numImages>8)) {
 		Tools.log("Please use 2 - 8 slices"+numImages,Tools.LL.PARAMFAIL);
 		return null;
@@ -91,6 +106,9 @@ public class GICA_Analysis  {
 	    String label;
 	    if (isRGB) 
 		label = cName[i-1]; 
+	    else if (isHyper)
+		label = aip.getStack().getSliceLabel( 
+		    aip.getStackIndex( i, aip.getZ(), aip.getT() ));
 	    else 
 		label = aip.getStack().getSliceLabel(i);
 	    if (label == null) label ="N.N.";
@@ -99,27 +117,51 @@ public class GICA_Analysis  {
 
 	    gd.addCheckbox("Ch "+i+": ["+label+"]",true);
 	}
+	if (isVolume)
+	    gd.addCheckbox("Analyse as volume (3D, "+aip.getNSlices()+" slices)", true);
 
 	// get the parameters
 	gd.addNumericField("Threshhold factor", 2,1);
+	gd.addChoice("Threshold statistics", ThresholdStats.Mode.labels(),
+	    ThresholdStats.Mode.EXACT.label);
+	gd.addNumericField("Local threshold radius (0 = global)", 0,0);
+	gd.addChoice("Estimator", GammaNorm.Estimator.labels(), 
+	    GammaNorm.Estimator.MONTECARLO.label);
 	gd.addMessage("--- ROI measurement ---");
 	gd.addNumericField("Sample factor", 0.25,2);
 	gd.addNumericField("Stat. #N", 20,0);
 	gd.addNumericField("error est. N", 20,0);
+	gd.addNumericField("max. error est. N (adaptive)", 1000,0);
+	gd.addNumericField("target precision (adaptive)", 0.005,3);
+	gd.addNumericField("target rel. precision (adaptive)", 0.01,3);
+	gd.addNumericField("permutation test runs (0 = off)", 0,0);
+	gd.addChoice("Permutation", PermutationTest.Mode.labels(),
+	    PermutationTest.Mode.SHIFT.label);
+	gd.addCheckbox("Pearson / Manders / overlap (also as maps)", false);
 	gd.addMessage("--- Topology ---");
 	gd.addNumericField("width/height SuperPxl", 12,0);
 	gd.addNumericField("Stat. #N (topo)" , 20,0);
+	gd.addNumericField("output stride (topo, 1 = dense)", 1, 0);
+	gd.addChoice("Interpolation (stride)", GammaNorm.Interpolation.labels(),
+	    GammaNorm.Interpolation.BILINEAR.label);
+	gd.addNumericField("time budget topo (s)", Prefs.get( BUDGET_KEY, 60 ), 0);
 	gd.addCheckbox("Show intermediate results?", false);
 	
 	// run the dialog
 	gd.showDialog();
 	if (gd.wasCanceled()) return null;
 
-	// copy only selected slides from stack
+	// copy only selected slides from stack 
+	// (for hyperstacks: the current z-slice of the selected channels)
 	ImageStack inputData = new ImageStack( width, height );
+	List<Integer> selCh = new ArrayList<Integer>();
 	for (int i=1; i<=numImages;i++)
-	    if ( gd.getNextBoolean() )
-		inputData.addSlice( aip.getStack().getProcessor(i));
+	    if ( gd.getNextBoolean() ) {
+		selCh.add(i);
+		inputData.addSlice( aip.getStack().getProcessor( (isHyper)?
+		    (aip.getStackIndex( i, aip.getZ(), aip.getT())):(i) ));
+	    }
+	final boolean asVolume = (isVolume)&&(gd.getNextBoolean());
 
 	if (inputData.getSize()<2) {
 	    Tools.log("Please select at least 2 channels", 
@@ -129,20 +171,60 @@ public class GICA_Analysis  {
 
 	// compute the gamma norm data
 	final float thr	= (float)gd.getNextNumber();
+	final ThresholdStats.Mode statsMode = 
+	    ThresholdStats.Mode.values()[ gd.getNextChoiceIndex() ];
+	final int localRadius = (int)gd.getNextNumber();
+	if ( localRadius < 0 ) {
+	    Tools.log("Local threshold radius must be >= 0", Tools.LL.PARAMFAIL);
+	    return null;
+	}
+
+	int [] ch = new int[ selCh.size() ];
+	for (int i=0; i<ch.length; i++) ch[i] = selCh.get(i);
 
-	Timing t1 = new Timing(); t1.start();
-	GammaNorm ga = new GammaNorm( inputData , thr); 
-	t1.stop();
-	Tools.log("Gamma norm created "+t1, Tools.LL.INFO);
-	
 	// copy / store parameters
-	ga.sampleFactor = gd.getNextNumber();
-	ga.nStatCount	= (int) gd.getNextNumber();
-	ga.bsCount	= (int) gd.getNextNumber();
-	ga.binSize      = (int) gd.getNextNumber();
-	ga.secSize      = (int) gd.getNextNumber();
-	ga.fullResult	= gd.getNextBoolean();
+	GammaParams.Builder pb = new GammaParams.Builder()
+	    .sampleFactor( gd.getNextNumber() )
+	    .nStatCount( (int) gd.getNextNumber() )
+	    .bsCount( (int) gd.getNextNumber() )
+	    .bsMax( (int) gd.getNextNumber() )
+	    .bsTargetErr( gd.getNextNumber() )
+	    .bsTargetRel( gd.getNextNumber() )
+	    .permutations( Math.max( 0, (int) gd.getNextNumber() ))
+	    .binSize( (int) gd.getNextNumber() )
+	    .secSize( (int) gd.getNextNumber() )
+	    .stride( Math.max( 1, (int) gd.getNextNumber() ))
+	    .colocMetrics( gd.getNextBoolean() )
+	    .fullResult( gd.getNextBoolean() )
+	    .estimator( GammaNorm.Estimator.values()[ gd.getNextChoiceIndex() ] )
+	    .permMode( PermutationTest.Mode.values()[ gd.getNextChoiceIndex() ] )
+	    .interpolation( GammaNorm.Interpolation.values()[ gd.getNextChoiceIndex() ] );
+	Prefs.set( BUDGET_KEY, gd.getNextNumber() );
+	final GammaParams p;
+	try {
+	    p = pb.build();
+	} catch ( IllegalArgumentException e ) {
+	    Tools.log( e.getMessage(), Tools.LL.PARAMFAIL );
+	    return null;
+	}
+
+	final long t0 = Metrics.start();
+	GammaBase ga;
+	if ( asVolume ) {
+	    // volumes always use exact, global statistics
+	    if (( statsMode != ThresholdStats.Mode.EXACT )||( localRadius > 0 ))
+		Tools.log("3D volume: threshold statistics '"+statsMode.label+
+		    "' and local radius "+localRadius+" ignored, using exact "+
+		    "global statistics", Tools.LL.INFO);
+	    ga = new GammaVolume( aip, ch, aip.getT(), thr );
+	    ga.setParams( p );
+	} else {
+	    ga = new GammaNorm( inputData , thr, statsMode, localRadius, p ); 
+	}
+	Tools.log("Gamma norm created "+
+	    Metrics.ms( Metrics.stop( Metrics.GAMMANORM, t0 )), Tools.LL.INFO);
 	ga.sourceImg	= inputIP;
+	ga.channels	= ch;
 
 	return ga;
     }
@@ -153,21 +235,30 @@ public class GICA_Analysis  {
      *  the GammaNorm. */ 
     public static void computeGammaTopology( final GammaNorm ga ) {
 
-	// check for size
-	if ( ga.width * ga.height > 512*512 ) {
-	    YesNoCancelDialog ynd = new YesNoCancelDialog(IJ.getInstance(), "GICA topology",
-		"Topology computation on large images (512x512)\n"+
-		"will take long to compute. Start?");
-	    //ynd.setVisible(true);
-	    if ( !ynd.yesPressed() )
-		return;
+	// parameters as of now (a running topology keeps them)
+	final GammaParams p = ga.params();
+
+	// choose how to compute, from the memory needed
+	final TopologyPlan plan = TopologyPlan.plan( ga, p );
+	Tools.log( plan.toString(), Tools.LL.INFO );
+
+	// predicted run time, suggest a stride if over budget
+	final CostModel cm = CostModel.get();
+	final double pred   = cm.predict( ga, p, p.stride );
+	final double budget = Prefs.get( BUDGET_KEY, 60 );
+	Tools.log("Predicted run time: "+CostModel.formatTime( pred ), Tools.LL.INFO);
+	if (( pred > budget )&&( p.stride < p.binSize )) {
+	    final int s = cm.suggestStride( ga, p, budget );
+	    Tools.log("Over the time budget of "+CostModel.formatTime( budget )+
+		", an output stride of "+s+" would take about "+
+		CostModel.formatTime( cm.predict( ga, p, s )), Tools.LL.INFO );
 	}
 
-
 	// store the intermediate results
+	final boolean full = ( plan.strategy == TopologyPlan.Strategy.IN_MEMORY );
 	final ImageStack trStck = new ImageStack( ga.width, ga.height );
 
-	if ( ga.fullResult ) {
+	if ( full ) {
 	    for ( int i=0; i<ga.gDats.length; i++ ) {
 		trStck.addSlice( "I ch"+i, ga.gDats[i].toImage());
 	    }
@@ -180,40 +271,65 @@ public class GICA_Analysis  {
 	
 	class TopologyCompute extends SwingWorker<Object, Object> {
 	    @Override
-	    public Object doInBackground() {
+	    public Object doInBackground() throws Exception {
+		
+		final long t0 = Metrics.start();
+		ImagePlus trStckPl;
+		
+		if ( full ) {
+		    ImageStack [] gammaStack =ga.getGammaStack( p );	
+		
+		    // show extra results
+		    for (int i=1;i<=gammaStack[0].getSize();i++)
+		    for (int  j=0;j<2;j++)
+			trStck.addSlice(
+			    gammaStack[j].getSliceLabel(i),
+			    gammaStack[j].getProcessor(i));
+
+		    // get the full topology
+		    ImageProcessor topology    = GammaNorm.euclSumStack( gammaStack[0] );
+		    ImageProcessor topologyAbs = GammaNorm.euclSumStack( gammaStack[1] );
+		    trStck.addSlice( "Topology (norm.)", topology);
+		    trStck.addSlice( "Topology (abs)", topologyAbs);
+		    trStckPl = new ImagePlus( "GICA results", trStck);
 		
-		Timing t1 = new Timing();
-		t1.start();
-		ImageStack [] gammaStack =ga.getGammaStack( ga.binSize , ga.secSize);	
-		t1.stop();
-		Tools.log("... done. "+t1, Tools.LL.INFO);
+		} else if ( plan.strategy == TopologyPlan.Strategy.STREAMING ) {
+		    FloatProcessor [] topo = ga.getTopology( p );
+		    trStck.addSlice( "Topology (norm.)", topo[0] );
+		    trStck.addSlice( "Topology (abs)", topo[1] );
+		    trStckPl = new ImagePlus( "GICA results", trStck);
 		
-		// show extra results if wanted
-		if (ga.fullResult)
-		for (int i=1;i<=gammaStack[0].getSize();i++)
-		for (int  j=0;j<2;j++)
-		    trStck.addSlice(
-			gammaStack[j].getSliceLabel(i),
-			gammaStack[j].getProcessor(i));
-
-		// get the full topology
-		ImageProcessor topology    = GammaNorm.euclSumStack( gammaStack[0] );
-		ImageProcessor topologyAbs = GammaNorm.euclSumStack( gammaStack[1] );
-		trStck.addSlice( "Topology (norm.)", topology);
-		trStck.addSlice( "Topology (abs)", topologyAbs);
+		} else {
+		    File f = File.createTempFile( "gica-topology", ".raw" );
+		    f.deleteOnExit();
+		    trStckPl = ga.getTopologyTiled( p, plan.stripRows, f );
+		    trStckPl.setTitle( "GICA results" );
+		    Tools.log("Topology stored in "+f, Tools.LL.INFO);
+		}
+		Tools.log("... done. "+
+		    Metrics.ms( Metrics.stop( Metrics.TOPOLOGY, t0 )), Tools.LL.INFO);
 
 		// display results, store that this is a gamma topology
-		ImagePlus trStckPl= new ImagePlus( "GICA results", trStck);
 		trStckPl.setProperty("bbp.gica.isGammaNormDisplay", ga);
 		trStckPl.show();
 
+		// local Pearson / Manders / overlap
+		if ( p.colocMetrics && ( plan.strategy != TopologyPlan.Strategy.TILED )) {
+		    ImagePlus maps = new ImagePlus( "GICA coloc maps", 
+			ColocMetrics.maps( ga, p.binSize ));
+		    maps.setProperty("bbp.gica.isGammaNormDisplay", ga);
+		    maps.show();
+		}
+
 		return null;
-	    
-	    
-	    
 	    }
 	    @Override
 	    protected void done() {
+		try {
+		    get();
+		} catch ( Exception e ) {
+		    Tools.log("Topology failed: "+e, Tools.LL.ERROR);
+		}
 	    }
 	};
 
@@ -226,6 +342,93 @@ public class GICA_Analysis  {
     }
 
 
+    /** Compute the 3D topology of a volume, display it as 
+     *  hyperstack (norm., abs) x z */
+    static void computeVolumeTopology( final GammaVolume gv ) {
+	
+	final GammaParams p = gv.params();
+	if ( p.binSize >= Math.min( gv.depth, Math.min( gv.width, gv.height ))) {
+	    Tools.log("SuperPxl size has to be smaller than the volume", 
+		Tools.LL.PARAMFAIL);
+	    return;
+	}
+	if ( p.estimator != GammaNorm.Estimator.ANALYTIC )
+	    Tools.log("3D topology is always computed by the analytic estimator",
+		Tools.LL.INFO);
+	Tools.log("Computing 3D topology (this can take some time)...", Tools.LL.INFO);
+
+	class VolumeTopologyCompute extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		
+		final long t0 = Metrics.start();
+		ImageStack [] res = gv.getTopology3D( p.binSize, p.secSize );
+		Tools.log("... done. "+
+		    Metrics.ms( Metrics.stop( Metrics.TOPOLOGY, t0 )), Tools.LL.INFO);
+
+		// interleave as hyperstack: channels (norm, abs), z
+		ImageStack out = new ImageStack( gv.width, gv.height );
+		for (int z=1; z<=gv.depth; z++)
+		for (int j=0; j<2; j++)
+		    out.addSlice( res[j].getSliceLabel(z), res[j].getProcessor(z));
+
+		ImagePlus outPl = new ImagePlus( "GICA 3D topology", out );
+		outPl.setDimensions( 2, gv.depth, 1 );
+		outPl.setOpenAsHyperStack( true );
+		outPl.setProperty("bbp.gica.isGammaNormDisplay", gv);
+		outPl.show();
+		return null;
+	    }
+	};
+
+	(new VolumeTopologyCompute()).execute();
+    }
+
+    /** Compute the topology of a time-lapse over a sliding window of 'k' 
+     *  frames, shown as hyperstack (norm., abs) x window position. */
+    static void computeTemporalTopology( final GammaNorm gn, final int k ) {
+	
+	final ImagePlus imp = gn.sourceImg;
+	final GammaParams p = gn.params();
+	if ( p.binSize >= Math.min( gn.width, gn.height )) {
+	    Tools.log("SuperPxl size has to be smaller than the image", 
+		Tools.LL.PARAMFAIL);
+	    return;
+	}
+	if ( p.estimator != GammaNorm.Estimator.ANALYTIC )
+	    Tools.log("Temporal topology is always computed by the analytic estimator",
+		Tools.LL.INFO);
+	final GammaTimeLapse tl = new GammaTimeLapse( imp, gn, imp.getZ() );
+	Tools.log("Computing temporal topology (this can take some time)...", Tools.LL.INFO);
+
+	class TemporalTopologyCompute extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		
+		final long t0 = Metrics.start();
+		ImageStack [] res = tl.topology( k, p.binSize, p.secSize );
+		Tools.log("... done. "+
+		    Metrics.ms( Metrics.stop( Metrics.TOPOLOGY, t0 )), Tools.LL.INFO);
+
+		// interleave as hyperstack: channels (norm, abs), frames
+		ImageStack out = new ImageStack( gn.width, gn.height );
+		for (int t=1; t<=res[0].getSize(); t++)
+		for (int j=0; j<2; j++)
+		    out.addSlice( res[j].getSliceLabel(t), res[j].getProcessor(t));
+
+		ImagePlus outPl = new ImagePlus( "GICA temporal topology ("+k+" frames)", out );
+		outPl.setDimensions( 2, 1, res[0].getSize() );
+		outPl.setOpenAsHyperStack( true );
+		outPl.setProperty("bbp.gica.isGammaNormDisplay", gn);
+		outPl.show();
+		return null;
+	    }
+	};
+
+	(new TemporalTopologyCompute()).execute();
+    }
+
+
    
 
 
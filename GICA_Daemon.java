@@ -0,0 +1,329 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Daemon mode: keeps a warm GICA engine (ImageJ classes, random number
+ *  cache, thread pool, JIT-compiled code) resident, and runs BatchJobs
+ *  received over a local (loopback) socket. The first line of each
+ *  connection has to be the shared secret, which the daemon writes
+ *  (readable by the user only) to its token file, default 
+ *  ~/.gica/daemon.token. Then one request per line (fields separated 
+ *  by tabs, or by spaces if there is no tab):
+ *  <pre>
+ *  file.tif [out=topology.tif] [job parameters, see BatchJob]
+ *  ping | stats | shutdown
+ *  </pre>
+ *  'out=' is a relative path within the daemon's output folder.
+ *  A job is answered by "OK nRows ms", followed by the tab-separated
+ *  result table (header and nRows lines), or by "ERR message". 
+ *  The connection stays open for further requests. */
+public class GICA_Daemon {
+
+    static final int DEFAULT_PORT = 7843;
+    
+    static final File DEFAULT_TOKEN = 
+	new File( new File( System.getProperty("user.home"), ".gica" ), "daemon.token" );
+    
+    final int port;
+    final File outDir, tokenFile;
+    private byte [] token;
+    private ServerSocket server;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final AtomicLong nJobs = new AtomicLong(), nsJobs = new AtomicLong();
+    private volatile boolean running;
+
+    GICA_Daemon( int p, File out, File tok ) {
+	port = p; outDir = out; tokenFile = tok;
+    }
+
+    /** Create a new random token, write it to the token file (readable
+     *  by the user only, where the file system allows) */
+    private void writeToken() throws IOException {
+	byte [] rnd = new byte[ 32 ];
+	new SecureRandom().nextBytes( rnd );
+	StringBuilder hex = new StringBuilder();
+	for ( byte b : rnd ) hex.append( String.format( "%02x", b & 0xff ));
+	token = hex.toString().getBytes( StandardCharsets.UTF_8 );
+
+	final File dir = tokenFile.getAbsoluteFile().getParentFile();
+	if ( !dir.isDirectory() && !dir.mkdirs() )
+	    throw new IOException("Cannot create "+dir);
+	tokenFile.delete();
+	try {
+	    Files.createFile( tokenFile.toPath(), PosixFilePermissions.asFileAttribute(
+		PosixFilePermissions.fromString("rw-------") ));
+	} catch ( UnsupportedOperationException e ) {
+	    // no POSIX permissions (e.g. Windows)
+	    if ( !tokenFile.createNewFile() )
+		throw new IOException("Cannot create "+tokenFile);
+	    tokenFile.setReadable( false, false ); tokenFile.setWritable( false, false );
+	    tokenFile.setReadable( true, true );   tokenFile.setWritable( true, true );
+	}
+	Files.write( tokenFile.toPath(), token );
+    }
+
+    /** If 'line' is the token (compared in constant time) */
+    private boolean authorized( String line ) {
+	return ( line != null )&&( MessageDigest.isEqual( token, 
+	    line.trim().getBytes( StandardCharsets.UTF_8 )));
+    }
+
+    /** Resolve 'out=' within the output folder. Absolute paths and
+     *  '..' are rejected. */
+    File outFile( String path ) throws IOException {
+	final File f = new File( path );
+	if ( f.isAbsolute() || path.startsWith("/") || path.startsWith("\\") )
+	    throw new IllegalArgumentException("out= has to be a relative path: "+path);
+	for ( String seg : path.split("[/\\\\]") )
+	    if ( seg.equals("..") )
+		throw new IllegalArgumentException("out= must not contain '..': "+path);
+	final File base = outDir.getCanonicalFile();
+	final File ret  = new File( base, path ).getCanonicalFile();
+	if ( !ret.toPath().startsWith( base.toPath() ))
+	    throw new IllegalArgumentException("out= outside the output folder: "+path);
+	final File dir = ret.getParentFile();
+	if ( !dir.isDirectory() && !dir.mkdirs() )
+	    throw new IOException("Cannot create "+dir);
+	return ret;
+    }
+
+    /** Warm up: run a few jobs on a synthetic image, so the
+     *  first real job does not pay for initialization */
+    static void warmUp() throws IOException {
+	final long t0 = System.nanoTime();
+	final File topo = File.createTempFile( "gica-warmup", ".tif" );
+	final int sz = 128;
+	Random rnd = new Random( 42 );
+	ImageStack is = new ImageStack( sz, sz );
+	float [] common = new float[ sz*sz ];
+	for (int i=0; i<sz*sz; i++) common[i] = (float)rnd.nextGaussian();
+	for (int c=0; c<2; c++) {
+	    float [] px = new float[ sz*sz ];
+	    for (int i=0; i<sz*sz; i++) 
+		px[i] = (float)rnd.nextGaussian() + common[i];
+	    is.addSlice( "ch"+c, new FloatProcessor( sz, sz, px ));
+	}
+	ImagePlus imp = new ImagePlus( "warm-up", is );
+	
+	for ( GammaNorm.Estimator e : GammaNorm.Estimator.values() ) {
+	    BatchJob job = BatchJob.parse( new String [] { "roi=0,0,64,64", 
+		"roi=32,32,96,96", "bin=16" }, 0 );
+	    job.params.estimator( e );
+	    for (int i=0; i<3; i++) {
+		// (the topology is slow with Monte Carlo, so only once)
+		job.topology = ( i == 0 );
+		job.run( imp, ( job.topology )?( topo ):( null ));
+	    }
+	}
+	if ( !topo.delete() )
+	    topo.deleteOnExit();
+	Metrics.reset();
+	Tools.log(String.format("Warm-up done, %.0f ms", (System.nanoTime()-t0)/1e6),
+	    Tools.LL.INFO);
+    }
+
+    /** Warm up, then accept connections until 'shutdown' */
+    void serve() throws IOException {
+	warmUp();
+	writeToken();
+	server = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+	running = true;
+	Tools.log("Daemon listening on "+server.getLocalSocketAddress()+", token in "+
+	    tokenFile+", output to "+outDir, Tools.LL.INFO);
+	
+	while ( running ) {
+	    final Socket s;
+	    try {
+		s = server.accept();
+	    } catch ( SocketException e ) {
+		break;	// closed by shutdown
+	    }
+	    clients.execute( new Runnable() {
+		public void run() {
+		    handle( s );
+		}
+	    });
+	}
+	clients.shutdown();
+	SimpleMT.shutdown();
+	Tools.log("Daemon stopped after "+nJobs.get()+" job(s)", Tools.LL.INFO);
+    }
+
+    /** Handle the requests of one connection */
+    private void handle( Socket s ) {
+	try {
+	    BufferedReader in = new BufferedReader( 
+		new InputStreamReader( s.getInputStream(), "UTF-8" ));
+	    PrintWriter out = new PrintWriter( 
+		new OutputStreamWriter( s.getOutputStream(), "UTF-8" ));
+	    // the first line has to be the token
+	    if ( !authorized( in.readLine() )) {
+		out.println("ERR not authorized");
+		out.flush();
+		s.close();
+		return;
+	    }
+	    String line;
+	    while (( line = in.readLine() ) != null ) {
+		line = line.trim();
+		if ( line.length() == 0 ) continue;
+		
+		if ( line.equals("ping") ) {
+		    out.println("OK 0 0");
+		} else if ( line.equals("stats") ) {
+		    out.println("OK 1 0");
+		    out.println("jobs\tms_total");
+		    out.println( nJobs.get()+"\t"+(nsJobs.get()/1000000) );
+		} else if ( line.equals("shutdown") ) {
+		    out.println("OK 0 0");
+		    out.flush();
+		    running = false;
+		    server.close();
+		    break;
+		} else {
+		    runJob( line, out );
+		}
+		out.flush();
+	    }
+	    s.close();
+	} catch ( IOException e ) {
+	    Tools.log("Connection failed: "+e, Tools.LL.ERROR);
+	}
+    }
+
+    /** Run one job request, write the answer */
+    private void runJob( String line, PrintWriter out ) {
+	final long t0 = System.nanoTime();
+	try {
+	    String [] tok = line.split( (line.indexOf('\t')>=0)?("\t"):(" +") );
+	    File topoOut = null;
+	    List<String> jobArgs = new ArrayList<String>();
+	    for (int i=1; i<tok.length; i++) {
+		if ( tok[i].startsWith("out=") ) 
+		    topoOut = outFile( tok[i].substring(4) );
+		else
+		    jobArgs.add( tok[i] );
+	    }
+	    BatchJob job = BatchJob.parse( jobArgs.toArray( new String[0] ), 0 );
+	    if ( topoOut != null ) 
+		job.topology = true;
+	    
+	    BatchJob.Result r = job.run( new File( tok[0] ), topoOut );
+
+	    final long ns = System.nanoTime() - t0;
+	    nJobs.incrementAndGet();
+	    nsJobs.addAndGet( ns );
+	    out.println("OK "+r.meas.size()+" "+(ns/1000000));
+	    out.print( r.toTsv() );
+	} catch ( Exception e ) {
+	    out.println("ERR "+(( e.getMessage() != null )?( e.getMessage() ):( e.toString() )));
+	}
+    }
+
+    /** Send one request to a running daemon, print the answer */
+    static int client( int port, File tokenFile, String request ) throws IOException {
+	final String tok = new String( Files.readAllBytes( tokenFile.toPath() ), 
+	    StandardCharsets.UTF_8 ).trim();
+	Socket s = new Socket( InetAddress.getLoopbackAddress(), port );
+	PrintWriter out = new PrintWriter( 
+	    new OutputStreamWriter( s.getOutputStream(), "UTF-8" ));
+	BufferedReader in = new BufferedReader( 
+	    new InputStreamReader( s.getInputStream(), "UTF-8" ));
+	out.println( tok );
+	out.println( request );
+	out.flush();
+	
+	String head = in.readLine();
+	int ret = 1;
+	if ( head != null ) {
+	    System.out.println( head );
+	    if ( head.startsWith("OK ") ) {
+		ret = 0;
+		final int n = Integer.parseInt( head.split(" ")[1] );
+		// header line and n rows (none for ping / shutdown)
+		for (int i=0; i<((n>0)?(n+1):(0)); i++)
+		    System.out.println( in.readLine() );
+	    }
+	}
+	s.close();
+	return ret;
+    }
+
+    /** Command line: start the daemon, or send a request */
+    public static void main( String [] args ) throws Exception {
+	
+	// options: port, token file, output folder
+	int port = DEFAULT_PORT;
+	File tokenFile = DEFAULT_TOKEN, outDir = new File(".");
+	List<String> rest = new ArrayList<String>();
+	for ( String a : args ) {
+	    if (( rest.size() < 2 )&&( a.startsWith("token=") ))
+		tokenFile = new File( a.substring(6) );
+	    else if (( rest.size() < 2 )&&( a.startsWith("outdir=") ))
+		outDir = new File( a.substring(7) );
+	    else if (( rest.size() < 2 )&&( a.matches("[0-9]+") )&&
+		(( rest.isEmpty() )||( rest.get(0).equals("--client") )))
+		port = Integer.parseInt( a );
+	    else
+		rest.add( a );
+	}
+
+	if (( rest.size() > 0 )&&( rest.get(0).equals("--client") )) {
+	    StringBuilder req = new StringBuilder();
+	    for (int i=1; i<rest.size(); i++)
+		req.append( (i>1)?("\t"):("") ).append( rest.get(i) );
+	    System.exit( client( port, tokenFile, req.toString() ));
+	}
+	if ( rest.size() > 0 ) {
+	    System.out.println("Usage: GICA_Daemon [port] [outdir=dir] [token=file]");
+	    System.out.println("       GICA_Daemon --client [port] [token=file] file.tif [parameters]");
+	    System.out.println("       GICA_Daemon --client [port] [token=file] ping|stats|shutdown");
+	    return;
+	}
+	new GICA_Daemon( port, outDir, tokenFile ).serve();
+    }
+
+}
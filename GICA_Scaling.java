@@ -0,0 +1,311 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Plot;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/** End-to-end scaling harness: synthetic multi-channel images with 
+ *  known spots (density, colocalized fraction, noise) are run through
+ *  GammaNorm construction, measureRoi (full image) and getGammaStack,
+ *  for a matrix of image sizes, channel counts and thread counts.
+ *  The serial baseline uses SimpleMT.useParallel(false), the parallel
+ *  runs SimpleMT.setNumThreads. Writes to the output folder:
+ *  <pre>
+ *  scaling.tsv		median time per stage, speedup and efficiency
+ *  accuracy.tsv	gamma maps and col. fraction vs. the ground truth
+ *  speedup-*.png	speedup curves (largest size, per channel count)
+ *  </pre>
+ *  Usage: GICA_Scaling [out=gica-scaling] [sizes=256,512,1024] 
+ *  [channels=2,4,8] [threads=1,2,4,..] [reps=3] [density=0.002] 
+ *  [colfrac=0.5] [noise=0.1] [stackmax=512] [job parameters, see BatchJob] */
+public class GICA_Scaling {
+
+    static final String [] STAGES = { "gammanorm", "measure", "gammastack" };
+
+    int [] sizes = { 256, 512, 1024 };
+    int [] channels = { 2, 4, 8 };
+    int [] threads;
+    int reps = 3;
+    double density = 0.002, coloc = 0.5, noise = 0.1;	// see synth
+    int stackMax = 512;		// largest size getGammaStack is run for
+    File out = new File("gica-scaling");
+    BatchJob job = new BatchJob();
+
+    /** ms per [size][channels][threads][stage], 'threads' index 0 is serial */
+    private double [][][][] ms;
+
+    GICA_Scaling() {
+	// 1, 2, 4, ... up to the number of cores (and the cores themselves)
+	final int nCpu = Runtime.getRuntime().availableProcessors();
+	List<Integer> t = new ArrayList<Integer>();
+	for (int n=1; n<nCpu; n*=2) t.add( n );
+	t.add( nCpu );
+	threads = new int[ t.size() ];
+	for (int i=0; i<threads.length; i++) threads[i] = t.get(i);
+    }
+
+    // ------ synthetic images ------
+
+    /** A synthetic image: 'nc' channels of Gaussian spots (sigma 2 pxl,
+     *  amplitude 1) on a background of 0.1 with Gaussian noise. A fraction
+     *  'col' of the spots of each channel &gt; 0 sits on a spot of channel 0,
+     *  the rest is placed at random. 'truth' receives, per channel, the 
+     *  pixels within the half maximum of a spot. */
+    static ImageStack synth( int size, int nc, double density, double col, 
+	double noise, long seed, byte [][] truth ) {
+	
+	final Random rnd = new Random( seed );
+	final double sigma = 2, rHalf2 = 2*Math.log(2)*sigma*sigma;
+	final int nSpots = Math.max( 1, (int)( density*size*size ));
+	final int rad = (int)Math.ceil( 3*sigma );
+	
+	final int [] x0 = new int[ nSpots ], y0 = new int[ nSpots ];
+	for (int s=0; s<nSpots; s++) {
+	    x0[s] = rnd.nextInt( size ); y0[s] = rnd.nextInt( size );
+	}
+
+	ImageStack ret = new ImageStack( size, size );
+	for (int c=0; c<nc; c++) {
+	    final float [] px = new float[ size*size ];
+	    truth[c] = new byte[ size*size ];
+	    for (int s=0; s<nSpots; s++) {
+		final boolean onRef = ( c == 0 )||( rnd.nextDouble() < col );
+		final int sx = ( onRef )?( x0[s] ):( rnd.nextInt( size ));
+		final int sy = ( onRef )?( y0[s] ):( rnd.nextInt( size ));
+		for (int y=Math.max(0,sy-rad); y<Math.min(size,sy+rad+1); y++)
+		for (int x=Math.max(0,sx-rad); x<Math.min(size,sx+rad+1); x++) {
+		    final double r2 = (x-sx)*(x-sx)+(y-sy)*(y-sy);
+		    px[ y*size+x ] += (float)Math.exp( -r2/(2*sigma*sigma) );
+		    if ( r2 <= rHalf2 ) truth[c][ y*size+x ] = 1;
+		}
+	    }
+	    for (int i=0; i<px.length; i++) 
+		px[i] += 0.1f + (float)( noise*rnd.nextGaussian() );
+	    ret.addSlice( "ch"+c, new FloatProcessor( size, size, px ));
+	}
+	return ret;
+    }
+
+    // ------ the runs ------
+
+    /** Run the whole matrix, write the results */
+    void run() throws IOException {
+	
+	if ( !out.isDirectory() && !out.mkdirs() )
+	    throw new IOException("Cannot create "+out);
+	final GammaParams p = job.params.build();
+	ms = new double[ sizes.length ][ channels.length ][ threads.length+1 ][ STAGES.length ];
+	
+	PrintWriter acc = new PrintWriter( new FileWriter( new File( out, "accuracy.tsv" )));
+	acc.println("size\tchannels\tdensity\tcoloc\tnoise\trecall\tprecision\t"+
+	    "colRel_true\tcolRel_meas\tcolRel_err\tgNorm\tgNormErr");
+
+	// warm up the JIT, so the first (serial) runs are not penalized
+	time( synth( sizes[0], channels[0], density, coloc, noise, 1, 
+	    new byte[ channels[0] ][] ), p, true );
+	
+	for (int si=0; si<sizes.length; si++)
+	for (int ci=0; ci<channels.length; ci++) {
+	    final int size = sizes[si], nc = channels[ci];
+	    final byte [][] truth = new byte[ nc ][];
+	    final ImageStack is = synth( size, nc, density, coloc, noise, 
+		31L*size+nc, truth );
+
+	    // accuracy (same for all thread counts)
+	    GammaNorm gn = new GammaNorm( is, job.thrFac, job.stats, job.localRadius, p );
+	    GICAmeasurement gm = new GICAmeasurement( 0, 0, size, size, "synth" );
+	    gn.measureRoi( gm, p );
+	    acc.println( accuracy( gn, gm, truth, size, nc ));
+	    acc.flush();
+
+	    // timing: serial, then each thread count
+	    for (int ti=0; ti<=threads.length; ti++) {
+		SimpleMT.useParallel( ti > 0 );
+		if ( ti > 0 ) SimpleMT.setNumThreads( threads[ti-1] );
+		ms[si][ci][ti] = time( is, p, size <= stackMax );
+		Tools.log( String.format( Locale.US, "scaling: %d^2, %d ch, %s: "+
+		    "gamma norm %.1f ms, measure %.1f ms, gamma stack %.1f ms",
+		    size, nc, (ti==0)?("serial"):(threads[ti-1]+" thr"),
+		    ms[si][ci][ti][0], ms[si][ci][ti][1], ms[si][ci][ti][2] ), 
+		    Tools.LL.INFO );
+	    }
+	}
+	acc.close();
+	SimpleMT.useParallel( true );
+	SimpleMT.setNumThreads( Runtime.getRuntime().availableProcessors() );
+	
+	writeScaling();
+	plots();
+    }
+
+    /** Median times (ms) of the stages over 'reps' runs (after one warm-up) */
+    double [] time( ImageStack is, GammaParams p, boolean withStack ) {
+	
+	final double [][] t = new double[ STAGES.length ][ reps ];
+	for (int r=-1; r<reps; r++) {
+	    long t0 = System.nanoTime();
+	    GammaNorm gn = new GammaNorm( is, job.thrFac, job.stats, job.localRadius, p );
+	    long t1 = System.nanoTime();
+	    gn.measureRoi( new GICAmeasurement( 0, 0, is.getWidth(), is.getHeight(), 
+		"synth" ), p );
+	    long t2 = System.nanoTime();
+	    final boolean stack = withStack && stackFits( gn );
+	    if ( stack ) 
+		gn.getGammaStack( p );
+	    long t3 = System.nanoTime();
+	    if ( r < 0 ) continue;
+	    t[0][r] = (t1-t0)/1e6; 
+	    t[1][r] = (t2-t1)/1e6;
+	    t[2][r] = ( stack )?( (t3-t2)/1e6 ):( Double.NaN );
+	}
+	double [] ret = new double[ STAGES.length ];
+	for (int s=0; s<STAGES.length; s++) {
+	    Arrays.sort( t[s] );
+	    ret[s] = t[s][ reps/2 ];
+	}
+	return ret;
+    }
+
+    /** If the gamma stack (two float images per pair) fits comfortably */
+    private static boolean stackFits( GammaNorm gn ) {
+	final long slices = 2L*( (gn.cCount-1)*(gn.cCount-1) + gn.cCount + 1 );
+	final Runtime rt = Runtime.getRuntime();
+	return 4L*gn.width*gn.height*slices < rt.maxMemory()/4;
+    }
+
+    /** Recall and precision of the gamma maps (per channel, averaged), and
+     *  the col. pixel fraction measured vs. the one of the true spots */
+    String accuracy( GammaNorm gn, GICAmeasurement gm, byte [][] truth, 
+	int size, int nc ) {
+	
+	double recall = 0, precision = 0;
+	long colTrue = 0;
+	for (int c=0; c<nc; c++) {
+	    final byte [] g = gn.gDats[c].gammas;
+	    long tp=0, nt=0, ng=0;
+	    for (int i=0; i<g.length; i++) {
+		tp += g[i] & truth[c][i]; nt += truth[c][i]; ng += g[i];
+	    }
+	    recall    += (nt>0)?( tp/(double)nt ):(1);
+	    precision += (ng>0)?( tp/(double)ng ):(1);
+	}
+	for (int i=0; i<size*size; i++) {
+	    int all = 1;
+	    for (int c=0; c<nc; c++) all &= truth[c][i];
+	    colTrue += all;
+	}
+	final double colRel = colTrue/(double)size/size;
+	return String.format( Locale.US, "%d\t%d\t%g\t%g\t%g\t%.4f\t%.4f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f",
+	    size, nc, density, coloc, noise, recall/nc, precision/nc, colRel, gm.colPx, 
+	    gm.colPx-colRel, gm.gNorm, gm.gNormErr );
+    }
+
+    // ------ output ------
+
+    /** Speedup (vs. serial) and efficiency (speedup / threads) table */
+    void writeScaling() throws IOException {
+	PrintWriter pw = new PrintWriter( new FileWriter( new File( out, "scaling.tsv" )));
+	pw.println("size\tchannels\tthreads\tstage\tms\tspeedup\tefficiency");
+	for (int si=0; si<sizes.length; si++)
+	for (int ci=0; ci<channels.length; ci++)
+	for (int s=0; s<STAGES.length; s++) 
+	for (int ti=0; ti<=threads.length; ti++) {
+	    final double t = ms[si][ci][ti][s], sp = ms[si][ci][0][s] / t;
+	    final int nt = (ti==0)?(1):(threads[ti-1]);
+	    pw.println( String.format( Locale.US, "%d\t%d\t%s\t%s\t%.2f\t%.3f\t%.3f",
+		sizes[si], channels[ci], (ti==0)?("serial"):(""+nt), STAGES[s],
+		t, sp, sp/nt ));
+	}
+	pw.close();
+    }
+
+    /** Speedup curves per stage: largest size, one line per channel count */
+    void plots() {
+	final int si = sizes.length-1;
+	final double [] x = new double[ threads.length ];
+	for (int i=0; i<x.length; i++) x[i] = threads[i];
+	for (int s=0; s<STAGES.length; s++) {
+	    Plot pl = new Plot( "Speedup "+STAGES[s]+" ("+sizes[si]+"^2)", 
+		"threads", "speedup vs. serial" );
+	    pl.setLimits( 0, x[ x.length-1 ]+1, 0, x[ x.length-1 ]+1 );
+	    pl.setColor( java.awt.Color.GRAY );
+	    pl.addPoints( x, x, Plot.LINE );	// ideal
+	    StringBuilder legend = new StringBuilder("ideal");
+	    for (int ci=0; ci<channels.length; ci++) {
+		final double [] y = new double[ threads.length ];
+		for (int ti=0; ti<threads.length; ti++)
+		    y[ti] = ms[si][ci][0][s] / ms[si][ci][ti+1][s];
+		pl.setColor( java.awt.Color.getHSBColor( ci/(float)channels.length, 1, 0.8f ));
+		pl.addPoints( x, y, Plot.CONNECTED_CIRCLES );
+		legend.append("\n").append( channels[ci] ).append(" channels");
+	    }
+	    pl.addLegend( legend.toString() );
+	    new FileSaver( pl.getImagePlus() ).saveAsPng( 
+		new File( out, "speedup-"+STAGES[s]+".png" ).getPath() );
+	}
+    }
+
+    /** Parse a comma separated list of ints */
+    static int [] ints( String v ) {
+	String [] s = v.split(",");
+	int [] ret = new int[ s.length ];
+	for (int i=0; i<s.length; i++) ret[i] = Integer.parseInt( s[i].trim() );
+	return ret;
+    }
+
+    public static void main( String [] args ) throws Exception {
+	
+	GICA_Scaling sc = new GICA_Scaling();
+	List<String> jobArgs = new ArrayList<String>();
+	for ( String a : args ) {
+	    final String v = a.substring( a.indexOf('=')+1 );
+	    if ( a.startsWith("out=") )		  sc.out = new File( v );
+	    else if ( a.startsWith("sizes=") )	  sc.sizes = ints( v );
+	    else if ( a.startsWith("channels=") ) sc.channels = ints( v );
+	    else if ( a.startsWith("threads=") )  sc.threads = ints( v );
+	    else if ( a.startsWith("reps=") )	  sc.reps = Integer.parseInt( v );
+	    else if ( a.startsWith("density=") )  sc.density = Double.parseDouble( v );
+	    else if ( a.startsWith("colfrac=") )  sc.coloc = Double.parseDouble( v );
+	    else if ( a.startsWith("noise=") )	  sc.noise = Double.parseDouble( v );
+	    else if ( a.startsWith("stackmax=") ) sc.stackMax = Integer.parseInt( v );
+	    else jobArgs.add( a );
+	}
+	for ( int c : sc.channels )
+	    if (( c < 2 )||( c > 8 ))
+		throw new IllegalArgumentException("Channel counts have to be 2 - 8");
+	sc.job = BatchJob.parse( jobArgs.toArray( new String[0] ), 0 );
+	sc.run();
+	Tools.log("Scaling results in "+sc.out, Tools.LL.INFO);
+	SimpleMT.shutdown();
+    }
+
+}
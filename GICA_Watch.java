@@ -0,0 +1,363 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Watch-folder mode for live acquisition: TIFF files appearing in a 
+ *  folder are analysed (as BatchJob) as they land, results are written
+ *  to an output folder. Files are processed on a worker pool with a
+ *  bounded queue; if it is full, the watcher blocks (backpressure) 
+ *  instead of piling up images in memory. For each file, the latency
+ *  from arrival to written result and the queue depth are logged.
+ *  All measurements are also appended to one table, gica-results.tsv.
+ *  <pre>
+ *  GICA_Watch dir outDir [workers=2] [queue=8] [settle=200] [job parameters]
+ *  GICA_Watch --selftest [nFiles]
+ *  </pre> */
+public class GICA_Watch {
+
+    final File dir, outDir;
+    final BatchJob job;
+    final int nWorkers, queueSize;
+    long settleMs = 200;	// a file has landed if its size is stable for this long
+
+    private final ThreadPoolExecutor pool;
+    private final Set<String> seen = 
+	Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private final AtomicInteger nDone = new AtomicInteger(), nFailed = new AtomicInteger();
+    private final RunningStat latency = new RunningStat();
+    private long maxLatency = 0;
+    private volatile boolean running;
+    private Thread watcher;
+    private PrintWriter log;
+    final ResultTableModel results = new ResultTableModel();
+
+    /** Set up a watcher (started by 'start') */
+    GICA_Watch( File d, File o, BatchJob j, int workers, int queue ) {
+	dir = d; outDir = o; job = j; 
+	nWorkers = workers; queueSize = queue;
+	
+	// backpressure: if the queue is full, the submitting thread waits
+	pool = new ThreadPoolExecutor( nWorkers, nWorkers, 0, TimeUnit.MILLISECONDS,
+	    new ArrayBlockingQueue<Runnable>( queueSize ), new RejectedExecutionHandler() {
+		public void rejectedExecution( Runnable r, ThreadPoolExecutor ex ) {
+		    if ( ex.isShutdown() )
+			throw new RejectedExecutionException("Watcher stopped");
+		    try {
+			ex.getQueue().put( r );
+		    } catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException( e );
+		    }
+		}
+	    });
+    }
+
+    /** Start watching. Files already in the folder are processed
+     *  if they have no result yet. */
+    void start() throws IOException {
+	
+	if ( !outDir.isDirectory() && !outDir.mkdirs() )
+	    throw new IOException("Cannot create "+outDir);
+	log = new PrintWriter( new FileWriter( new File( outDir, "gica-watch.tsv" ), true ));
+	log.println("file\tlatency_ms\topen_ms\tgamma_ms\tmeasure_ms\ttopo_ms\tqueue\tgNorm");
+	log.flush();
+	results.streamTo( new File( outDir, "gica-results.tsv" ));
+
+	final WatchService ws = FileSystems.getDefault().newWatchService();
+	dir.toPath().register( ws, StandardWatchEventKinds.ENTRY_CREATE,
+	    StandardWatchEventKinds.ENTRY_MODIFY );
+	running = true;
+
+	watcher = new Thread("GICA watcher") {
+	    public void run() {
+		scan();
+		try {
+		    while ( running ) {
+			WatchKey key = ws.poll( 100, TimeUnit.MILLISECONDS );
+			if ( key == null ) continue;
+			for ( WatchEvent<?> ev : key.pollEvents() ) {
+			    // events got lost: look at all files
+			    if ( ev.kind() == StandardWatchEventKinds.OVERFLOW ) {
+				scan();
+				continue;
+			    }
+			    Path p = dir.toPath().resolve( (Path)ev.context() );
+			    offer( p.toFile(), System.nanoTime() );
+			}
+			key.reset();
+		    }
+		    ws.close();
+		} catch ( InterruptedException e ) {
+		    // stopped
+		} catch ( IOException e ) {
+		    Tools.log("Watcher failed: "+e, Tools.LL.ERROR);
+		} catch ( RejectedExecutionException e ) {
+		    // stopped while waiting for the queue
+		}
+	    }
+	};
+	watcher.start();
+	Tools.log("Watching "+dir+" ("+nWorkers+" worker(s), queue "+queueSize+")", 
+	    Tools.LL.INFO);
+    }
+
+    /** Stop watching, wait for the queued files to finish */
+    void stop() throws InterruptedException {
+	running = false;
+	watcher.join();
+	pool.shutdown();
+	pool.awaitTermination( 1, TimeUnit.HOURS );
+	log.close();
+	results.closeStream();
+	synchronized ( latency ) {
+	    Tools.log(String.format("Watcher stopped: %d file(s), %d failed, "+
+		"latency mean %.1f ms, max %.1f ms", nDone.get(), nFailed.get(), 
+		latency.mean(), maxLatency/1e6 ), Tools.LL.INFO);
+	}
+    }
+
+    /** Wait until no file is queued or running (or timeout) */
+    boolean awaitIdle( long timeoutMs ) throws InterruptedException {
+	final long end = System.currentTimeMillis() + timeoutMs;
+	while ( System.currentTimeMillis() < end ) {
+	    if (( pool.getQueue().size() == 0 )&&( pool.getActiveCount() == 0 ))
+		return true;
+	    Thread.sleep( 20 );
+	}
+	return false;
+    }
+
+    /** Number of files waiting to be processed */
+    int queueDepth() {
+	return pool.getQueue().size();
+    }
+
+    /** Number of files processed (successfully) */
+    int done() {
+	return nDone.get();
+    }
+
+    /** Queue all (unprocessed) files in the folder */
+    private void scan() {
+	File [] fl = dir.listFiles();
+	if ( fl == null ) return;
+	Arrays.sort( fl );
+	for ( File f : fl )
+	    if ( !resultFile( f ).exists() )
+		offer( f, System.nanoTime() );
+    }
+
+    /** Queue a file, if it is an image not seen before. Blocks if
+     *  the queue is full. */
+    private void offer( final File f, final long arrival ) {
+	final String n = f.getName().toLowerCase();
+	if ( n.startsWith(".") || !( n.endsWith(".tif") || n.endsWith(".tiff") ) 
+	    || n.endsWith("_topology.tif") )
+	    return;
+	if ( !seen.add( f.getName() ) )
+	    return;
+	pool.execute( new Runnable() {
+	    public void run() {
+		process( f, arrival );
+	    }
+	});
+    }
+
+    /** Result (table) file for an image */
+    private File resultFile( File f ) {
+	return new File( outDir, baseName( f )+".gica.tsv" );
+    }
+
+    private static String baseName( File f ) {
+	final String n = f.getName();
+	final int p = n.lastIndexOf('.');
+	return (p>0)?(n.substring(0,p)):(n);
+    }
+
+    /** Wait for the file to land, analyse it, write the results */
+    private void process( File f, long arrival ) {
+	try {
+	    waitStable( f );
+	    BatchJob.Result r = job.run( f, ( job.topology )?
+		( new File( outDir, baseName( f )+"_topology.tif" )):( null ));
+
+	    // write to temp. file and rename, so readers never see partial results
+	    File tmp = new File( outDir, "."+baseName( f )+".gica.tsv" );
+	    PrintWriter pw = new PrintWriter( new FileWriter( tmp ));
+	    pw.print( r.toTsv() );
+	    pw.close();
+	    if ( !tmp.renameTo( resultFile( f ) ))
+		throw new IOException("Cannot write "+resultFile( f ));
+	    results.addAll( r.meas );
+
+	    final long lat = System.nanoTime() - arrival;
+	    final int depth = pool.getQueue().size();
+	    synchronized ( latency ) {
+		latency.add( lat/1e6 );
+		maxLatency = Math.max( maxLatency, lat );
+		log.println( String.format( java.util.Locale.US, 
+		    "%s\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%d\t%.4f", f.getName(), lat/1e6, 
+		    r.nsOpen/1e6, r.nsGamma/1e6, r.nsMeasure/1e6, r.nsTopo/1e6, depth,
+		    r.meas.get(0).gNorm ));
+		log.flush();
+	    }
+	    nDone.incrementAndGet();
+	    Tools.log(String.format("%s: %.1f ms, queue %d", f.getName(), lat/1e6, depth ),
+		Tools.LL.DEBUG);
+	} catch ( Exception e ) {
+	    // allow a retry on the next change to the file
+	    seen.remove( f.getName() );
+	    nFailed.incrementAndGet();
+	    Tools.log("Failed on "+f.getName()+": "+e, Tools.LL.ERROR);
+	}
+    }
+
+    /** Wait until the file size did not change for 'settleMs' */
+    private void waitStable( File f ) throws InterruptedException, IOException {
+	long last = -1;
+	for (int i=0; i<600; i++) {
+	    final long l = f.length();
+	    if (( l > 0 )&&( l == last ))
+		return;
+	    last = l;
+	    Thread.sleep( settleMs );
+	}
+	throw new IOException("File did not settle: "+f);
+    }
+
+
+    /** Command line: watch a folder, or run a self test */
+    public static void main( String [] args ) throws Exception {
+	
+	if (( args.length > 0 )&&( args[0].equals("--selftest") )) {
+	    System.exit( selfTest( (args.length>1)?(Integer.parseInt(args[1])):(10) ) ? 0 : 1 );
+	}
+	if ( args.length < 2 ) {
+	    System.out.println("Usage: GICA_Watch dir outDir [workers=2] [queue=8] "+
+		"[settle=200] [job parameters, see BatchJob]");
+	    System.out.println("       GICA_Watch --selftest [nFiles]");
+	    return;
+	}
+
+	// watcher parameters, the rest is for the job
+	int workers = 2, queue = 8;
+	long settle = 200;
+	List<String> jobArgs = new ArrayList<String>();
+	for (int i=2; i<args.length; i++) {
+	    if ( args[i].startsWith("workers=") ) 
+		workers = Integer.parseInt( args[i].substring(8) );
+	    else if ( args[i].startsWith("queue=") )
+		queue = Integer.parseInt( args[i].substring(6) );
+	    else if ( args[i].startsWith("settle=") )
+		settle = Long.parseLong( args[i].substring(7) );
+	    else 
+		jobArgs.add( args[i] );
+	}
+	
+	final GICA_Watch w = new GICA_Watch( new File( args[0] ), new File( args[1] ),
+	    BatchJob.parse( jobArgs.toArray( new String[0] ), 0 ), workers, queue );
+	w.settleMs = settle;
+	Runtime.getRuntime().addShutdownHook( new Thread() {
+	    public void run() {
+		try { w.stop(); } catch ( InterruptedException e ) {}
+	    }
+	});
+	w.start();
+    }
+
+    /** For testing: a harness writes synthetic two-channel TIFFs 
+     *  into a temporary folder while it is watched */
+    static boolean selfTest( int nFiles ) throws Exception {
+	
+	File base = File.createTempFile( "gica-watch", "" );
+	base.delete();
+	final File in = new File( base, "in" ), out = new File( base, "out" );
+	in.mkdirs();
+	
+	BatchJob job = BatchJob.parse( new String [] { 
+	    "estimator=analytic", "roi=0,0,64,64", "roi=64,64,64,64" }, 0 );
+	GICA_Watch w = new GICA_Watch( in, out, job, 2, 2 );
+	w.settleMs = 50;
+	w.start();
+
+	// the harness: write files, the first half colocalized
+	Random rnd = new Random( 42 );
+	for (int n=0; n<nFiles; n++) {
+	    final int sz = 128;
+	    ImageStack is = new ImageStack( sz, sz );
+	    float [] common = new float[ sz*sz ];
+	    for (int i=0; i<sz*sz; i++) common[i] = (float)rnd.nextGaussian();
+	    for (int c=0; c<2; c++) {
+		float [] px = new float[ sz*sz ];
+		for (int i=0; i<sz*sz; i++) 
+		    px[i] = (float)rnd.nextGaussian() + ((n<nFiles/2)?(2*common[i]):(0));
+		is.addSlice( "ch"+c, new FloatProcessor( sz, sz, px ));
+	    }
+	    new FileSaver( new ImagePlus( "img"+n, is )).saveAsTiffStack( 
+		new File( in, String.format("img%03d.tif", n) ).getPath() );
+	    Tools.log("harness: wrote img"+n+", queue "+w.queueDepth(), Tools.LL.DEBUG);
+	}
+
+	boolean ok = w.awaitIdle( 60000 );
+	// (files written after the last poll may still be picked up)
+	Thread.sleep( 500 );
+	ok &= w.awaitIdle( 60000 );
+	w.stop();
+	
+	for (int n=0; n<nFiles; n++)
+	    ok &= new File( out, String.format("img%03d.gica.tsv", n) ).exists();
+	ok &= ( w.done() == nFiles );
+	ok &= ( w.results.size() == nFiles*job.rois.size() );
+	Tools.log("Self test "+((ok)?("passed"):("FAILED"))+", results in "+out, 
+	    Tools.LL.INFO);
+	SimpleMT.shutdown();
+	return ok;
+    }
+
+}
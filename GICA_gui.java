@@ -18,16 +18,17 @@ along with GICA.  If not, see <http://www.gnu.org/licenses/>
 package de.bio_photonics.gica;
 
 
-import javax.swing.JEditorPane;
-import javax.swing.JTextPane;
 import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
 import javax.swing.JButton;
 import javax.swing.JPanel;
-import javax.swing.text.html.HTMLDocument;
+import javax.swing.SwingWorker;
 
 import java.awt.BorderLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.awt.Dimension;
 import java.awt.Rectangle;
 
 import java.util.List;
@@ -36,7 +37,10 @@ import java.util.ArrayList;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.plugin.PlugIn;
+import ij.plugin.frame.RoiManager;
 
 
 /** GUI to display GICA measurements */
@@ -44,16 +48,17 @@ public class GICA_gui implements
     Runnable, PlugIn {
 
 
-    JTextPane resultTable;
+    JTable    resultTable;
     JButton   measureButton;
+    JButton   measureAllButton;
+    JButton   timeLapseButton;
     JButton   topologyButton;
+    JButton   zoomTopologyButton;
     JButton   resetGammaButton;
-    JButton   clearTable, saveTable;
+    JButton   clearTable, saveTable, showTable;
+    JButton   exportMetrics;
 
-    List<GICAmeasurement> gmeasure;
-    {
-	gmeasure = new ArrayList<GICAmeasurement>();
-    }
+    final ResultTableModel gmeasure = new ResultTableModel();
 
 
     /** run method for ImageJ plugin interface */
@@ -68,50 +73,87 @@ public class GICA_gui implements
     public void run() { 
 
 	// the result table
-	resultTable = new JTextPane();
-	resultTable.setContentType("text/html");
-	resultTable.setText(paramToHtmlTable());
-	resultTable.setEditable(false);
-
-	JPanel resultTablePanel = new JPanel();
-	resultTablePanel.add( resultTable );
+	resultTable = new JTable( gmeasure );
+	resultTable.setAutoCreateRowSorter( true );
+	JScrollPane resultTablePanel = new JScrollPane( resultTable );
+	resultTablePanel.setPreferredSize( new Dimension( 900, 300 ));
 	
 	// the control buttons
 	measureButton    = new JButton("measure ROI");
+	measureAllButton = new JButton("measure all");
+	timeLapseButton  = new JButton("time-lapse");
 	topologyButton   = new JButton("create topology");
+	zoomTopologyButton = new JButton("zoomable topology");
 	resetGammaButton = new JButton("(re)set parameters");
 	measureButton.addActionListener( new ActionListener() {
 	    public void actionPerformed(ActionEvent e) {
 		measureRoi();
 	    }
 	});
+	measureAllButton.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		measureAllRois();
+	    }
+	});
+	timeLapseButton.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		measureTimeLapse();
+	    }
+	});
 	topologyButton.addActionListener( new ActionListener() {
 	    public void actionPerformed(ActionEvent e) {
 		createTopology();
 	    }
 	});
+	zoomTopologyButton.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		createZoomableTopology();
+	    }
+	});
 	resetGammaButton.addActionListener( new ActionListener() {
 	    public void actionPerformed(ActionEvent e) {
 		getGammaNorm( null, true);
 	    }
 	});
 
+	exportMetrics = new JButton("export metrics");
+	exportMetrics.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		saveMetrics();
+	    }
+	});
+
 	clearTable = new JButton("clear table");
-	//saveTable  = new JButton("save table");
+	saveTable  = new JButton("save table");
+	showTable  = new JButton("to results");
 	clearTable.addActionListener( new ActionListener() {
 	    public void actionPerformed(ActionEvent e) {
 		gmeasure.clear();
-		resultTable.setText(paramToHtmlTable());
+	    }
+	});
+	saveTable.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		saveTable();
+	    }
+	});
+	showTable.addActionListener( new ActionListener() {
+	    public void actionPerformed(ActionEvent e) {
+		gmeasure.toResultsTable().show("GICA results");
 	    }
 	});
 	
 
 	JPanel buttonPanel = new JPanel();
 	buttonPanel.add( measureButton);
+	buttonPanel.add( measureAllButton);
+	buttonPanel.add( timeLapseButton);
 	buttonPanel.add(topologyButton);
+	buttonPanel.add(zoomTopologyButton);
 	buttonPanel.add(resetGammaButton);
 	buttonPanel.add(clearTable);
-	//buttonPanel.add(saveTable);
+	buttonPanel.add(saveTable);
+	buttonPanel.add(showTable);
+	buttonPanel.add(exportMetrics);
 	
 	// the GUI frame
 	JFrame guiFrame = new JFrame("GICA analysis");
@@ -137,13 +179,13 @@ public class GICA_gui implements
 	
 	// get the ROI
 	Roi curRoi = aip.getRoi();
-	if (( curRoi == null )||(!curRoi.isArea())||(curRoi.getMask()!=null)){
-	    Tools.log("Please select an rectangular area via ROI", Tools.LL.PARAMFAIL);
+	if (( curRoi == null )||(!curRoi.isArea())){
+	    Tools.log("Please select an area via ROI", Tools.LL.PARAMFAIL);
 	    return;
 	}
 
 	// get the GammaNorm for the image
-	GammaNorm gn = getGammaNorm(aip,false);
+	GammaBase gn = getGammaNorm(aip,false);
 	if (gn==null) {
 	    Tools.log("No gamma norm available",Tools.LL.INFO);
 	    return;
@@ -152,24 +194,204 @@ public class GICA_gui implements
 
 	// setup the measurement
 	Tools.log("Starting ROI measurement",Tools.LL.INFO);
-	Rectangle area = curRoi.getBounds();
-	GICAmeasurement ret = new GICAmeasurement(
-	    area.x, area.y, area.width, area.height, aip.getTitle());
+	RoiPixels area = RoiPixels.fromRoi( curRoi, gn.width, gn.height );
+	if (( area == null )||( area.count() < 2 )) {
+	    Tools.log("ROI does not cover the image", Tools.LL.PARAMFAIL);
+	    return;
+	}
+	GICAmeasurement ret = new GICAmeasurement( area, aip.getTitle());
 
 	
 	// run the measurement
-	Timing t1 = new Timing();
-	t1.start();
+	final long t0 = Metrics.start();
 	gn.measureRoi( ret );
-	t1.stop();
-	Tools.log("Gamma measure done "+t1,Tools.LL.INFO);
+	Tools.log("Gamma measure done "+Metrics.ms( Metrics.since(t0) ),Tools.LL.INFO);
 
 	// add the result
 	gmeasure.add( ret );
 
-	// redraw the table
-	resultTable.setText(paramToHtmlTable());
+    }
+
+
+    /** Measure all ROIs in the RoiManager (or, if there are none,
+     *  a grid of ROIs tiling the image) in parallel */
+    void measureAllRois() {
+	
+	// get the active Image
+	final ImagePlus aip = ij.WindowManager.getCurrentImage();
+	if ( aip == null ) {
+	    Tools.log("No image selected", Tools.LL.PARAMFAIL);
+	    return;
+	}
+	
+	// get the GammaNorm for the image
+	final GammaBase gn = getGammaNorm(aip,false);
+	if (gn==null) {
+	    Tools.log("No gamma norm available",Tools.LL.INFO);
+	    return;
+	}
+
+	// get the ROIs from the manager, a label image, or tile the image
+	final List<GICAmeasurement> res = new ArrayList<GICAmeasurement>();
+	RoiManager rm = RoiManager.getInstance();
+	
+	if (( rm != null ) && ( rm.getCount() > 0 )) {
+	    for ( Roi r : rm.getRoisAsArray() ) {
+		RoiPixels rp = RoiPixels.fromRoi( r, gn.width, gn.height );
+		if (( rp == null )||( rp.count()<2 )) {
+		    Tools.log("Skipping ROI "+r.getName(), Tools.LL.INFO);
+		    continue;
+		}
+		res.add( new GICAmeasurement( rp, aip.getTitle()));
+	    }
+	} else {
+	    // offer tiling, or any image of matching size as label image
+	    List<String> src = new ArrayList<String>();
+	    src.add("tile grid");
+	    for ( int id : ij.WindowManager.getIDList() ) {
+		ImagePlus l = ij.WindowManager.getImage(id);
+		if (( l.getWidth() == gn.width )&&( l.getHeight() == gn.height )
+		    &&( l.getType() != ImagePlus.COLOR_RGB ))
+		    src.add( l.getTitle() );
+	    }
+
+	    GenericDialog gd = new GenericDialog("GICA measure all");
+	    gd.addMessage("No ROIs in RoiManager, measure:");
+	    gd.addChoice("ROIs from", src.toArray(new String[0]), src.get(0));
+	    gd.addNumericField("tile width", 64, 0);
+	    gd.addNumericField("tile height", 64, 0);
+	    gd.showDialog();
+	    if (gd.wasCanceled()) return;
+	    final int choice = gd.getNextChoiceIndex();
+	    final int tw = (int)gd.getNextNumber();
+	    final int th = (int)gd.getNextNumber();
+	   
+	    if ( choice == 0 ) {
+		if ((tw<2)||(th<2)) {
+		    Tools.log("Tiles have to be at least 2x2 pxl", Tools.LL.PARAMFAIL);
+		    return;
+		}
+		for (int y=0; y+th<=gn.height; y+=th)
+		for (int x=0; x+tw<=gn.width;  x+=tw)
+		    res.add( new GICAmeasurement( x, y, tw, th, aip.getTitle()));
+	    } else {
+		ImagePlus lbl = ij.WindowManager.getImage( src.get(choice) );
+		for ( RoiPixels rp : RoiPixels.fromLabels( lbl.getProcessor() ))
+		    if ( rp.count() >= 2 )
+			res.add( new GICAmeasurement( rp, 
+			    aip.getTitle()+":"+rp.label ));
+	    }
+	}
+
+	if ( res.size() == 0 ) {
+	    Tools.log("No ROIs to measure", Tools.LL.PARAMFAIL);
+	    return;
+	}
+	
+	Tools.log("Starting measurement of "+res.size()+" ROIs",Tools.LL.INFO);
+	measureAllButton.setEnabled(false);
+
+	// run the measurements, append them all at once when done
+	class MeasureAll extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		final long t0 = Metrics.start();
+		gn.measureRois( res );
+		Tools.log("Gamma measure ("+res.size()+" ROIs) done "+
+		    Metrics.ms( Metrics.since(t0) ),Tools.LL.INFO);
+		return null;
+	    }
+	    @Override
+	    protected void done() {
+		try {
+		    get();
+		    gmeasure.addAll( res );
+		} catch ( Exception e ) {
+		    Tools.log("Gamma measure failed: "+e, Tools.LL.ERROR);
+		}
+		measureAllButton.setEnabled(true);
+	    }
+	};
+
+	(new MeasureAll()).execute();
+    }
+
+
+    /** Measure the current ROI (or all ROIs in the RoiManager, or
+     *  the full image) in every frame of a time-lapse */
+    void measureTimeLapse() {
+	
+	// get the active Image
+	final ImagePlus aip = ij.WindowManager.getCurrentImage();
+	if (( aip == null )||( aip.getNFrames() < 2 )) {
+	    Tools.log("Please select a time-lapse (hyperstack with frames)", 
+		Tools.LL.PARAMFAIL);
+	    return;
+	}
+	
+	// get the GammaNorm (for parameters and channels)
+	final GammaNorm gn = getPlaneGammaNorm( aip, "The time-lapse" );
+	if ((gn==null)||(gn.channels==null)) {
+	    Tools.log("No (2D) gamma norm available",Tools.LL.INFO);
+	    return;
+	}
+
+	// get the ROIs
+	final List<RoiPixels> rois = new ArrayList<RoiPixels>();
+	RoiManager rm = RoiManager.getInstance();
+	if (( rm != null ) && ( rm.getCount() > 0 )) {
+	    for ( Roi r : rm.getRoisAsArray() ) {
+		RoiPixels rp = RoiPixels.fromRoi( r, gn.width, gn.height );
+		if (( rp != null )&&( rp.count()>=2 )) rois.add( rp );
+	    }
+	} else if ( aip.getRoi() != null ) {
+	    RoiPixels rp = RoiPixels.fromRoi( aip.getRoi(), gn.width, gn.height );
+	    if (( rp != null )&&( rp.count()>=2 )) rois.add( rp );
+	} else {
+	    rois.add( RoiPixels.fromRect( 0, 0, gn.width, gn.height ));
+	}
+	if ( rois.size() == 0 ) {
+	    Tools.log("No ROIs to measure", Tools.LL.PARAMFAIL);
+	    return;
+	}
 
+	timeLapseButton.setEnabled(false);
+	final GammaTimeLapse tl = new GammaTimeLapse( aip, gn, aip.getZ() );
+
+	class TimeLapse extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		tl.measure( rois );
+		return null;
+	    }
+	    @Override
+	    protected void done() {
+		try {
+		    get();
+		    tl.toResultsTable().show("GICA time-lapse "+aip.getTitle());
+		    tl.toPlot().show();
+		} catch ( Exception e ) {
+		    Tools.log("Time-lapse failed: "+e, Tools.LL.ERROR);
+		}
+		timeLapseButton.setEnabled(true);
+	    }
+	};
+
+	(new TimeLapse()).execute();
+    }
+
+
+    /** Save the recorded performance metrics (JSON or CSV) */
+    void saveMetrics() {
+	SaveDialog sd = new SaveDialog("Export GICA metrics", "gica-metrics", ".json");
+	if ( sd.getFileName() == null ) return;
+	String path = sd.getDirectory() + sd.getFileName();
+	try {
+	    Metrics.save( path );
+	    Tools.log("Metrics written to "+path, Tools.LL.INFO);
+	} catch ( java.io.IOException e ) {
+	    Tools.log("Could not write metrics: "+e, Tools.LL.PARAMFAIL);
+	}
     }
 
 
@@ -184,17 +406,94 @@ public class GICA_gui implements
 	}
 	
 	// get the correspoding GammaNorm and calculate
-	GammaNorm gn = getGammaNorm( aip, false );
-	if (gn!=null) 
-	    GICA_Analysis.computeGammaTopology(gn);
+	GammaBase gb = getGammaNorm( aip, false );
+	if (gb==null) 
+	    return;
+
+	// volumes have their own topology
+	if ( gb instanceof GammaVolume ) {
+	    GICA_Analysis.computeVolumeTopology( (GammaVolume)gb );
+	    return;
+	}
+	GammaNorm gn = getPlaneGammaNorm( aip, "The topology" );
+	if (gn==null)
+	    return;
+
+	// time-lapse: optionally over a sliding window of frames
+	ImagePlus src = gn.sourceImg;
+	if (( src != null )&&( src.getNFrames() > 1 )&&
+	    ( gn.channels != null )) {
+	    GenericDialog gd = new GenericDialog("GICA topology");
+	    gd.addNumericField("Temporal window (frames, 1: current only)", 1, 0);
+	    gd.showDialog();
+	    if ( gd.wasCanceled() )
+		return;
+	    int k = (int)gd.getNextNumber();
+	    if ( k > 1 ) {
+		if ( k > src.getNFrames() ) {
+		    Tools.log("Window larger than the time-lapse", Tools.LL.PARAMFAIL);
+		    return;
+		}
+		GICA_Analysis.computeTemporalTopology( gn, k );
+		return;
+	    }
+	}
+	GICA_Analysis.computeGammaTopology(gn);
     }
 
 
 
+    /** show the topology of the visible part of the image, following
+     *  pan and zoom (from the multi-resolution gamma pyramid) */
+    void createZoomableTopology() {
+
+	// get the active Image
+	ImagePlus aip = ij.WindowManager.getCurrentImage();
+	if ( aip == null ) {
+	    Tools.log("No image selected", Tools.LL.PARAMFAIL);
+	    return;
+	}
+	
+	final GammaNorm gn = getPlaneGammaNorm( aip, "The zoomable topology" );
+	if (gn==null) 
+	    return;
+	if (( gn.sourceImg == null )||
+	    ( gn.sourceImg.getWindow() == null )||( gn.cCount > 8 )) {
+	    Tools.log("Zoomable topology needs a displayed 2D image (up to 8 channels)",
+		Tools.LL.PARAMFAIL);
+	    return;
+	}
+	if ( gn.params().estimator != GammaNorm.Estimator.ANALYTIC )
+	    Tools.log("Zoomable topology is always computed by the analytic estimator",
+		Tools.LL.INFO);
+
+	// the pyramid is built once, in the background
+	zoomTopologyButton.setEnabled(false);
+	class PyramidBuild extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		gn.pyramid();
+		return null;
+	    }
+	    @Override
+	    protected void done() {
+		try {
+		    get();
+		    new TopologyViewer( gn );
+		} catch ( Exception e ) {
+		    Tools.log("Zoomable topology failed: "+e, Tools.LL.ERROR);
+		}
+		zoomTopologyButton.setEnabled(true);
+	    }
+	};
+	(new PyramidBuild()).execute();
+    }
+
+
     /** Tries to obtain / calculate a GammaNorm for the
      *  given (or active, if aip==null) image. This will
      *  return null if no GammaNorm was obtained. */
-    GammaNorm getGammaNorm(ImagePlus aip, boolean recalc) {
+    GammaBase getGammaNorm(ImagePlus aip, boolean recalc) {
 
 	// get the active Image
 	if (aip==null)
@@ -205,14 +504,14 @@ public class GICA_gui implements
 	}
 
 	// maybe 'aip' is a topology display
-	GammaNorm curGn = 
-	    (GammaNorm)aip.getProperty("bbp.gica.isGammaNormDisplay");
+	GammaBase curGn = 
+	    (GammaBase)aip.getProperty("bbp.gica.isGammaNormDisplay");
 	// if so, set the aip to the source image
 	if (curGn!=null)
 	    aip = curGn.sourceImg;
 	
 	// maybe we have a GammaNorm stored?
-	curGn = (GammaNorm)aip.getProperty("bbp.gica.gammaNorm");
+	curGn = (GammaBase)aip.getProperty("bbp.gica.gammaNorm");
 	// if so, and there is no need to recalc, return the current
 	if ((curGn!=null)&&(!recalc))
 	    return curGn;
@@ -224,15 +523,32 @@ public class GICA_gui implements
 	return curGn;
     }
 
+    /** As getGammaNorm (without recalc), but only for 2D gamma norms,
+     *  as needed by 'what'. Returns null for volumes. */
+    GammaNorm getPlaneGammaNorm( ImagePlus aip, String what ) {
+	GammaBase gb = getGammaNorm( aip, false );
+	if ( gb == null )
+	    return null;
+	if ( !( gb instanceof GammaNorm )) {
+	    Tools.log( what+" needs a 2D gamma norm", Tools.LL.PARAMFAIL );
+	    return null;
+	}
+	return (GammaNorm)gb;
+    }
 
 
-    /** converts the GICA measurements into an html table */
-    String paramToHtmlTable() {
 
-	String ret = "<html><body><h3>GICA result table</h3>";
-	ret+=GICAmeasurement.toHTMLtable( gmeasure );
-	ret+="</body></html>";
-	return ret;
+    /** Save the result table (CSV or TSV, by extension) */
+    void saveTable() {
+	SaveDialog sd = new SaveDialog("Save GICA results", "gica-results", ".tsv");
+	if ( sd.getFileName() == null ) return;
+	String path = sd.getDirectory() + sd.getFileName();
+	try {
+	    gmeasure.save( new java.io.File( path ));
+	    Tools.log("Results written to "+path, Tools.LL.INFO);
+	} catch ( java.io.IOException e ) {
+	    Tools.log("Could not write results: "+e, Tools.LL.PARAMFAIL);
+	}
     }
 
 
@@ -259,7 +575,6 @@ public class GICA_gui implements
 	// clear the table
 	if ( who == clearTable ) {
 	    gmeasure.clear();
-	    resultTable.setText(paramToHtmlTable());
 	}
 
 
@@ -17,62 +17,66 @@ along with GICA.  If not, see <http://www.gnu.org/licenses/>
 
 package de.bio_photonics.gica;
 
-import java.util.List;
+import java.util.Locale;
 
 /** Structure to store (and display) GICA measurements.
- *  TODO: This could go into a result table of Fiji. */
+ *  Many of them are kept in a ResultTableModel. */
 class GICAmeasurement {
 
-    double gNorm, gNormErr, colPx, af, thr;
+    double gNorm, gNormErr, colPx, thr;
+    double af;	// (rMax - gNorm)/rMax, rMax the largest gamma norm possible
     int [] listI;
-    final int x,y,w,h;
+    int bsUsed;	// number of error est. samples run (0: analytic)
+    int nPerm = 0;	// permutation test runs (0: not tested)
+    double pPerm = Double.NaN;	// p-value of the permutation test
+    double nullMean = Double.NaN, nullStd = Double.NaN;	// its null distribution
+    double [] pearson, m1, m2, overlap;	// per channel pair (c<d), if computed
+    final int x,y,w,h;	// bounding box
+    int z=0, d=1;	// z range (volumes)
+    final RoiPixels area;	// the pixels to measure
     final String imgLabel;
 
-    /** Create a measurement */
+    /** Create a measurement (rectangular area) */
     GICAmeasurement(int xi, int yi, int wi, int hi, String l){
-	imgLabel=l; x=xi; y=yi; w=wi; h=hi;
+	this( RoiPixels.fromRect( xi, yi, wi, hi ), l );
+    }
+    
+    /** Create a measurement (arbitrary area) */
+    GICAmeasurement(RoiPixels rp, String l){
+	imgLabel=l; area=rp; 
+	x=rp.x; y=rp.y; w=rp.w; h=rp.h;
     }
 
-    /** Create a HTML table from a list of measurements */
-    public static String toHTMLtable( List<GICAmeasurement> l) {
-	String ret = "<table border=\"1\">";
-	ret+="<tr><th>&#915 norm</th><th>&#916 &#915 norm</th>";
-	ret+="<th>I<sub>col.</sub>(rel.)</th>";
-	ret+="<th>A.F.</th><th>thr</th>";
-	ret+="<th>x</th><th>y</th><th>w</th><th>h</th>";
-	ret+="<th>I<sub>col</sub>,I<sub>l</sub>,I<sub>total</sub></th>";
-	ret+="<th>IMG</th>";
-	for ( GICAmeasurement i : l )
-	    ret+= i.htmlTableRow();
-
-	ret+="</table>";
-	return ret;
+    /** Header line for tab-separated output */
+    static String tsvHeader() {
+	return "label\tgNorm\tgNormErr\tIcolRel\tgNormRel\tthr\tNerr\t"+
+	    "x\ty\tw\th\tz\td\tIcol\tIch\tItotal\tpPerm\tnullMean\tnullStd\t"+
+	    "pearson\tM1\tM2\toverlap";
     }
 
-    /** Create a table row from one measurement */
-    private String htmlTableRow() {
-	String ret = "<tr>";
-	ret += String.format("<td>%2.2f</td>",gNorm);
-	ret += String.format("<td>%2.2f</td>",gNormErr);
-	ret += String.format("<td>%2.2f</td>",colPx);
-	ret += String.format("<td>%2.2f</td>",af);
-	ret += String.format("<td>%2.2f</td>",thr);
-	ret += String.format("<td>%3d</td>",x);
-	ret += String.format("<td>%3d</td>",y);
-	ret += String.format("<td>%3d</td>",w);
-	ret += String.format("<td>%3d</td>",h);
-	
+    /** One measurement as tab-separated line */
+    String tsvRow() {
+	return String.format( Locale.US, "%s\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%d\t"+
+	    "%d\t%d\t%d\t%d\t%d\t%d\t%d\t%s\t%d\t%.6f\t%.6f\t%.6f\t"+
+	    "%.6f\t%.6f\t%.6f\t%.6f", imgLabel, gNorm, gNormErr, 
+	    colPx, af, thr, bsUsed, x, y, w, h, z, d, 
+	    (listI!=null)?(listI[0]):(0), channelCounts(), area.count()*(long)d,
+	    pPerm, nullMean, nullStd, first( pearson ), first( m1 ), 
+	    first( m2 ), first( overlap ));
+    }
 
-	ret += "<td>";
-	for (int i : listI ) ret+=""+i+" / ";
-	ret += ""+(w*h)+"</td>";
+    /** The over-threshold pixels of each channel, as "n1/n2/..." */
+    String channelCounts() {
+	StringBuilder sb = new StringBuilder();
+	for (int i=1; ( listI != null )&&( i<listI.length ); i++)
+	    sb.append( (i>1)?("/"):("") ).append( listI[i] );
+	return sb.toString();
+    }
 
-	if (imgLabel.length()>12)
-	    ret += "<td>"+imgLabel.substring(0,11)+"</td>";
-	else
-	    ret += "<td>"+imgLabel+"</td>";
-	ret+="</tr>";
-	return ret;
+    /** the value of the first channel pair (NaN if not computed),
+     *  for the table columns */
+    static double first( double [] v ) {
+	return (( v != null )&&( v.length>0 ))?( v[0] ):( Double.NaN );
     }
 
 }
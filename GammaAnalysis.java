@@ -0,0 +1,339 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+
+/** Programmatic access to GICA, for scripts (Groovy, Jython, ...) and
+ *  other Java code, without dialogs or windows. An analysis is 
+ *  configured once and can then be applied to any number of images
+ *  (also from several threads), all in the same JVM:
+ *  <pre>
+ *  GammaAnalysis ga = GammaAnalysis.builder()
+ *	.thresholdFactor( 2 ).estimator( "analytic" ).channels( 1, 3 )
+ *	.build();
+ *  GammaAnalysis.Data d = ga.compute( imp.getStack() );
+ *  GammaAnalysis.Result r = d.measure( 10, 10, 200, 200 );
+ *  print( r.gammaNorm() + " +- " + r.error() );
+ *  </pre>
+ *  Settings not covered by a dedicated method can be given as the
+ *  'key=value' parameters of the batch mode (see BatchJob), via 'set'. */
+public final class GammaAnalysis {
+
+    private final BatchJob job;		// never changed once built
+    private final GammaParams params;
+
+    private GammaAnalysis( BatchJob j ) {
+	job = j;
+	params = j.params.build();
+    }
+
+    /** Start configuring an analysis (all settings at their defaults) */
+    public static Builder builder() {
+	return new Builder( new BatchJob() );
+    }
+
+    /** Start configuring an analysis from the settings of this one */
+    public Builder toBuilder() {
+	return new Builder( job.copy() );
+    }
+
+    @Override
+    public String toString() {
+	return "GICA analysis (thr. factor: "+job.thrFac+", "+params+")";
+    }
+
+    /** Settings of an analysis. Setters return the builder, so
+     *  calls can be chained. Invalid values throw an IllegalArgumentException
+     *  (at the latest in 'build'). */
+    public static final class Builder {
+
+	private final BatchJob job;
+
+	private Builder( BatchJob j ) {
+	    job = j;
+	}
+
+	/** Threshold: mean + factor * std. dev. (default 2) */
+	public Builder thresholdFactor( double v ) { job.thrFac = (float)v; return this; }
+	
+	/** Threshold statistics: "exact" (default), "sampled", "refined" */
+	public Builder thresholdStatistics( String v ) { job.set( "stats", v ); return this; }
+	
+	/** Local threshold over a neighbourhood of radius 'r' (0: global, default) */
+	public Builder localThreshold( int r ) { job.localRadius = r; return this; }
+
+	/** Channels to use (1-based, 2 - 8 of them; default: all, up to 8) */
+	public Builder channels( int ... c ) { job.channels = c.clone(); return this; }
+
+	/** Slice and frame (1-based) of hyperstacks */
+	public Builder position( int z, int t ) { job.z = z; job.t = t; return this; }
+
+	/** Estimator: "montecarlo" (default), "adaptive", "analytic" */
+	public Builder estimator( String v ) { job.set( "estimator", v ); return this; }
+
+	/** Sample factor (default 0.25) */
+	public Builder sampleFactor( double v ) { job.params.sampleFactor( v ); return this; }
+
+	/** Stat. #N (default 20) */
+	public Builder statCount( int v ) { job.params.nStatCount( v ); return this; }
+
+	/** Error est. N (default 20) */
+	public Builder errorSamples( int v ) { job.params.bsCount( v ); return this; }
+
+	/** Adaptive estimator: max. error est. N, target precision (abs., rel.) */
+	public Builder adaptive( int max, double target, double targetRel ) { 
+	    job.params.bsMax( max ).bsTargetErr( target ).bsTargetRel( targetRel );
+	    return this;
+	}
+
+	/** Super-pixel size of the topology (default 12) */
+	public Builder superPixel( int v ) { job.params.binSize( v ); return this; }
+
+	/** Stat. #N of the topology (default 20) */
+	public Builder topologyStatCount( int v ) { job.params.secSize( v ); return this; }
+
+	/** Output stride of the topology (default 1, dense) and how the
+	 *  pixels in between are filled in ("bilinear", "bicubic") */
+	public Builder stride( int v, String interpolation ) { 
+	    job.params.stride( v );
+	    job.set( "interp", interpolation );
+	    return this;
+	}
+
+	/** Permutation test: runs (0: off, default), mode ("shift", 
+	 *  "blocks"), channel permuted (0-based), block size / min. shift 
+	 *  (0: super-pixel size) */
+	public Builder permutations( int n, String mode, int channel, int block ) {
+	    job.params.permutations( n ).permChannel( channel ).permBlock( block );
+	    job.set( "permmode", mode );
+	    return this;
+	}
+
+	/** Also compute Pearson, Manders M1/M2 and overlap (default: off) */
+	public Builder colocMetrics( boolean v ) { job.params.colocMetrics( v ); return this; }
+
+	/** Any batch mode parameter, e.g. set( "roi", "0,0,100,100" ) */
+	public Builder set( String key, String value ) { job.set( key, value ); return this; }
+
+	/** The (immutable) analysis */
+	public GammaAnalysis build() {
+	    if ( job.localRadius < 0 )
+		throw new IllegalArgumentException("Local threshold radius has to be >= 0");
+	    return new GammaAnalysis( job.copy() );
+	}
+    }
+
+    // ------ entry points ------
+
+    /** Compute the gamma data of an image (channels, hyperstacks and RGB
+     *  as in the batch mode) */
+    public Data compute( ImagePlus imp ) {
+	return new Data( job.gammaNorm( imp ), params );
+    }
+
+    /** Compute the gamma data of a stack, one slice per channel */
+    public Data compute( ImageStack is ) {
+	return compute( new ImagePlus( "stack", is ));
+    }
+
+    /** Compute the gamma data of images given as pixel arrays (float[], 
+     *  short[] or byte[], 'width'*'height' each, row-major), one per 
+     *  channel. The arrays are used as they are, not copied. */
+    public Data compute( int width, int height, Object ... pixels ) {
+	ImageStack is = new ImageStack( width, height );
+	for (int c=0; c<pixels.length; c++) {
+	    final Object px = pixels[c];
+	    final int len = ( px instanceof float [] )?( ((float [])px).length ):
+			    ( px instanceof short [] )?( ((short [])px).length ):
+			    ( px instanceof byte  [] )?( ((byte  [])px).length ):(-1);
+	    if ( len < 0 )
+		throw new IllegalArgumentException("Channel "+(c+1)+": float[], short[] "+
+		    "or byte[] expected");
+	    if ( len != width*height )
+		throw new IllegalArgumentException("Channel "+(c+1)+": "+len+
+		    " pixels, expected "+width*height);
+	    is.addSlice( "ch"+(c+1), px );
+	}
+	return compute( is );
+    }
+
+    /** Open an image file and measure it, as the batch mode does: the 
+     *  ROIs set by 'roi' / 'labels' parameters, else the full image */
+    public List<Result> analyze( File f ) {
+	return wrap( job.run( f ).meas );
+    }
+
+    private static List<Result> wrap( List<GICAmeasurement> l ) {
+	List<Result> ret = new ArrayList<Result>( l.size() );
+	for ( GICAmeasurement gm : l )
+	    ret.add( new Result( gm ));
+	return ret;
+    }
+
+    // ------ gamma data and results ------
+
+    /** The gamma data of one image, ready to be measured. Measurements
+     *  only read it, so they may run from several threads at once. */
+    public static final class Data {
+
+	private final GammaNorm gn;
+	private final GammaParams params;
+
+	private Data( GammaNorm g, GammaParams p ) {
+	    gn = g; params = p;
+	}
+
+	public int width()    { return gn.width; }
+	public int height()   { return gn.height; }
+	public int channels() { return gn.cCount; }
+
+	/** Intensity threshold of channel 'c' (0-based) */
+	public float threshold( int c ) {
+	    return gn.threshold( c );
+	}
+
+	/** Measure the full image */
+	public Result measure() {
+	    return measure( 0, 0, gn.width, gn.height );
+	}
+
+	/** Measure a rectangle */
+	public Result measure( int x, int y, int w, int h ) {
+	    if (( x < 0 )||( y < 0 )||( w < 1 )||( h < 1 )||
+		( x+w > gn.width )||( y+h > gn.height ))
+		throw new IllegalArgumentException("Rectangle outside the image");
+	    return measure( RoiPixels.fromRect( x, y, w, h ));
+	}
+
+	/** Measure an ImageJ area ROI (clipped to the image) */
+	public Result measure( Roi roi ) {
+	    final RoiPixels rp = RoiPixels.fromRoi( roi, gn.width, gn.height );
+	    if ( rp == null )
+		throw new IllegalArgumentException("Not an area ROI inside the image");
+	    return measure( rp );
+	}
+
+	/** Measure each object of a label image (pixel value = object id, 
+	 *  0 = background), in parallel */
+	public List<Result> measureLabels( ImageProcessor labels ) {
+	    if (( labels.getWidth() != gn.width )||( labels.getHeight() != gn.height ))
+		throw new IllegalArgumentException("Label image of wrong size");
+	    List<GICAmeasurement> l = new ArrayList<GICAmeasurement>();
+	    for ( RoiPixels rp : RoiPixels.fromLabels( labels ))
+		l.add( new GICAmeasurement( rp, label() ));
+	    gn.measureRois( l, params );
+	    return wrap( l );
+	}
+
+	private Result measure( RoiPixels rp ) {
+	    GICAmeasurement gm = new GICAmeasurement( rp, label() );
+	    gn.measureRoi( gm, params );
+	    return new Result( gm );
+	}
+
+	private String label() {
+	    return ( gn.sourceImg != null )?( gn.sourceImg.getTitle() ):("");
+	}
+
+	/** The topology: { normalized, absolute }, each 'width'*'height'
+	 *  values, row-major */
+	public float [][] topology() {
+	    ij.process.FloatProcessor [] tp = gn.getTopology( params );
+	    return new float [][] { (float [])tp[0].getPixels(), 
+		(float [])tp[1].getPixels() };
+	}
+    }
+
+    /** The result of measuring one region */
+    public static final class Result {
+
+	private final GICAmeasurement gm;
+
+	private Result( GICAmeasurement m ) {
+	    gm = m;
+	}
+
+	/** The gamma norm */
+	public double gammaNorm()	{ return gm.gNorm; }
+	/** Its error estimate */
+	public double error()		{ return gm.gNormErr; }
+	/** Colocalized pixels (over threshold in all channels), relative
+	 *  to the ROI area */
+	public double colocFraction()	{ return gm.colPx; }
+	/** The gamma norm relative to the largest one possible for the
+	 *  channel count, as (max - gamma norm)/max: 1 if the gamma norm 
+	 *  is 0, 0 at the maximum. Not an area. */
+	public double normalizedGamma()	{ return gm.af; }
+	/** The threshold factor used */
+	public double thresholdFactor() { return gm.thr; }
+	/** Error est. samples run */
+	public int errorSamples()	{ return gm.bsUsed; }
+
+	/** Over-threshold pixel counts: col, then per channel */
+	public int [] counts() {
+	    return ( gm.listI == null )?( null ):( gm.listI.clone() );
+	}
+
+	/** Bounding box and number of pixels of the region */
+	public int x()		{ return gm.x; }
+	public int y()		{ return gm.y; }
+	public int width()	{ return gm.w; }
+	public int height()	{ return gm.h; }
+	public int pixels()	{ return gm.area.count(); }
+
+	/** Permutation test: runs (0: not tested), p-value, null mean / std */
+	public int permutations()	{ return gm.nPerm; }
+	public double pValue()		{ return gm.pPerm; }
+	public double nullMean()	{ return gm.nullMean; }
+	public double nullStd()		{ return gm.nullStd; }
+
+	/** Per channel pair (c &lt; d, in order), null if not computed */
+	public double [] pearson()	{ return copy( gm.pearson ); }
+	public double [] mandersM1()	{ return copy( gm.m1 ); }
+	public double [] mandersM2()	{ return copy( gm.m2 ); }
+	public double [] overlap()	{ return copy( gm.overlap ); }
+
+	private static double [] copy( double [] a ) {
+	    return ( a == null )?( null ):( a.clone() );
+	}
+
+	/** Column names of 'toTsv' */
+	public static String tsvHeader() {
+	    return GICAmeasurement.tsvHeader();
+	}
+
+	/** The result as tab-separated row */
+	public String toTsv() {
+	    return gm.tsvRow();
+	}
+
+	@Override
+	public String toString() {
+	    return String.format( java.util.Locale.US, "gamma norm %.4f +- %.4f (%d pxl)", 
+		gm.gNorm, gm.gNormErr, gm.area.count() );
+	}
+    }
+
+}
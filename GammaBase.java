@@ -0,0 +1,332 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** What all gamma data (planes, volumes, mosaics) share: parameters,
+ *  and the ROI measurement with all estimators. Subclasses provide 
+ *  the over-threshold counts and the linearized pairs of virtual 
+ *  channels of a ROI, and write their topology. */
+abstract class GammaBase {
+
+    final int width, height, cCount;
+
+    protected final float thrFac;
+
+    // measurement and topology parameters, replaced as a whole
+    private volatile GammaParams params = GammaParams.DEFAULT;
+
+    protected ImagePlus sourceImg;
+    protected int [] channels;	    // channels used (1-based, for hyperstacks)
+
+    /** Receives the linearized pixels of one pair of virtual channels */
+    interface PairVisitor {
+	void pair( byte [] valI, byte [] valJ );
+    }
+
+    protected GammaBase( int w, int h, int c, float fac ) {
+	width = w; height = h; cCount = c; thrFac = fac;
+    }
+
+    /** The current parameters */
+    GammaParams params() {
+	return params;
+    }
+
+    /** Replace the parameters. Running measurements and topologies
+     *  keep the parameters they started with. */
+    void setParams( GammaParams p ) {
+	if ( p == null )
+	    throw new IllegalArgumentException("No parameters");
+	params = p;
+    }
+
+    /** Copy the measurement and topology parameters of 'o' */
+    void copyParameters( GammaBase o ) {
+	setParams( o.params );
+	channels = o.channels;
+    }
+
+    /** The threshold of channel 'c' */
+    abstract float threshold( int c );
+
+    /** Compute the topology with parameters 'p' and write it to 'f' 
+     *  (a TIFF stack, normalized and absolute values) */
+    abstract void writeTopology( GammaParams p, File f ) throws IOException;
+
+    // ------ ROI measurement ------
+
+    /** Calculate the gamma for a sub-region of the image.
+     *  This uses the global threshhold. */
+    public void measureRoi(GICAmeasurement gm) {
+	measureRoi( gm, params, true );
+    }
+
+    /** Calculate the gamma for a sub-region with parameters 'p'.
+     *  The gamma data is only read, so this may be called from many 
+     *  threads at once, also while a topology is computed. */
+    public void measureRoi(GICAmeasurement gm, GammaParams p) {
+	measureRoi( gm, p, false );
+    }
+
+    /** Calculate the gamma for a list of sub-regions, in parallel.
+     *  All measurements share the gamma data of this image. */
+    public void measureRois(final List<GICAmeasurement> gms) {
+	measureRois( gms, params );
+    }
+
+    /** Calculate the gamma for a list of sub-regions with parameters 'p' */
+    public void measureRois(final List<GICAmeasurement> gms, final GammaParams p) {
+	
+	final int n = gms.size();
+	final AtomicInteger done = new AtomicInteger(0);
+	IJ.showProgress(0, n);
+
+	// strided loop, as ROI sizes (and thus run times) vary
+	new SimpleMT.StrPFor(0, n) {
+	    public void at(int i) {
+		measureRoi( gms.get(i), p, false );
+		IJ.showProgress( done.incrementAndGet(), n);
+	    }
+	};
+    }
+
+    /** Calculate the gamma for a sub-region, 'progress' toggles
+     *  the progress bar (off for parallel measurements) */
+    void measureRoi(GICAmeasurement gm, boolean progress) {
+	measureRoi( gm, params, progress );
+    }
+
+    /** Calculate the gamma for a sub-region with parameters 'p' */
+    void measureRoi(GICAmeasurement gm, GammaParams p, boolean progress) {
+
+	final long t0 = Metrics.start();
+	final Object ev = Trace.T.begin( Trace.MEASURE );
+
+	if ( p.estimator == GammaNorm.Estimator.ANALYTIC )
+	    measureRoiAnalytic( gm, p );
+	else if ( p.estimator == GammaNorm.Estimator.ADAPTIVE )
+	    measureRoiAdaptive( gm, p, progress );
+	else
+	    measureRoiBootstrap( gm, p, progress );
+
+	// store number of pxl and col. coeff.
+	final int N = cCount;
+	final double rMax = Math.sqrt( Tools.faculty(N-1) + N +1 );
+
+	gm.listI = getCounts( gm );
+	gm.colPx = gm.listI[0]/(double)(getSize( gm ));
+	
+	gm.af  = (rMax - gm.gNorm ) / (rMax );
+	gm.thr = thrFac; 
+
+	// significance, by permuting one channel
+	if ( p.permutations > 0 )
+	    permutationTest( gm, p );
+	
+	// Pearson, Manders, overlap
+	if ( p.colocMetrics )
+	    colocMetrics( gm );
+	Metrics.stop( Metrics.MEASURE, t0, getSize( gm ) );
+	
+	Trace.T.measureRoi( ev, (int)getSize( gm ), N, p.estimator.label, 
+	    p.sampleFactor, p.nStatCount, p.bsCount, gm.bsUsed );
+
+    }
+
+    /** Permutation test of a measurement, logged if not available */
+    abstract void permutationTest( GICAmeasurement gm, GammaParams p );
+
+    /** Pearson, Manders and overlap of a measurement, logged if not available */
+    abstract void colocMetrics( GICAmeasurement gm );
+
+    /** Pairs of virtual channels for ROI measurements, (channels with each 
+     *  other, with col, col with sum). The channel loop is kept as in the
+     *  original measurement: it only yields the pairs (i,0) for i = 1..N-1, so
+     *  published gamma norms stay reproducible. */
+    List<int []> measurePairsV() {
+	List<int []> ret = new ArrayList<int []>();
+	for (int i=0;i<cCount-1;i++)
+	for (int j=0;i<cCount;i++)  
+	if (i!=j) 
+	    ret.add( new int [] { i, j } );
+	for (int i=0;i<cCount;i++) 
+	    ret.add( new int [] { i, cCount+1 } );
+	ret.add( new int [] { cCount, cCount+1 } );
+	return ret;
+    }
+
+    /** Pairs of virtual channels for the topology, as in the topologies */
+    List<int []> topoPairsV() {
+	List<int []> ret = new ArrayList<int []>();
+	for (int i=0;i<cCount-1;i++) 
+	for (int j=1;j<cCount;j++) 
+	if (i!=j) 
+	    ret.add( new int [] { i, j } );
+	for (int i=0;i<cCount;i++) 
+	    ret.add( new int [] { i, cCount+1 } );
+	ret.add( new int [] { cCount, cCount+1 } );
+	return ret;
+    }
+
+
+    /** The number of pixels measured */
+    protected long getSize( GICAmeasurement gm ) {
+	return gm.area.count();
+    }
+
+    /** The number of over-threshold pixels measured, for col and 
+     *  each channel */
+    protected abstract int [] getCounts( GICAmeasurement gm );
+
+    /** Pass the measured pixels of each pair of measurePairsV to 'v', 
+     *  linearized one pair at a time */
+    protected abstract void forEachPair( GICAmeasurement gm, PairVisitor v );
+
+    /** The moments (see GammaData.getMoments) of all measurement pairs */
+    protected List<long []> pairMoments( GICAmeasurement gm ) {
+	final List<long []> ret = new ArrayList<long []>();
+	forEachPair( gm, new PairVisitor() {
+	    public void pair( byte [] valI, byte [] valJ ) {
+		ret.add( GammaData.getMoments( valI, valJ ));
+	    }
+	});
+	return ret;
+    }
+
+    /** Measure the gamma norm by random sampling, the error 
+     *  is estimated by 'bsCount' repetitions */
+    private void measureRoiBootstrap( GICAmeasurement gm, final GammaParams p, 
+	final boolean progress ) {
+
+	final int nPairs = measurePairsV().size();
+	final AtomicInteger cnt = new AtomicInteger();
+
+	// calculate a set of values
+	final int bsCount = p.bsCount;
+	final double [] resVector = new double[ bsCount ];
+	if (progress) IJ.showProgress(0,nPairs);
+
+	forEachPair( gm, new PairVisitor() {
+	    public void pair( byte [] valI, byte [] valJ ) {
+		float [] val = GammaData.genMeasureData( 
+		    valI, valJ, bsCount, p.sampleFactor, p.nStatCount );
+	    
+		for (int k=0;k<bsCount;k++)
+		    resVector[k]+= Math.pow(val[k],2);
+	    
+		if (progress) IJ.showProgress(cnt.incrementAndGet(), nPairs);
+	    }
+	});
+
+	// calculate all the vector lenth
+	for (int k=0;k<bsCount;k++)
+	    resVector[k] = Math.sqrt( resVector[k] );
+
+	// ... gamma norms average
+	double resAvr=0;
+	for (double i : resVector) 
+	    resAvr+=i/resVector.length;
+	
+	// .... gamma norms variance
+	double resVar=0;
+	for (double i : resVector) 
+	    resVar+=Math.pow( i-resAvr ,2 );
+	
+	// store measurements
+	gm.gNorm    = resAvr;
+	gm.gNormErr = Math.sqrt((1./(resVector.length-1))* resVar );
+	gm.bsUsed   = bsCount;
+    }
+
+    /** Measure the gamma norm by random sampling, adding batches of
+     *  'bsCount' repetitions until the standard error of the mean
+     *  reaches 'bsTargetErr' (absolute) or 'bsTargetRel' (relative),
+     *  or 'bsMax' repetitions have been run. Each pair is linearized 
+     *  once, and only its value counts (see GammaData.PairCounts) are 
+     *  kept for the batches. */
+    private void measureRoiAdaptive(GICAmeasurement gm, final GammaParams p, boolean progress) {
+
+	final int batch = Math.max( p.bsCount, 2 );
+	final int max   = Math.max( p.bsMax, batch );
+	RunningStat rs  = new RunningStat();
+	if (progress) IJ.showProgress(0, max);
+
+	final List<GammaData.PairCounts> pairs = new ArrayList<GammaData.PairCounts>();
+	forEachPair( gm, new PairVisitor() {
+	    public void pair( byte [] valI, byte [] valJ ) {
+		pairs.add( new GammaData.PairCounts( valI, valJ ));
+	    }
+	});
+
+	while ( rs.count() < max ) {
+	    
+	    // run a batch of repetitions
+	    final int m = (int)Math.min( batch, max-rs.count() );
+	    final double [] resVector = new double[ m ];
+	    for ( GammaData.PairCounts pc : pairs ) {
+		float [] val = GammaData.genMeasureData( 
+		    pc, m, p.sampleFactor, p.nStatCount );
+		for (int k=0;k<m;k++)
+		    resVector[k]+= Math.pow(val[k],2);
+	    }
+	    for (int k=0;k<m;k++)
+		rs.add( Math.sqrt( resVector[k] ));
+	    if (progress) IJ.showProgress( (int)rs.count(), max);
+
+	    // check if the target precision is reached
+	    final double sem = rs.sem();
+	    if (( sem <= p.bsTargetErr )||( sem <= p.bsTargetRel * rs.mean() ))
+		break;
+	}
+	if (progress) IJ.showProgress( max, max );
+
+	// store measurements
+	gm.gNorm    = rs.mean();
+	gm.gNormErr = rs.std();
+	gm.bsUsed   = (int)rs.count();
+    }
+
+    /** Compute the gamma norm and its error in closed form from the 
+     *  pixel moments, without random sampling. The squared correlations
+     *  of all pairs are summed, the error follows to first order 
+     *  from their variances. */
+    private void measureRoiAnalytic(GICAmeasurement gm, GammaParams p) {
+
+	double sumR2=0, varR2=0;
+	final long n = getSize( gm );
+	for ( long [] m : pairMoments( gm ) ) {
+	    double [] val = GammaData.anaMeasureData( m, n, p.nStatCount );
+	    sumR2 += val[0];
+	    varR2 += val[1];
+	}
+
+	gm.gNorm    = Math.sqrt( sumR2 );
+	gm.gNormErr = (sumR2>0)?(Math.sqrt( varR2 ) / (2*gm.gNorm)):(0);
+	gm.bsUsed   = 0;	// (closed form, no error est. samples)
+    }
+
+}
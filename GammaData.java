@@ -19,6 +19,8 @@ package de.bio_photonics.gica;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
 
+import java.util.Arrays;
+
 /** Class to compute and hold the gamma data for an image */
 class GammaData {
 
@@ -39,65 +41,324 @@ class GammaData {
     // stores the image size
     final int width, height;
 
-    /** private constructor for empty gamma norm */
-    private GammaData( int w, int h ) {
+    // the threshold used, and its 95% confidence bound (if sampled)
+    float thr, thrBound;
+
+    // prefix sums along each row, for fast counting (created on demand)
+    private volatile int [] rowSums;
+
+    /** constructor for empty gamma norm */
+    GammaData( int w, int h ) {
 	width = w; height = h;
 	gammas = new byte [w*h];   
+	Metrics.count( Metrics.BYTES, w*h );
     }
 
     /** create the data */
     GammaData( ImageProcessor ip , float fac ) {
+	this( ip, fac, ThresholdStats.Mode.EXACT );
+    }
+
+    /** create the data, with threshold statistics obtained by 'mode' */
+    GammaData( ImageProcessor ip , float fac, ThresholdStats.Mode mode ) {
+	this( ip, fac, mode, 0 );
+    }
+
+    /** create the data, with a local threshold over the neighbourhood
+     *  of 'localRadius' (0: global threshold, statistics by 'mode') */
+    GammaData( ImageProcessor ip , float fac, ThresholdStats.Mode mode, int localRadius ) {
+	this( ip.getWidth(), ip.getHeight() );
+	fill( ip, fac, true, mode, localRadius );
+    }
+
+    /** (Re-)compute the data from an image of the same size, 
+     *  reusing the buffer (e.g. for the frames of a time-lapse) */
+    void fill( ImageProcessor ip , float fac, boolean log ) {
+	fill( ip, fac, log, ThresholdStats.Mode.EXACT );
+    }
+
+    /** (Re-)compute the data, with threshold statistics obtained by 'mode'.
+     *  Small images always use the exact statistics. */
+    void fill( ImageProcessor ip , float fac, boolean log, ThresholdStats.Mode mode ) {
+	fill( ip, fac, log, mode, 0 );
+    }
+
+    /** (Re-)compute the data, with a local threshold if 'localRadius' &gt; 0,
+     *  else a global one with statistics obtained by 'mode' */
+    void fill( ImageProcessor ip , float fac, boolean log, 
+	ThresholdStats.Mode mode, int localRadius ) {
 	
+	if (( ip.getWidth() != width )||( ip.getHeight() != height ))
+	    throw new RuntimeException("Image size does not match gamma data");
+
+	if ( localRadius > 0 ) {
+	    fillLocal( ip, fac, localRadius, log );
+	    return;
+	}
+
+	if (( mode != ThresholdStats.Mode.EXACT )&&
+	    ( ThresholdStats.worthIt( (long)width*height ))) {
+	    fillSampled( ip, fac, log, mode == ThresholdStats.Mode.REFINED );
+	    return;
+	}
+
 	// get average and variance
+	long t0 = Metrics.start();
 	final float avr = Tools.avr( ip );
 	final float var = Tools.var( ip , avr );
+	Metrics.stop( Metrics.STATISTICS, t0, 2L*ip.getWidth()*ip.getHeight() );
 
 	// set the threshhold
-	final float thr = avr + fac * (float)Math.sqrt(var);
+	thr = avr + fac * (float)Math.sqrt(var);
+	thrBound = 0;
 	
 	// compute the gammas
-	width = ip.getWidth();
-	height = ip.getHeight();
-	gammas = new byte[ width*height ];
-	int cnt = 0;
+	t0 = Metrics.start();
+	final int cnt = threshold( ip );
+	Metrics.stop( Metrics.THRESHOLD, t0, width*height );
+	Metrics.count( Metrics.PIXELS, 3L*width*height );
+	
+	// output debug information
+	if (log)
+	    Tools.log( "GiCA avr: "+avr+" var: "+var+
+		" --> thr: "+thr+"  pxl: "+cnt+"/"+(width*height)+
+		" ratio: "+ cnt/(float)(width*height));
 
+    }
+
+    /** Set the gammas of all pixels above 'thr', return their number */
+    private int threshold( ImageProcessor ip ) {
+	int cnt = 0;
 	for ( int y=0;y<height;y++)
 	for ( int x=0;x<width;x++)
 	    if ( ip.getf(x,y) > thr ) {
 		gammas[ x +y*width] = 1;
 		cnt ++;
+	    } else {
+		gammas[ x +y*width] = 0;
 	    }
+	rowSums = null;
+	return cnt;
+    }
+
+    /** Threshold with statistics from a pixel sample. If 'refine', the
+     *  exact statistics are summed up in the same pass. Pixels within 
+     *  the confidence bound of the sampled threshold are remembered, 
+     *  and re-thresholded with the exact one (a second pass is only
+     *  needed if it falls outside the bound, or too many pixels are in it). */
+    private void fillSampled( ImageProcessor ip, float fac, boolean log, boolean refine ) {
 	
-	// output debug information
-	Tools.log( "GiCA avr: "+avr+" var: "+var+
-	    " --> thr: "+thr+"  pxl: "+cnt+"/"+(width*height)+
-	    " ratio: "+ cnt/(float)(width*height));
+	final ThresholdStats st = ThresholdStats.sample( ip, 
+	    ThresholdStats.SAMPLES, Double.doubleToLongBits( fac ) ^ width*31L+height );
+	thr = (float)st.threshold( fac );
+	thrBound = (float)st.bound( fac );
+	final float sampled = thr;
+	
+	long t0 = Metrics.start();
+	int cnt = 0;
+	if ( !refine ) {
+	    cnt = threshold( ip );
+	} else {
+	    final float lo = thr - thrBound, hi = thr + thrBound;
+	    final int maxCand = Math.max( 1024, width*height/8 );
+	    int [] cand = new int[ 1024 ];
+	    int nCand = 0;
+	    boolean overflow = false;
+	    double sum=0, sq=0;
+	    
+	    for ( int y=0;y<height;y++) {
+		double rs=0, rq=0;
+		for ( int x=0;x<width;x++) {
+		    final float v = ip.getf(x,y);
+		    rs+=v; rq+=v*(double)v;
+		    final int i = x+y*width;
+		    if ( v > thr ) {
+			gammas[i] = 1;
+			cnt++;
+		    } else {
+			gammas[i] = 0;
+		    }
+		    if (( v > lo )&&( v <= hi )&&( !overflow )) {
+			if ( nCand == cand.length ) {
+			    if ( nCand >= maxCand ) 
+				overflow = true;
+			    else
+				cand = Arrays.copyOf( cand, Math.min( 2*nCand, maxCand ));
+			}
+			if ( !overflow ) cand[ nCand++ ] = i;
+		    }
+		}
+		sum+=rs; sq+=rq;
+	    }
+	    rowSums = null;
 
+	    // the exact threshold
+	    final double n = (double)width*height;
+	    final double avr = sum/n;
+	    final double var = Math.max( 0, (sq - n*avr*avr)/(n-1) );
+	    final float exact = (float)( avr + fac*Math.sqrt( var ));
+	    
+	    if (( exact >= lo )&&( exact <= hi )&&( !overflow )) {
+		for (int k=0; k<nCand; k++) {
+		    final int i = cand[k];
+		    final byte g = ( ip.getf( i%width, i/width ) > exact )?((byte)1):((byte)0);
+		    cnt += g - gammas[i];
+		    gammas[i] = g;
+		}
+	    } else {
+		if (log)
+		    Tools.log("GiCA exact threshold "+exact+" outside the sampled bound, "+
+			"thresholding again");
+		thr = exact;
+		cnt = threshold( ip );
+		Metrics.count( Metrics.PIXELS, (long)width*height );
+	    }
+	    if (log)
+		Tools.log( "GiCA sampled thr: "+sampled+" (+-"+thrBound+"), refined: "+exact+
+		    ", "+nCand+" pxl re-checked" );
+	    thr = exact;
+	    thrBound = 0;
+	}
+	Metrics.stop( Metrics.THRESHOLD, t0, width*height );
+	Metrics.count( Metrics.PIXELS, (long)width*height + st.n );
+	
+	if (log)
+	    Tools.log( "GiCA ("+st+") --> thr: "+thr+
+		((thrBound>0)?(" +-"+thrBound+" (95%)"):(""))+
+		"  pxl: "+cnt+"/"+(width*height)+" ratio: "+ cnt/(float)(width*height));
+    }
+
+    /** Threshold each pixel against mean + fac*std of its (2*radius+1)^2
+     *  neighbourhood (clipped at the border). Mean and std come from 
+     *  running sums of the intensity and its square: each strip of rows 
+     *  keeps column sums over the window height, slides them down row by 
+     *  row, and takes the window sums along the row from their prefix 
+     *  sums. So each pixel costs O(1) independent of the radius, and the 
+     *  temporary memory is O(width) per strip. The intensities are offset 
+     *  by a sampled mean first, to keep the sums of squares well 
+     *  conditioned. 'thr' is set to the global threshold (from the totals),
+     *  e.g. for the Manders coefficients. */
+    private void fillLocal( final ImageProcessor ip, final float fac, 
+	final int radius, boolean log ) {
+	
+	final float off = (float)ThresholdStats.sample( ip, 1024, 1 ).mean;
+	final int [][] rows = SimpleMT.split( 
+	    Math.min( height, 4*SimpleMT.getNumThreads() ), 0, height );
+	final int [] cnt = new int[ rows.length ];
+	final double [][] tot = new double[ rows.length ][ 2 ];
+	Metrics.count( Metrics.BYTES, 32L*(width+1)*rows.length );
+	
+	long t0 = Metrics.start();
+	new SimpleMT.PFor( 0, rows.length ) {
+	    public void at( int st ) {
+		final int ys = rows[st][0], ye = rows[st][1];
+		
+		// column sums over the window rows of 'ys'
+		final double [] cs = new double[ width ], cq = new double[ width ];
+		final double [] ps = new double[ width+1 ], pq = new double[ width+1 ];
+		for (int y=Math.max( 0, ys-radius ); y<Math.min( height, ys+radius+1 ); y++)
+		    addRow( ip, off, y, 1, cs, cq );
+		
+		for (int y=ys; y<ye; y++) {
+		    // prefix sums of the column sums
+		    for (int x=0; x<width; x++) {
+			ps[x+1] = ps[x] + cs[x];
+			pq[x+1] = pq[x] + cq[x];
+		    }
+		    final int ny = Math.min( height, y+radius+1 ) - Math.max( 0, y-radius );
+		    for (int x=0; x<width; x++) {
+			final int x0 = Math.max( 0, x-radius );
+			final int x1 = Math.min( width, x+radius+1 );
+			final double n = (double)(x1-x0)*ny;
+			final double s = ps[x1] - ps[x0];
+			final double q = pq[x1] - pq[x0];
+			final double m = s/n;
+			final double var = ( n > 1 )?( Math.max( 0, (q - s*m)/(n-1) )):(0);
+			final double v = ip.getf( x, y ) - off;
+			tot[st][0] += v; tot[st][1] += v*v;
+			final int i = y*width+x;
+			if ( v > m + fac*Math.sqrt( var ) ) {
+			    gammas[i] = 1;
+			    cnt[st]++;
+			} else {
+			    gammas[i] = 0;
+			}
+		    }
+		    // slide the window down
+		    if ( y-radius >= 0 )
+			addRow( ip, off, y-radius, -1, cs, cq );
+		    if ( y+radius+1 < height )
+			addRow( ip, off, y+radius+1, 1, cs, cq );
+		}
+	    }
+	};
+	rowSums = null;
+	Metrics.stop( Metrics.THRESHOLD, t0, (long)width*height );
+	Metrics.count( Metrics.PIXELS, 3L*width*height );
+
+	// the global threshold, from the totals
+	final double n = (double)width*height;
+	double s=0, q=0;
+	for ( double [] t : tot ) { s += t[0]; q += t[1]; }
+	final double avr = s/n;
+	thr = off + (float)( avr + fac*Math.sqrt( Math.max( 0, (q - s*avr)/(n-1) )));
+	thrBound = 0;
+	
+	int total = 0;
+	for ( int c : cnt ) total += c;
+	if (log)
+	    Tools.log( "GiCA local thr (radius "+radius+", global "+thr+")"+
+		"  pxl: "+total+"/"+(width*height)+
+		" ratio: "+ total/(float)(width*height));
+    }
+
+    /** Add (sign 1) or remove (sign -1) row 'y' to the column sums */
+    private void addRow( ImageProcessor ip, float off, int y, double sign,
+	double [] cs, double [] cq ) {
+	for (int x=0; x<width; x++) {
+	    final double v = ip.getf( x, y ) - off;
+	    cs[x] += sign*v; cq[x] += sign*v*v;
+	}
     }
 
     /** Return the gamma norm for r_sum */
     static GammaData sumGamma( GammaData [] gds ) {
-    
 	if (gds == null) return null;
+	return sumGamma( gds, new GammaData( gds[0].width, gds[0].height ));
+    }
+    
+    /** Compute the gamma norm for r_sum into 'ret' */
+    static GammaData sumGamma( GammaData [] gds, GammaData ret ) {
+    
 	final int l = gds[0].gammas.length;
 
 	// loop and summ all gamma norms
-	GammaData ret = new GammaData( gds[0].width, gds[0].height );
+	final long t0 = Metrics.start();
+	Arrays.fill( ret.gammas, (byte)0 );
+	ret.rowSums = null;
 	for ( GammaData gd : gds )
 	    for (int i=0; i<l; i++)
 		ret.gammas[i] += gd.gammas[i];
+	Metrics.stop( Metrics.SUMCOL, t0, (long)l*gds.length );
+	Metrics.count( Metrics.PIXELS, (long)l*gds.length );
 	     
 	return ret;
     }
 
     /** Return the gamma norm for r_col */
     static GammaData colGamma( GammaData [] gds ) {
-    
 	if (gds == null) return null;
+	return colGamma( gds, new GammaData( gds[0].width, gds[0].height ));
+    }
+    
+    /** Compute the gamma norm for r_col into 'ret' */
+    static GammaData colGamma( GammaData [] gds, GammaData ret ) {
+    
 	final int l = gds[0].gammas.length;
 
 	// set all gammas to 1
-	GammaData ret = new GammaData( gds[0].width, gds[0].height );
+	final long t0 = Metrics.start();
+	ret.rowSums = null;
 	for ( int i=0; i<l; i++)
 	    ret.gammas[i] = 1;
 
@@ -105,6 +366,8 @@ class GammaData {
 	for ( GammaData gd : gds )
 	    for (int i=0; i<l; i++)
 		if ( gd.gammas[i] == 0 ) ret.gammas[i]=0;
+	Metrics.stop( Metrics.SUMCOL, t0, (long)l*gds.length );
+	Metrics.count( Metrics.PIXELS, (long)l*gds.length );
 	     
 	return ret;
     }
@@ -119,6 +382,38 @@ class GammaData {
     }
 
 
+    /** Returns the number of over-threshold pxl in a ROI. Uses
+     *  the row prefix sums, so each span is counted in O(1) */
+    public int getCount(RoiPixels rp) {
+	final int [] rs = getRowSums();
+	final int w1 = width+1;
+	int c=0;
+	for (int i=0; i<rp.spans(); i++) {
+	    final int off = rp.spanY(i)*w1 + rp.spanX(i);
+	    c += rs[ off + rp.spanLength(i) ] - rs[ off ];
+	}
+	return c;
+    }
+
+    /** Get (and create if needed) the prefix sums along the rows */
+    private int [] getRowSums() {
+	int [] rs = rowSums;
+	if ( rs != null ) return rs;
+	
+	synchronized ( this ) {
+	    if ( rowSums == null ) {
+		final int w1 = width+1;
+		rs = new int[ w1*height ];
+		for (int y=0; y<height; y++)
+		for (int x=0; x<width; x++)
+		    rs[ y*w1 + x + 1 ] = rs[ y*w1 + x ] + gammas[ y*width + x ];
+		rowSums = rs;
+		Metrics.count( Metrics.BYTES, 4L*rs.length );
+	    }
+	    return rowSums;
+	}
+    }
+
     /** Returns an representation of the norm as a byte processor */
     public FloatProcessor toImage() {
 
@@ -139,23 +434,41 @@ class GammaData {
 	int xIn, int yIn, int wIn, int hIn,  
 	final int bootM, final double sampleFac, final int nStat) {
 
-	int cnt=0;
-	final int width  = inI.width;
-	final int height = inI.height;
-	final int nSample = (int)(sampleFac * wIn * hIn);
-	
-	final byte [] Ii = inI.gammas;
-	final byte [] Ij = inJ.gammas;
-	
-	// linearize data
-	byte [] valI = new byte[ wIn*hIn ];
-	byte [] valJ = new byte[ wIn*hIn ];
-	for (int y=yIn; y<yIn+hIn;y++) 
-	for (int x=xIn; x<xIn+wIn;x++) {
-	    valI[cnt]=inI.gammas[ y*width + x];
-	    valJ[cnt]=inJ.gammas[ y*width + x];
-	    cnt++;
-	}
+	byte [][] val = linearize( inI, inJ, xIn, yIn, wIn, hIn );
+	return genMeasureData( val[0], val[1], bootM, sampleFac, nStat );
+    }
+
+    /** Obtain a set of 'bootM' variances for an arbitrary shaped ROI */
+    public static float [] genMeasureData( 
+	GammaData inI, GammaData inJ, RoiPixels rp,
+	final int bootM, final double sampleFac, final int nStat) {
+
+	byte [][] val = linearize( inI, inJ, rp );
+	return genMeasureData( val[0], val[1], bootM, sampleFac, nStat );
+    }
+
+    /** Copy a sub-region of two gamma data sets into linear arrays */
+    static byte [][] linearize( GammaData inI, GammaData inJ,
+	int xIn, int yIn, int wIn, int hIn ) {
+	return linearize( inI, inJ, RoiPixels.fromRect( xIn, yIn, wIn, hIn ));
+    }
+    
+    /** Copy the pixels of a ROI of two gamma data sets into linear arrays */
+    static byte [][] linearize( GammaData inI, GammaData inJ, RoiPixels rp ) {
+	Metrics.count( Metrics.BYTES, 2L*rp.count() );
+	Metrics.count( Metrics.PIXELS, 2L*rp.count() );
+	return new byte [][] { 
+	    rp.gather( inI.gammas, inI.width ), 
+	    rp.gather( inJ.gammas, inJ.width ) };
+    }
+
+    /** Obtain a set of 'bootM' variances from linearized data,
+     *  see {@link #linearize} */
+    static float [] genMeasureData( final byte [] valI, final byte [] valJ,
+	final int bootM, final double sampleFac, final int nStat) {
+
+	final int nSample = (int)(sampleFac * valI.length);
+	final long t0 = Metrics.start();
 
 	// create m samples of the input data 
 	float [] res = new float[bootM];
@@ -184,32 +497,254 @@ class GammaData {
 	    }
 	    */
 
-	    // calculate the average
-	    float avrI=0, avrJ=0;
-	    for (float i : sumI) avrI+=(i/nStat);
-	    for (float j : sumJ) avrJ+=(j/nStat);
-
-	    // calculate the variance
-	    float varIJ=0, varI=0, varJ=0;
-	    for (int i=0; i<sumI.length; i++) {
-		varIJ+=(sumI[i]-avrI)*(sumJ[i]-avrJ);
-		varI+=Math.pow(sumI[i]-avrI,2);
-		varJ+=Math.pow(sumJ[i]-avrJ,2);
+	    res[k] = sampleCorr( sumI, sumJ, nStat );
+	}
+
+	final long samples = (long)bootM*nStat*nSample;
+	Metrics.stop( Metrics.SAMPLING, t0, samples );
+	Metrics.count( Metrics.SAMPLES, samples );
+
+	// return the full result
+	return res;
+
+    }
+
+    /** The pixels of two linearized channels, reduced to the number of
+     *  pixels of each combination of values. Drawing random positions 
+     *  from it is the same as drawing them from the linearized data (in
+     *  some other order), so the sampling estimators can run on it in 
+     *  O(1) memory, e.g. batch after batch. */
+    static final class PairCounts {
+	final byte [] vi, vj;	// value combinations
+	final int  [] end;	// end of each combination, sorted by value
+	final int n;
+	private final int [] first = new int[ 1024 ];	// combination at pos. n*i/1024
+
+	PairCounts( byte [] valI, byte [] valJ ) {
+	    int mi=0, mj=0;
+	    for (int i=0; i<valI.length; i++) {
+		mi = Math.max( mi, valI[i]&0xff );
+		mj = Math.max( mj, valJ[i]&0xff );
 	    }
+	    final int [] cnt = new int[ (mi+1)*(mj+1) ];
+	    for (int i=0; i<valI.length; i++)
+		cnt[ (valI[i]&0xff)*(mj+1) + (valJ[i]&0xff) ]++;
+	    int nc=0;
+	    for ( int c : cnt ) if ( c > 0 ) nc++;
+	    vi = new byte[nc]; vj = new byte[nc]; end = new int[nc];
+	    int k=0, e=0;
+	    for (int c=0; c<cnt.length; c++)
+		if ( cnt[c] > 0 ) {
+		    e += cnt[c];
+		    vi[k] = (byte)(c/(mj+1)); vj[k] = (byte)(c%(mj+1)); end[k] = e;
+		    k++;
+		}
+	    n = valI.length;
+	    for (int i=0, c=0; i<first.length; i++) {
+		final long pos = (long)n*i/first.length;
+		while (( c < nc-1 )&&( end[c] <= pos )) c++;
+		first[i] = c;
+	    }
+	}
 
-	    // compute quotient
-	    res[k]=0;
-	    
-	    if (( Math.abs(varJ)>0.001 )&&(Math.abs(varI)>0.001))
-		res[k] = varIJ / (float)(Math.sqrt(varI) * Math.sqrt(varJ));
+	/** The combination at position u*n, for 0 <= u < 1 */
+	int at( double u ) {
+	    final int pos = (int)(u*n);
+	    int c = first[ (int)(u*first.length) ];
+	    while ( end[c] <= pos ) c++;
+	    return c;
 	}
+    }
+
+    /** Obtain a set of 'bootM' variances from value counts, as 
+     *  genMeasureData does from the linearized data */
+    static float [] genMeasureData( final PairCounts pc,
+	final int bootM, final double sampleFac, final int nStat) {
 
+	final int nSample = (int)(sampleFac * pc.n);
+	final long t0 = Metrics.start();
 
-	// return the full result
+	float [] res = new float[bootM];
+	for (int k=0;k<bootM;k++) {
+	    float [] sumI = new float[nStat];
+	    float [] sumJ = new float[nStat];
+
+	    int offS = (int)(Math.random()*rndMax);
+	    for (int i=0; i<nStat;i++)
+	    for (int j=0; j<nSample;j++) {
+		final int c = pc.at( rndCache[(i*nStat+j*3+offS)%rndMax] );
+		sumI[i] += pc.vi[c];
+		sumJ[i] += pc.vj[c];
+	    } 
+	    res[k] = sampleCorr( sumI, sumJ, nStat );
+	}
+
+	final long samples = (long)bootM*nStat*nSample;
+	Metrics.stop( Metrics.SAMPLING, t0, samples );
+	Metrics.count( Metrics.SAMPLES, samples );
 	return res;
+    }
+
+    /** Correlation of the 'nStat' sample sums (0 if one has no variance) */
+    private static float sampleCorr( float [] sumI, float [] sumJ, int nStat ) {
 
+	// calculate the average
+	float avrI=0, avrJ=0;
+	for (float i : sumI) avrI+=(i/nStat);
+	for (float j : sumJ) avrJ+=(j/nStat);
+
+	// calculate the variance
+	float varIJ=0, varI=0, varJ=0;
+	for (int i=0; i<sumI.length; i++) {
+	    varIJ+=(sumI[i]-avrI)*(sumJ[i]-avrJ);
+	    varI+=Math.pow(sumI[i]-avrI,2);
+	    varJ+=Math.pow(sumJ[i]-avrJ,2);
+	}
+
+	// compute quotient
+	if (( Math.abs(varJ)>0.001 )&&(Math.abs(varI)>0.001))
+	    return varIJ / (float)(Math.sqrt(varI) * Math.sqrt(varJ));
+	return 0;
+    }
+
+
+
+    /** Sums of I, J, I^2, J^2 and I*J over a sub-region, as
+     *  input for the analytic estimator */
+    public static long [] getMoments( GammaData inI, GammaData inJ,
+	int xIn, int yIn, int wIn, int hIn) {
+	return getMoments( inI, inJ, RoiPixels.fromRect( xIn, yIn, wIn, hIn ));
+    }
+    
+    /** Sums of I, J, I^2, J^2 and I*J over a ROI, as
+     *  input for the analytic estimator */
+    public static long [] getMoments( GammaData inI, GammaData inJ, RoiPixels rp ) {
+
+	final long t0 = Metrics.start();
+	final int width = inI.width;
+	long sI=0, sJ=0, sII=0, sJJ=0, sIJ=0;
+	for (int s=0; s<rp.spans(); s++) {
+	    final int off = rp.spanY(s)*width + rp.spanX(s);
+	    for (int p=off; p<off+rp.spanLength(s); p++) {
+		final int vi = inI.gammas[p];
+		final int vj = inJ.gammas[p];
+		sI+=vi; sJ+=vj; sII+=vi*vi; sJJ+=vj*vj; sIJ+=vi*vj;
+	    }
+	}
+	Metrics.stop( Metrics.MOMENTS, t0, rp.count() );
+	Metrics.count( Metrics.PIXELS, 2L*rp.count() );
+	return new long [] { sI, sJ, sII, sJJ, sIJ };
+    }
+
+    /** Per-pixel covariance and correlation, from the moments of 'area' pixel.
+     *  The correlation of sums of i.i.d. random draws equals the correlation
+     *  of the single draws, so this is what the sampled estimators converge to. */
+    static double [] momentsToCorr( long [] m, long area ) {
+	final double n = area;
+	final double covIJ = m[4]/n - (m[0]/n)*(m[1]/n);
+	final double varI  = m[2]/n - (m[0]/n)*(m[0]/n);
+	final double varJ  = m[3]/n - (m[1]/n)*(m[1]/n);
+	
+	double rho = 0;
+	if ((varI>1e-9)&&(varJ>1e-9))
+	    rho = covIJ / Math.sqrt( varI * varJ );
+	return new double [] { rho, covIJ };
+    }
+
+    /** Expectation and variance of r^2, where r is the correlation 
+     *  estimated from 'nStat' subset sums. Uses Fisher's approximation
+     *  (atanh(r) is normal, mean atanh(rho), variance 1/(nStat-3)),
+     *  integrated numerically over +-6 sigma. */
+    static double [] rSquaredStats( double rho, int nStat ) {
+	
+	rho = Math.max( -0.999999, Math.min( 0.999999, rho ));
+	final double mu  = 0.5*Math.log( (1+rho)/(1-rho) );
+	final double sig = 1./Math.sqrt( Math.max( nStat-3, 1 ) );
+	final int K = 64;
+
+	double e2=0, e4=0, wSum=0;
+	for (int k=0; k<=K; k++) {
+	    final double z = -6 + 12.*k/K;
+	    final double w = Math.exp(-0.5*z*z) * (((k==0)||(k==K))?(0.5):(1));
+	    final double r2 = Math.pow( Math.tanh( mu + sig*z ), 2);
+	    e2   += w*r2;
+	    e4   += w*r2*r2;
+	    wSum += w;
+	}
+	e2/=wSum; e4/=wSum;
+	return new double [] { e2, e4-e2*e2 };
     }
 
+    /** Analytic counterpart to genMeasureData. Returns the expectation
+     *  and variance of the squared correlation, without sampling. */
+    public static double [] anaMeasureData(
+	GammaData inI, GammaData inJ,
+	int xIn, int yIn, int wIn, int hIn, final int nStat) {
+	
+	return anaMeasureData( inI, inJ, 
+	    RoiPixels.fromRect( xIn, yIn, wIn, hIn ), nStat );
+    }
+
+    /** Analytic counterpart to genMeasureData, for an arbitrary shaped ROI */
+    public static double [] anaMeasureData(
+	GammaData inI, GammaData inJ, RoiPixels rp, final int nStat) {
+	
+	return anaMeasureData( getMoments( inI, inJ, rp ), rp.count(), nStat );
+    }
+
+    /** Analytic counterpart to genMeasureData, from the moments of 'n' pixel */
+    static double [] anaMeasureData( long [] m, long n, final int nStat ) {
+	double [] c = momentsToCorr( m, n );
+	return rSquaredStats( c[0], nStat );
+    }
+
+    /** Sums of I, J, I^2, J^2 and I*J of linearized data */
+    static long [] getMoments( byte [] valI, byte [] valJ ) {
+	long sI=0, sJ=0, sII=0, sJJ=0, sIJ=0;
+	for (int p=0; p<valI.length; p++) {
+	    final int vi = valI[p];
+	    final int vj = valJ[p];
+	    sI+=vi; sJ+=vj; sII+=vi*vi; sJJ+=vj*vj; sIJ+=vi*vj;
+	}
+	return new long [] { sI, sJ, sII, sJJ, sIJ };
+    }
+
+    /** Analytic counterpart to genTopoData, for one row of the topology.
+     *  Uses running sums over columns and windows, so the cost per
+     *  window is independent of its size. Returns the correlation and 
+     *  the (expected) absolute covariance for x = 0 .. width-bin-1. */
+    public static float [][] anaTopoRow( GammaData inI, GammaData inJ,
+	int yIn, int bin, int n ) {
+
+	final int width = inI.width;
+	final int nx    = width - bin;
+	final long area = bin*bin;
+
+	// sum up the columns
+	long [][] col = new long[5][width];
+	for (int y=yIn; y<yIn+bin; y++)
+	for (int x=0; x<width; x++) {
+	    final int vi = inI.gammas[ y*width + x];
+	    final int vj = inJ.gammas[ y*width + x];
+	    col[0][x]+=vi; col[1][x]+=vj; 
+	    col[2][x]+=vi*vi; col[3][x]+=vj*vj; col[4][x]+=vi*vj;
+	}
+	
+	// slide the window along the row
+	float [][] ret = new float[2][Math.max(nx,0)];
+	long [] m = new long[5];
+	for (int x=0; x<bin && x<width; x++)
+	    for (int k=0;k<5;k++) m[k]+=col[k][x];
+
+	for (int x=0; x<nx; x++) {
+	    double [] c = momentsToCorr( m, area );
+	    ret[0][x] = (float)c[0];
+	    ret[1][x] = (float)(c[1]*n*(n-1));
+	    for (int k=0;k<5;k++) m[k]+=col[k][x+bin]-col[k][x];
+	}
+
+	return ret;
+    }
 
 
     /** Obtain a variance, optimized for small ROIs, for topology */
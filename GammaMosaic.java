@@ -0,0 +1,463 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.IJ;
+import ij.process.FloatProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Gamma data for images beyond 2^31 pixels (e.g. stitched whole-slide
+ *  mosaics). The gammas of all channels are stored as one bit mask byte
+ *  per pixel (so up to 8 channels) in an OffHeapStore, indexed by long.
+ *  Sum and col are computed from the mask on the fly. Heap use does not
+ *  grow with the image size: the pixels are read row-wise from a
+ *  PixelSource, ROI measurements only gather the measured pixels. 
+ *  'close' frees the mask once the mosaic is no longer needed. */
+class GammaMosaic extends GammaPlane implements Closeable {
+
+    final PixelSource src;
+    final float [] thrs;	// threshold per channel
+    private final OffHeapStore mask;
+    private final int full;	// mask with all channels set
+
+    /** Pixels remembered within the sampled threshold bounds (12 bytes 
+     *  each, over all strips and channels) when refining. If a channel 
+     *  has more, it is thresholded again with the exact threshold. */
+    static final int BAND_BUDGET = 1<<22;
+
+    /** Compute the gamma data for all channels of 'src' */
+    GammaMosaic( final PixelSource s, final float fac ) {
+	this( s, fac, ThresholdStats.Mode.EXACT );
+    }
+
+    /** Compute the gamma data for all channels of 'src', the threshold
+     *  statistics obtained by 'mode' (see ThresholdStats) */
+    GammaMosaic( final PixelSource s, final float fac, ThresholdStats.Mode mode ) {
+	
+	super( s.width(), s.height(), s.channels(), fac );
+	if (( cCount < 2 )||( cCount > 8 ))
+	    throw new RuntimeException("Please use 2 - 8 channels");
+	src  = s;
+	full = (1<<cCount)-1;
+	mask = OffHeapStore.create( (long)width*height );
+	
+	final int [][] strips = SimpleMT.split( 
+	    Math.min( height, 4*SimpleMT.getNumThreads() ), 0, height );
+	final double n = (double)width*height;
+	final boolean sampled = ( mode != ThresholdStats.Mode.EXACT )&&
+	    ( ThresholdStats.worthIt( (long)width*height ));
+	final boolean refine  = sampled && ( mode == ThresholdStats.Mode.REFINED );
+	thrs = new float[ cCount ];
+	final float [] bound = new float[ cCount ];
+	
+	long t0 = Metrics.start();
+	if ( sampled ) {
+	    // statistics from a sample of rows
+	    final int nRows = Math.max( 256, ThresholdStats.SAMPLES/width );
+	    for (int c=0; c<cCount; c++) {
+		final ThresholdStats st = ThresholdStats.sample( src, c, nRows, 17L*c+1 );
+		thrs[c]  = (float)st.threshold( fac );
+		bound[c] = (float)st.bound( fac );
+		Tools.log( "GiCA (mosaic) ch "+c+" sampled "+st+" --> thr: "+thrs[c]+
+		    " +-"+bound[c]+" (95%)" );
+	    }
+	} else {
+	    // statistics over the whole image, parallel over row strips
+	    final double [][] sum   = new double[ strips.length ][ cCount ];
+	    final double [][] sumSq = new double[ strips.length ][ cCount ];
+	    new SimpleMT.PFor( 0, strips.length ) {
+		public void at( int st ) {
+		    final float [] row = new float[ width ];
+		    for (int y=strips[st][0]; y<strips[st][1]; y++)
+		    for (int c=0; c<cCount; c++) {
+			src.readRow( c, y, row );
+			double su=0, sq=0;
+			for (int x=0; x<width; x++) {
+			    su += row[x]; sq += row[x]*(double)row[x];
+			}
+			sum[st][c] += su; sumSq[st][c] += sq;
+		    }
+		}
+	    };
+	    for (int c=0; c<cCount; c++) {
+		thrs[c] = threshold( sum, sumSq, c, n, fac );
+		Tools.log( "GiCA (mosaic) ch "+c+" --> thr: "+thrs[c] );
+	    }
+	    Metrics.stop( Metrics.STATISTICS, t0, (long)n*cCount );
+	}
+
+	// threshold into the bit masks, row by row (if refining: also
+	// sum up, and remember the pixels within the bound)
+	t0 = Metrics.start();
+	final double [][] sum   = new double[ strips.length ][ cCount ];
+	final double [][] sumSq = new double[ strips.length ][ cCount ];
+	final Band [][] band = new Band[ strips.length ][ cCount ];
+	new SimpleMT.PFor( 0, strips.length ) {
+	    public void at( int st ) {
+		final float [] row = new float[ width ];
+		final byte  [] m   = new byte[ width ];
+		final int cap = Math.max( 1024, BAND_BUDGET/( strips.length*cCount ));
+		for (int c=0; c<cCount; c++) 
+		    band[st][c] = new Band( cap );
+		for (int y=strips[st][0]; y<strips[st][1]; y++) {
+		    java.util.Arrays.fill( m, (byte)0 );
+		    for (int c=0; c<cCount; c++) {
+			src.readRow( c, y, row );
+			final float thr = thrs[c];
+			for (int x=0; x<width; x++)
+			    if ( row[x] > thr ) m[x] |= (byte)(1<<c);
+			if ( !refine ) continue;
+			final float lo = thr-bound[c], hi = thr+bound[c];
+			double su=0, sq=0;
+			for (int x=0; x<width; x++) {
+			    su += row[x]; sq += row[x]*(double)row[x];
+			    if (( row[x] > lo )&&( row[x] <= hi ))
+				band[st][c].add( (long)y*width+x, row[x] );
+			}
+			sum[st][c] += su; sumSq[st][c] += sq;
+		    }
+		    mask.put( (long)y*width, m, 0, width );
+		}
+	    }
+	};
+	Metrics.stop( Metrics.THRESHOLD, t0, (long)n*cCount );
+	Metrics.count( Metrics.PIXELS, ((sampled)?(1L):(2L))*width*height*cCount );
+
+	// refine: re-check the pixels in the bound with the exact threshold
+	if ( refine ) 
+	    for (int c=0; c<cCount; c++) {
+		final float exact = threshold( sum, sumSq, c, n, fac );
+		boolean ok = ( Math.abs( exact-thrs[c] ) <= bound[c] );
+		long nb=0;
+		for (int st=0; st<strips.length; st++) {
+		    ok &= !band[st][c].overflow;
+		    nb += band[st][c].n;
+		}
+		if ( ok ) {
+		    for (int st=0; st<strips.length; st++) {
+			final Band b = band[st][c];
+			for (int k=0; k<b.n; k++) {
+			    final int mm = mask.get( b.idx[k] );
+			    mask.put( b.idx[k], (byte)(( b.val[k] > exact )?
+				( mm | (1<<c) ):( mm & ~(1<<c) )));
+			}
+		    }
+		    Tools.log( "GiCA (mosaic) ch "+c+" refined thr: "+exact+", "+
+			nb+" pxl re-checked" );
+		} else {
+		    Tools.log( "GiCA (mosaic) ch "+c+" exact threshold "+exact+
+			" outside the sampled bound (or too many pixels in it), "+
+			"thresholding again" );
+		    rethreshold( c, exact, strips );
+		}
+		for (int st=0; st<strips.length; st++)
+		    band[st][c] = null;
+		thrs[c] = exact;
+	    }
+    }
+
+    /** Threshold of channel 'c' from sums over (strips of) the image */
+    private static float threshold( double [][] sum, double [][] sumSq, 
+	int c, double n, float fac ) {
+	double su=0, sq=0;
+	for (int st=0; st<sum.length; st++) {
+	    su += sum[st][c]; sq += sumSq[st][c];
+	}
+	final double avr = su/n;
+	final double var = (sq - n*avr*avr)/(n-1);
+	return (float)(avr + fac*Math.sqrt( Math.max( var, 0 )));
+    }
+
+    /** Set the bits of channel 'c' again, with threshold 'thr' */
+    private void rethreshold( final int c, final float thr, final int [][] strips ) {
+	new SimpleMT.PFor( 0, strips.length ) {
+	    public void at( int st ) {
+		final float [] row = new float[ width ];
+		final byte  [] m   = new byte[ width ];
+		for (int y=strips[st][0]; y<strips[st][1]; y++) {
+		    src.readRow( c, y, row );
+		    mask.get( (long)y*width, m, 0, width );
+		    for (int x=0; x<width; x++)
+			m[x] = (byte)(( row[x] > thr )?( m[x] | (1<<c) ):( m[x] & ~(1<<c) ));
+		    mask.put( (long)y*width, m, 0, width );
+		}
+	    }
+	};
+	Metrics.count( Metrics.PIXELS, (long)width*height );
+    }
+
+    /** Pixels (index, value) close to a sampled threshold, up to 'cap'
+     *  (beyond, they are dropped and 'overflow' is set) */
+    private static final class Band {
+	long  [] idx = new long[ 256 ];
+	float [] val = new float[ 256 ];
+	int n = 0;
+	final int cap;
+	boolean overflow = false;
+
+	Band( int c ) { cap = c; }
+
+	void add( long i, float v ) {
+	    if ( overflow ) return;
+	    if ( n == idx.length ) {
+		if ( n >= cap ) {
+		    overflow = true;
+		    idx = null; val = null; n = 0;
+		    return;
+		}
+		idx = java.util.Arrays.copyOf( idx, Math.min( 2*n, cap ));
+		val = java.util.Arrays.copyOf( val, idx.length );
+	    }
+	    idx[n] = i; val[n] = v; n++;
+	}
+    }
+
+    /** Value of virtual channel 'v' (0..N-1 channels, N sum, N+1 col)
+     *  for a mask byte */
+    private int value( int v, int m ) {
+	if ( v < cCount ) 
+	    return (m>>>v)&1;
+	if ( v == cCount )
+	    return Integer.bitCount( m );
+	return ( m == full )?(1):(0);
+    }
+
+    /** Read a row of the mask (or part of it) */
+    @Override
+    void maskRow( int y, int x, int len, byte [] out ) {
+	mask.get( (long)y*width+x, out, 0, len );
+    }
+
+    @Override
+    void rawRow( int c, int y, int x, int len, float [] out ) {
+	src.readRow( c, y, x, len, out );
+    }
+
+    @Override
+    float threshold( int c ) {
+	return thrs[c];
+    }
+
+    // ------ ROI measurement ------
+
+    /** Linearize the measured pixels of virtual channel 'v' */
+    private byte [] gather( int v, GICAmeasurement gm ) {
+	final RoiPixels rp = gm.area;
+	final byte [] ret = new byte[ rp.count() ];
+	byte [] m = new byte[ rp.w ];
+	int pos=0;
+	for (int s=0; s<rp.spans(); s++) {
+	    final int len = rp.spanLength(s);
+	    maskRow( rp.spanY(s), rp.spanX(s), len, m );
+	    for (int i=0; i<len; i++, pos++) 
+		ret[pos] = (byte)value( v, m[i] & 0xff );
+	}
+	Metrics.count( Metrics.BYTES, ret.length );
+	return ret;
+    }
+
+    @Override
+    protected int [] getCounts( GICAmeasurement gm ) {
+	final RoiPixels rp = gm.area;
+	int [] ret = new int[ cCount+1 ];
+	byte [] m = new byte[ rp.w ];
+	for (int s=0; s<rp.spans(); s++) {
+	    final int len = rp.spanLength(s);
+	    maskRow( rp.spanY(s), rp.spanX(s), len, m );
+	    for (int i=0; i<len; i++) {
+		final int b = m[i] & 0xff;
+		if ( b == full ) ret[0]++;
+		for (int c=0; c<cCount; c++)
+		    ret[c+1] += (b>>>c)&1;
+	    }
+	}
+	return ret;
+    }
+
+    @Override
+    protected void forEachPair( GICAmeasurement gm, PairVisitor v ) {
+	for ( int [] p : measurePairsV() )
+	    v.pair( gather( p[0], gm ), gather( p[1], gm ));
+    }
+
+    /** Compute the topology (see getTopology) and write it to 'f', 
+     *  row by row, without copying it to the heap */
+    void writeTopology( GammaParams p, File f ) throws IOException {
+	final OffHeapStore [] st = getTopology( p.binSize, p.secSize );
+	try {
+	    MappedTiff.writeFloats( f, width, height, st );
+	} finally {
+	    st[0].close();
+	    st[1].close();
+	}
+    }
+
+    /** Free the off-heap gamma mask. The mosaic must not be used after. */
+    public void close() {
+	mask.close();
+    }
+
+    // ------ topology ------
+
+    /** Compute the topology (norm., abs) with super-pixels of 'bin' x 'bin',
+     *  stored as floats (row-major, long-indexed) in two OffHeapStores.
+     *  Uses the analytic estimator: per column, sums over 'bin' rows are
+     *  updated as the window slides down (add entering, subtract leaving
+     *  row), then summed over 'bin' columns as running sums. 
+     *  The caller closes the returned stores. */
+    OffHeapStore [] getTopology( final int bin, final int nSection ) {
+	
+	final OffHeapStore topo    = OffHeapStore.create( 4L*width*height );
+	final OffHeapStore topoAbs;
+	try {
+	    topoAbs = OffHeapStore.create( 4L*width*height );
+	} catch ( RuntimeException e ) {
+	    topo.close();
+	    throw e;
+	}
+	final int ny = height - bin;
+	if (( ny <= 0 )||( bin >= width ))
+	    return new OffHeapStore [] { topo, topoAbs };
+
+	final List<int []> pairs = topoPairsV();
+	final int [][] strips = SimpleMT.split( 
+	    Math.min( ny, 4*SimpleMT.getNumThreads() ), 0, ny );
+	final AtomicInteger done = new AtomicInteger();
+	
+	try {
+	    new SimpleMT.PFor( 0, strips.length ) {
+		public void at( int st ) {
+		    topologyStrip( strips[st][0], strips[st][1], bin, nSection, 
+			pairs, topo, topoAbs );
+		    IJ.showProgress( done.incrementAndGet(), strips.length );
+		}
+	    };
+	} catch ( RuntimeException e ) {
+	    topo.close();
+	    topoAbs.close();
+	    throw e;
+	}
+	return new OffHeapStore [] { topo, topoAbs };
+    }
+
+    /** Topology for windows starting at rows ys .. ye-1 */
+    private void topologyStrip( int ys, int ye, int bin, int nSection, 
+	List<int []> pairs, OffHeapStore topo, OffHeapStore topoAbs ) {
+	
+	final int nV = cCount+2, nP = pairs.size();
+	final double area   = (double)bin*bin;
+	final double absFac = (double)nSection*(nSection-1);
+
+	// column sums over the rows of the window: per virtual 
+	// channel (sum, squares), per pair (cross)
+	final int [][] colS = new int[ nV ][ width ];
+	final int [][] colQ = new int[ nV ][ width ];
+	final int [][] colC = new int[ nP ][ width ];
+	final int [] pI = new int[ nP ], pJ = new int[ nP ];
+	for (int p=0; p<nP; p++) {
+	    pI[p] = pairs.get(p)[0]; pJ[p] = pairs.get(p)[1];
+	}
+	final byte [] m = new byte[ width ];
+	final float [] out = new float[ width ], outAbs = new float[ width ];
+
+	for (int y=ys; y<ys+bin; y++)
+	    addRow( y, 1, m, colS, colQ, colC, pI, pJ );
+
+	for (int y=ys; y<ye; y++) {
+	    final long t0 = Metrics.start();
+	    java.util.Arrays.fill( out, 0 );
+	    java.util.Arrays.fill( outAbs, 0 );
+	    
+	    for (int p=0; p<nP; p++) {
+		final int [] sI = colS[ pI[p] ], sJ = colS[ pJ[p] ];
+		final int [] qI = colQ[ pI[p] ], qJ = colQ[ pJ[p] ];
+		final int [] cc = colC[p];
+		
+		// running sums over 'bin' columns
+		long rI=0, rJ=0, rQI=0, rQJ=0, rC=0;
+		for (int x=0; x<bin; x++) {
+		    rI+=sI[x]; rJ+=sJ[x]; rQI+=qI[x]; rQJ+=qJ[x]; rC+=cc[x];
+		}
+		for (int x=0; x<width-bin; x++) {
+		    final double mI = rI/area, mJ = rJ/area;
+		    final double cov  = rC/area - mI*mJ;
+		    final double varI = rQI/area - mI*mI;
+		    final double varJ = rQJ/area - mJ*mJ;
+		    double rho = 0;
+		    if ((varI>1e-9)&&(varJ>1e-9))
+			rho = cov / Math.sqrt( varI*varJ );
+		    out[ x+bin/2 ]    += rho*rho;
+		    outAbs[ x+bin/2 ] += Math.pow( cov*absFac, 2 );
+		    
+		    rI  += sI[x+bin] - sI[x];   rJ  += sJ[x+bin] - sJ[x];
+		    rQI += qI[x+bin] - qI[x];   rQJ += qJ[x+bin] - qJ[x];
+		    rC  += cc[x+bin] - cc[x];
+		}
+	    }
+
+	    for (int x=0; x<width; x++) {
+		out[x]    = (float)Math.sqrt( out[x] );
+		outAbs[x] = (float)Math.sqrt( outAbs[x] );
+	    }
+	    final long o = (long)(y+bin/2)*width;
+	    topo.putFloats( o, out, 0, width );
+	    topoAbs.putFloats( o, outAbs, 0, width );
+
+	    // slide the window down
+	    addRow( y, -1, m, colS, colQ, colC, pI, pJ );
+	    if ( y+bin < height )
+		addRow( y+bin, 1, m, colS, colQ, colC, pI, pJ );
+	    Metrics.stop( Metrics.TOPO_ROW, t0, width-bin );
+	}
+    }
+
+    /** Add (sign=1) or subtract (sign=-1) a row to the column sums */
+    private void addRow( int y, int sign, byte [] m, 
+	int [][] colS, int [][] colQ, int [][] colC, int [] pI, int [] pJ ) {
+	
+	maskRow( y, 0, width, m );
+	final byte [] vals = new byte[ cCount+2 ];
+	for (int x=0; x<width; x++) {
+	    final int mm = m[x] & 0xff;
+	    for (int v=0; v<cCount+2; v++) {
+		final int val = value( v, mm );
+		vals[v] = (byte)val;
+		colS[v][x] += sign*val;
+		colQ[v][x] += sign*val*val;
+	    }
+	    for (int p=0; p<pI.length; p++)
+		colC[p][x] += sign*vals[ pI[p] ]*vals[ pJ[p] ];
+	}
+	Metrics.count( Metrics.PIXELS, width );
+    }
+
+    /** A region of a topology store as FloatProcessor, e.g. for display */
+    FloatProcessor region( OffHeapStore st, int x, int y, int w, int h ) {
+	FloatProcessor ret = new FloatProcessor( w, h );
+	float [] px = (float [])ret.getPixels();
+	for (int yy=0; yy<h; yy++)
+	for (int xx=0; xx<w; xx++)
+	    px[ yy*w+xx ] = st.getFloat( (long)(y+yy)*width + x+xx );
+	return ret;
+    }
+
+}
@@ -19,149 +19,233 @@ package de.bio_photonics.gica;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import ij.plugin.PlugIn;
+import ij.plugin.FileInfoVirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import java.util.List;
+import java.util.ArrayList;
 
  
 
-public class GammaNorm {
+public class GammaNorm extends GammaPlane {
     //implements SimpleMC<LoopParam> {
  
-    final int width, height, cCount;
-
     GammaData [] gDats;
     GammaData gSum, gCol;
 
-    protected double sampleFactor;  // quotient of sample element
-    protected int    bsCount;	    // number of error est. samples
-    protected int    nStatCount;    // number of samples for variance
+    /** How the correlation of the sampled subsets is obtained */
+    public enum Estimator {
+	MONTECARLO("Monte Carlo"), 
+	ADAPTIVE("adaptive Monte Carlo"),
+	ANALYTIC("analytic");
+
+	final String label;
+	Estimator(String l) { label=l; }
+
+	/** labels, for the dialog */
+	static String [] labels() {
+	    String [] ret = new String[ values().length ];
+	    for (int i=0; i<ret.length; i++) ret[i] = values()[i].label;
+	    return ret;
+	}
+    }
+
+    /** How strided topology values are filled in */
+    public enum Interpolation {
+	BILINEAR("bilinear"),
+	BICUBIC("bicubic");
+
+	final String label;
+	Interpolation(String l) { label=l; }
+
+	/** labels, for the dialog */
+	static String [] labels() {
+	    String [] ret = new String[ values().length ];
+	    for (int i=0; i<ret.length; i++) ret[i] = values()[i].label;
+	    return ret;
+	}
+    }
+
+    
+    // how the threshold statistics are obtained
+    private ThresholdStats.Mode statsMode = ThresholdStats.Mode.EXACT;
 
-    protected int      binSize, secSize;
-    protected boolean  fullResult;
-    protected ImagePlus sourceImg;
+    // neighbourhood radius of a local threshold, 0: global threshold
+    private int localRadius = 0;
 
-    private final float thrFac;
+    // the raw intensities (for Pearson, Manders, overlap), only kept
+    // while the parameters ask for them
+    private volatile PixelSource.FromStack raw;
 
     /** creates a GammaNorm for the ImageStack */
     public GammaNorm( ImageStack is, float fac ) {
+	this( is, fac, ThresholdStats.Mode.EXACT );
+    }
+
+    /** creates a GammaNorm for the ImageStack, the threshold statistics
+     *  obtained by 'mode' (exact, or approx. from a sample) */
+    GammaNorm( ImageStack is, float fac, ThresholdStats.Mode mode ) {
+	this( is, fac, mode, 0 );
+    }
+
+    /** creates a GammaNorm for the ImageStack, with a local threshold
+     *  over a neighbourhood of 'localRadius' (0: global threshold, 
+     *  statistics obtained by 'mode') */
+    GammaNorm( ImageStack is, float fac, ThresholdStats.Mode mode, int localRadius ) {
+	this( is, fac, mode, localRadius, GammaParams.DEFAULT );
+    }
+
+    /** creates a GammaNorm for the ImageStack (see above), with parameters
+     *  'p'. The stack is only referenced if 'p' asks for the colocalization
+     *  coefficients, which need the raw intensities. */
+    GammaNorm( ImageStack is, float fac, ThresholdStats.Mode mode, int localRadius,
+	GammaParams p ) {
+
+	// copy image parameters
+	super( is.getWidth(), is.getHeight(), is.getSize(), fac );
+	setParams( p );
 
 	// check if the stack is sized correctly
 	if (is.getSize()<2)
 	    throw new RuntimeException("Input stack to short");
+	
+	final Object ev = Trace.T.begin( Trace.GAMMANORM );
 
-	// copy image parameters
-	width  = is.getWidth();
-	height = is.getHeight();
-	cCount = is.getSize();
-	thrFac = fac;
+	statsMode = mode;
+	this.localRadius = localRadius;
 
 	// copute gamma data for all channels (all images in stack)
 	gDats = new GammaData[ cCount ];
 
 	for (int i=0; i<cCount;i++)
-	    gDats[i] = new GammaData( is.getProcessor(i+1) , fac);
+	    gDats[i] = new GammaData( is.getProcessor(i+1) , fac, mode, localRadius );
+	raw = ( p.colocMetrics )?( new PixelSource.FromStack( is ) ):( null );
 
 	// compute the sum and col gamma norm
 	gSum = GammaData.sumGamma( gDats );
 	gCol = GammaData.colGamma( gDats );
 
+	Trace.T.gammaNorm( ev, width, height, cCount, fac );
     }
 
 
 
 
-    /** Calculate the gamma for a sub-region of the image.
-     *  This uses the global threshhold. */
-    public void measureRoi(GICAmeasurement gm) {
+    /** Recompute all gamma data from a new stack of the same size and
+     *  channel count, reusing the buffers (e.g. for time-lapse frames).
+     *  Everything else treats the gamma data as immutable, so this is 
+     *  only safe on instances not shared with other threads. */
+    void update( ImageStack is ) {
+	
+	if (( is.getWidth() != width )||( is.getHeight() != height )
+	    ||( is.getSize() != cCount ))
+	    throw new RuntimeException("Stack does not match gamma norm");
 
-	// parameters
-	final int N = gDats.length;
-	final int rMaxCount = Tools.faculty(N-1) + N +1;
-	final double rMax   = Math.sqrt( rMaxCount );
-	int cnt=0;
+	for (int i=0; i<cCount;i++)
+	    gDats[i].fill( is.getProcessor(i+1), thrFac, false, statsMode, localRadius );
+	GammaData.sumGamma( gDats, gSum );
+	GammaData.colGamma( gDats, gCol );
+	raw = ( params().colocMetrics )?( new PixelSource.FromStack( is ) ):( null );
+	pyramid = null;
+    }
 
-	// calculate a set of values
-	double [] resVector = new double[ bsCount ];
-	IJ.showProgress(0,rMaxCount);
+    void rawRow( int c, int y, int x, int len, float [] out ) {
+	final PixelSource.FromStack r = raw;
+	if ( r == null )
+	    throw new UnsupportedOperationException("No raw intensities: "+
+		"colocalization coefficients not set in the parameters "+
+		"this instance was created with");
+	r.readRow( c, y, x, len, out );
+    }
 
-	// each channel with the other
-	for (int i=0;i<gDats.length-1;i++)
-	for (int j=0;i<gDats.length;i++)  
-	if (i!=j) { 
-	    float [] val = GammaData.genMeasureData( 
-		gDats[i], gDats[j], 
-		gm.x, gm.y, gm.w, gm.h,
-		bsCount, sampleFactor, nStatCount );
-	
-	    for (int k=0;k<bsCount;k++)
-		resVector[k]+= Math.pow(val[k],2);
-	
-	    IJ.showProgress(++cnt, rMaxCount);
-	}
+    float threshold( int c ) {
+	return gDats[c].thr;
+    }
 
-	
-	// each channel with the col
-	for (int i=0;i<gDats.length;i++) { 
-	    float [] val = GammaData.genMeasureData( 
-	        gDats[i], gCol, 
-	        gm.x, gm.y, gm.w, gm.h,
-		bsCount, sampleFactor, nStatCount );
-	    for (int k=0;k<bsCount;k++)
-		resVector[k]+= Math.pow(val[k],2);
-	    IJ.showProgress(++cnt, rMaxCount);
+    void maskRow( int y, int x, int len, byte [] out ) {
+	if ( cCount > 8 )
+	    throw new UnsupportedOperationException("Bit masks hold up to 8 channels");
+	java.util.Arrays.fill( out, 0, len, (byte)0 );
+	final int off = y*width + x;
+	for (int c=0; c<cCount; c++) {
+	    final byte [] g = gDats[c].gammas;
+	    for (int i=0; i<len; i++) 
+		if ( g[ off+i ] != 0 ) out[i] |= (byte)(1<<c);
 	}
+    }
 
+    /** How the threshold statistics were obtained */
+    ThresholdStats.Mode statsMode() {
+	return statsMode;
+    }
 
-	// col with sum
-	{
-	    float [] val = GammaData.genMeasureData( 
-		gSum, gCol, 
-		gm.x, gm.y, gm.w, gm.h,
-		bsCount, sampleFactor, nStatCount );
-	    for (int k=0;k<bsCount;k++)
-		resVector[k]+= Math.pow(val[k],2);
-	    IJ.showProgress(++cnt, rMaxCount);
-	}
+    /** Radius of the local threshold (0: global threshold) */
+    int localRadius() {
+	return localRadius;
+    }
 
-	// calculate all the vector lenth
-	for (int k=0;k<bsCount;k++)
-	    resVector[k] = Math.sqrt( resVector[k] );
+    /** Replace the parameters, drops the raw intensities if they
+     *  are no longer needed (they cannot be restored once dropped) */
+    @Override
+    void setParams( GammaParams p ) {
+	super.setParams( p );
+	if ( !p.colocMetrics ) 
+	    raw = null;
+    }
 
-	// ... gamma norms average
-	double resAvr=0;
-	for (double i : resVector) 
-	    resAvr+=i/resVector.length;
-	
-	// .... gamma norms variance
-	double resVar=0;
-	for (double i : resVector) 
-	    resVar+=Math.pow( i-resAvr ,2 );
-	
-	// store measurements
-	gm.gNorm    = resAvr;
-	gm.gNormErr = Math.sqrt((1./(resVector.length-1))* resVar );
-	
-	// store number of pxl and col. coeff.
-	gm.colPx = 
-	    gCol.getCount( gm.x, gm.y, gm.w, gm.h )/(double)(gm.w*gm.h);
-	
-	gm.listI = new int[ gDats.length +1];
-	gm.listI[0] = gCol.getCount(gm.x, gm.y, gm.w, gm.h );
-	for ( int i=0; i<gDats.length; i++)
-	    gm.listI[i+1] = gDats[i].getCount( gm.x, gm.y, gm.w, gm.h );
-	
-	gm.af  = (rMax - resAvr ) / (rMax );
-	gm.thr = thrFac; 
+    // ------ ROI measurement ------
 
+    protected int [] getCounts( GICAmeasurement gm ) {
+	int [] ret = new int[ gDats.length +1];
+	ret[0] = gCol.getCount( gm.area );
+	for ( int i=0; i<gDats.length; i++)
+	    ret[i+1] = gDats[i].getCount( gm.area );
+	return ret;
     }
 
+    protected void forEachPair( GICAmeasurement gm, PairVisitor v ) {
+	for ( int [] p : measurePairsV() ) {
+	    final byte [][] val = GammaData.linearize( 
+		virtualChannel( p[0] ), virtualChannel( p[1] ), gm.area );
+	    v.pair( val[0], val[1] );
+	}
+    }
+    
+    /** The moments of all measurement pairs, directly from the 
+     *  gamma data (nothing linearized) */
+    @Override
+    protected List<long []> pairMoments( GICAmeasurement gm ) {
+	List<long []> ret = new ArrayList<long []>();
+	for ( int [] p : measurePairsV() )
+	    ret.add( GammaData.getMoments( 
+		virtualChannel( p[0] ), virtualChannel( p[1] ), gm.area ));
+	return ret;
+    }
 
     /** Calculate the gamma for a sub-region of the image.
      *  This uses the global threshhold. */
     public ImageStack [] getGammaStack( int binSize, int nSection) {
+	return getGammaStack( params().toBuilder().binSize( binSize )
+	    .secSize( nSection ).build() );
+    }
+
+    /** Compute the topology with parameters 'p'. As measureRoi, 
+     *  this only reads the gamma data and may run concurrently. */
+    public ImageStack [] getGammaStack( GammaParams p ) {
+
+	final int binSize = p.binSize, nSection = p.secSize;
+
+	final Object ev = Trace.T.begin( Trace.TOPOLOGY );
 
 	ImageStack retSt    = new ImageStack(width, height);
 	ImageStack retStAbs = new ImageStack(width, height);
@@ -169,70 +253,305 @@ public class GammaNorm {
 	// number of channels
 	final int N = gDats.length;
 
-	// current and end value for status bar update
-	int curStat = 0; 
-	final int maxStat = (Tools.faculty(N-1) + N + 1);
+	// row-level progress, with estimated time left
+	final CostModel.Progress pr = progress( p );
     
 	// each channel with the other
 	for (int i=0;i<N-1;i++) 
 	for (int j=1;j<N;j++) 
 	if (i!=j)  {
-	    FloatProcessor [] img = getGammaProcessor( gDats[i], gDats[j], binSize, nSection);
-	    IJ.showProgress( curStat++, maxStat);
+	    FloatProcessor [] img = getGammaProcessor( gDats[i], gDats[j], p, pr);
 	    retSt.addSlice("r_ij Ch "+i+","+j, img[0]);
 	    retStAbs.addSlice("abs r_ij Ch "+i+","+j, img[1]);
 	}
 
 	// each channel with the col
 	for (int i=0;i<gDats.length;i++) {
-	    FloatProcessor [] img = getGammaProcessor( gDats[i], gCol, binSize, nSection);
-	    IJ.showProgress( curStat++, maxStat);
+	    FloatProcessor [] img = getGammaProcessor( gDats[i], gCol, p, pr);
 	    retSt.addSlice("r_col,"+i, img[0]);
 	    retStAbs.addSlice("abs r_col,"+i, img[1]);
 	}
 
 	// col with sum
-	FloatProcessor [] img = getGammaProcessor( gSum, gCol, binSize, nSection);
-	IJ.showProgress( curStat++, maxStat);
+	FloatProcessor [] img = getGammaProcessor( gSum, gCol, p, pr);
 	retSt.addSlice("r_col,sum", img[0]);
 	retStAbs.addSlice("abs r_col,sum", img[1]);
 
+	Trace.T.topology( ev, width, height, N, binSize, nSection, p.estimator.label );
+
 	return new ImageStack [] { retSt , retStAbs };
     }
 
 
     /* Computes the FloatProcessors for GammaValue visualization between two GammaData objects. */
     FloatProcessor [] getGammaProcessor( final GammaData gdi, final GammaData gdj,
-	final int binSize, final int nSection  ){
+	final GammaParams p ){
+	return getGammaProcessor( gdi, gdj, p, null );
+    }
+
+    /** As getGammaProcessor, counting finished rows in 'pr' (may be null) */
+    FloatProcessor [] getGammaProcessor( final GammaData gdi, final GammaData gdj,
+	final GammaParams p, final CostModel.Progress pr ){
+
+	final int binSize = p.binSize, nSection = p.secSize;
+	final Object ev = Trace.T.begin( Trace.PAIR );
 
 	// create new output images
 	final FloatProcessor img    = new FloatProcessor(width, height);
 	final FloatProcessor imgAbs = new FloatProcessor(width, height);
+	Metrics.count( Metrics.BYTES, 8L*width*height );
+
+	if ( p.stride > 1 ) {
+	    TopologyGrid g = new TopologyGrid( width, height, binSize, p.stride );
+	    topologyGrid( gdi, gdj, p, g, false, pr );
+	    g.interpolate( p.interpolation, 0, height-binSize, 
+		(float [])img.getPixels(), (float [])imgAbs.getPixels(), 0 );
+	} else {
+	    topologyRows( gdi, gdj, p, 0, height-binSize, 
+		(float [])img.getPixels(), (float [])imgAbs.getPixels(), 0, false, pr );
+	}
+    
+	Trace.T.topologyPair( ev, width, height, binSize, nSection, p.estimator.label );
+
+	// return both images
+	return new FloatProcessor [] { img, imgAbs };
+
+    } 
 
+    /** Computes the topology of one pair for the windows starting at
+     *  rows y0 .. y1-1. The values are stored at the window centers in
+     *  'out' and 'outAbs', which hold the image from row 'rowOff' on. 
+     *  If 'squared', their squares are added instead (to sum up the
+     *  euclidean norm over all pairs without storing each pair). 
+     *  Finished rows are counted in 'pr' (may be null). */
+    void topologyRows( final GammaData gdi, final GammaData gdj, final GammaParams p,
+	final int y0, final int y1, final float [] out, final float [] outAbs,
+	final int rowOff, final boolean squared, final CostModel.Progress pr ) {
+
+	final int binSize = p.binSize, nSection = p.secSize;
+	
 	// loop
-	new SimpleMT.PFor( 0, height-binSize ) {
+	new SimpleMT.PFor( y0, y1 ) {
 	    //for( int y=0;y<height-binSize; y++) {
 	    public void at(int y) {
+		final long t0 = Metrics.start();
+		final long nx = Math.max( width-binSize, 0 );
+		final int off = (y+binSize/2-rowOff)*width + binSize/2;
+		// closed form, running sums along the row
+		if ( p.estimator == Estimator.ANALYTIC ) {
+		    float [][] tmp = GammaData.anaTopoRow(
+			gdi, gdj, y, binSize, nSection);
+		    for( int x=0;x<width -binSize; x++) 
+			store( out, outAbs, off+x, tmp[0][x], tmp[1][x], squared );
+		    Metrics.stop( Metrics.TOPO_ROW, t0, nx );
+		    Metrics.count( Metrics.PIXELS, 2L*(width+1)*binSize );
+		    if ( pr != null ) pr.rows(1);
+		    return;
+		}
+
+		// random sampling
 		for( int x=0;x<width -binSize; x++) {
 
 		    float [] tmp = GammaData.genTopoData( 
 			gdi, gdj, x, y, binSize, binSize, nSection);
 		    
-		    img.setf(x+binSize/2,y+binSize/2,tmp[0]);
-		    imgAbs.setf(x+binSize/2,y+binSize/2,tmp[1]);
+		    store( out, outAbs, off+x, tmp[0], tmp[1], squared );
 		}
+		Metrics.stop( Metrics.TOPO_ROW, t0, nx );
+		Metrics.count( Metrics.SAMPLES, nx*nSection*nSection );
+		Metrics.count( Metrics.PIXELS, 2L*nx*binSize*binSize );
+		if ( pr != null ) pr.rows(1);
 	    }
 	};
-    
-	// return both images
+    }
+
+    /** Computes the topology of one pair at the grid points of 'g'.
+     *  If 'squared', the squares are added (see topologyRows). */
+    void topologyGrid( final GammaData gdi, final GammaData gdj, final GammaParams p,
+	final TopologyGrid g, final boolean squared, final CostModel.Progress pr ) {
+
+	final int binSize = p.binSize, nSection = p.secSize;
+	new SimpleMT.PFor( 0, g.gy ) {
+	    public void at(int j) {
+		final long t0 = Metrics.start();
+		final int y = g.y(j);
+		if ( p.estimator == Estimator.ANALYTIC ) {
+		    float [][] tmp = GammaData.anaTopoRow(
+			gdi, gdj, y, binSize, nSection);
+		    for (int i=0; i<g.gx; i++)
+			store( g.val, g.valAbs, j*g.gx+i, 
+			    tmp[0][ g.x(i) ], tmp[1][ g.x(i) ], squared );
+		    Metrics.count( Metrics.PIXELS, 2L*(width+1)*binSize );
+		} else {
+		    for (int i=0; i<g.gx; i++) {
+			float [] tmp = GammaData.genTopoData( 
+			    gdi, gdj, g.x(i), y, binSize, binSize, nSection);
+			store( g.val, g.valAbs, j*g.gx+i, tmp[0], tmp[1], squared );
+		    }
+		    Metrics.count( Metrics.SAMPLES, (long)g.gx*nSection*nSection );
+		    Metrics.count( Metrics.PIXELS, 2L*g.gx*binSize*binSize );
+		}
+		Metrics.stop( Metrics.TOPO_ROW, t0, g.gx );
+		if ( pr != null ) pr.rows(1);
+	    }
+	};
+    }
+
+    /** The grid of the topology summed over all pairs (strided topology) */
+    TopologyGrid topologyGrid( GammaParams p, CostModel.Progress pr ) {
+	TopologyGrid g = new TopologyGrid( width, height, p.binSize, p.stride );
+	for ( int [] v : topoPairsV() )
+	    topologyGrid( virtualChannel( v[0] ), virtualChannel( v[1] ), p,
+		g, true, pr );
+	g.sqrt();
+	return g;
+    }
+
+    private static void store( float [] out, float [] outAbs, int i, 
+	float v, float vAbs, boolean squared ) {
+	if ( squared ) {
+	    out[i]    += v*v;
+	    outAbs[i] += vAbs*vAbs;
+	} else {
+	    out[i]    = v;
+	    outAbs[i] = vAbs;
+	}
+    }
+
+    /** Progress of a topology with parameters 'p': all rows of all pairs */
+    CostModel.Progress progress( GammaParams p ) {
+	final int s = Math.max( 1, p.stride );
+	final long rows = (long)topoPairsV().size() * 
+	    TopologyGrid.points( Math.max( height-p.binSize, 0 ), s );
+	return new CostModel.Progress( rows, CostModel.get().predict( this, p, s ));
+    }
+
+    /** The gamma data of virtual channel 'v' (0..N-1 channels, N sum, N+1 col) */
+    GammaData virtualChannel( int v ) {
+	return ( v < cCount )?( gDats[v] ):(( v == cCount )?( gSum ):( gCol ));
+    }
+
+    /** Compute the topology (norm., abs) for windows starting at rows
+     *  y0 .. y1-1, summed over all pairs, into 'out' and 'outAbs' 
+     *  (starting at image row 'rowOff'), see topologyRows. */
+    void topologyReduced( GammaParams p, int y0, int y1, 
+	float [] out, float [] outAbs, int rowOff, CostModel.Progress pr ) {
+	for ( int [] v : topoPairsV() )
+	    topologyRows( virtualChannel( v[0] ), virtualChannel( v[1] ), p,
+		y0, y1, out, outAbs, rowOff, true, pr );
+	for (int i=0; i<out.length; i++) {
+	    out[i]    = (float)Math.sqrt( out[i] );
+	    outAbs[i] = (float)Math.sqrt( outAbs[i] );
+	}
+    }
+
+    /** Compute the topology (norm., abs) as streaming reduction: the 
+     *  pairs are summed up as they are computed, so only the two 
+     *  output images are held in memory. Same result as the euclidean
+     *  norm (euclSumStack) of getGammaStack. */
+    FloatProcessor [] getTopology( GammaParams p ) {
+	
+	final Object ev = Trace.T.begin( Trace.TOPOLOGY );
+	
+	final FloatProcessor img    = new FloatProcessor( width, height );
+	final FloatProcessor imgAbs = new FloatProcessor( width, height );
+	Metrics.count( Metrics.BYTES, 8L*width*height );
+	if ( p.stride > 1 ) 
+	    topologyGrid( p, progress( p ) ).interpolate( p.interpolation, 
+		0, height, (float [])img.getPixels(), (float [])imgAbs.getPixels(), 0 );
+	else
+	    topologyReduced( p, 0, Math.max( height-p.binSize, 0 ),
+		(float [])img.getPixels(), (float [])imgAbs.getPixels(), 0, progress( p ) );
+
+	Trace.T.topology( ev, width, height, cCount, p.binSize, p.secSize, p.estimator.label );
 	return new FloatProcessor [] { img, imgAbs };
+    }
 
-    } 
+    /** The topology (see getTopology) as two-slice image */
+    ImagePlus topologyImage( GammaParams p, String title ) {
+	FloatProcessor [] tp = getTopology( p );
+	ImageStack out = new ImageStack( width, height );
+	out.addSlice( "Topology (norm.)", tp[0] );
+	out.addSlice( "Topology (abs)",   tp[1] );
+	return new ImagePlus( title, out );
+    }
+
+    void writeTopology( GammaParams p, File f ) throws IOException {
+	if ( !new FileSaver( topologyImage( p, "GICA topology" ))
+		.saveAsTiffStack( f.getPath() ))
+	    throw new IOException("Could not write "+f);
+    }
+
+    /** Compute the topology (norm., abs) in strips of 'stripRows' rows,
+     *  written to file 'f' (raw 32-bit float, two images) as they finish.
+     *  Returns the result as virtual stack, read from disk on demand. */
+    ImagePlus getTopologyTiled( GammaParams p, int stripRows, File f ) 
+	throws IOException {
+
+	final Object ev = Trace.T.begin( Trace.TOPOLOGY );
+	
+	final int bin = p.binSize, ny = Math.max( height-bin, 0 );
+	stripRows = Math.max( 1, stripRows );
+	final long imgBytes = 4L*width*height;
+	
+	RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+	try {
+	    raf.setLength( 2*imgBytes );
+	    final float [] out    = new float[ stripRows*width ];
+	    final float [] outAbs = new float[ stripRows*width ];
+	    final ByteBuffer bb = ByteBuffer.allocate( 4*stripRows*width );
+	    Metrics.count( Metrics.BYTES, 12L*stripRows*width );
+	    final CostModel.Progress pr = progress( p );
+	    
+	    // strided: the grid is small, compute it first
+	    final TopologyGrid grid = ( p.stride > 1 )?( topologyGrid( p, pr ) ):( null );
+	    
+	    for (int y0=0; y0<ny; y0+=stripRows) {
+		final int y1 = Math.min( y0+stripRows, ny );
+		java.util.Arrays.fill( out, 0 );
+		java.util.Arrays.fill( outAbs, 0 );
+		
+		// the strip's output rows start at the first window center
+		final int rowOff = y0 + bin/2;
+		if ( grid != null )
+		    grid.interpolate( p.interpolation, y0, y1, out, outAbs, rowOff );
+		else
+		    topologyReduced( p, y0, y1, out, outAbs, rowOff, pr );
+		final int n = (y1-y0)*width;
+		
+		bb.clear();
+		bb.asFloatBuffer().put( out, 0, n );
+		raf.seek( 4L*rowOff*width );
+		raf.write( bb.array(), 0, 4*n );
+		bb.clear();
+		bb.asFloatBuffer().put( outAbs, 0, n );
+		raf.seek( imgBytes + 4L*rowOff*width );
+		raf.write( bb.array(), 0, 4*n );
+	    }
+	} finally {
+	    raf.close();
+	}
+	
+	Trace.T.topology( ev, width, height, cCount, bin, p.secSize, p.estimator.label );
+
+	// open as virtual stack
+	FileInfo fi = new FileInfo();
+	fi.fileType = FileInfo.GRAY32_FLOAT;
+	fi.width  = width;
+	fi.height = height;
+	fi.nImages = 2;
+	fi.intelByteOrder = false;
+	fi.fileName  = f.getName();
+	fi.directory = f.getParent()+File.separator;
+	fi.sliceLabels = new String [] { "Topology (norm.)", "Topology (abs)" };
+	return new ImagePlus( f.getName(), new FileInfoVirtualStack( fi, false ));
+    }
 
     /** Computes the euclidean norm of a stack of FloatProcessors.
      *  TODO: This blindly assumes all ImageProcessors to be FloatProcessors. */
     static FloatProcessor euclSumStack( ImageStack in ) {
 
+	final long t0 = Metrics.start();
 	FloatProcessor ret = new FloatProcessor(
 	    in.getWidth(), in.getHeight());
 
@@ -247,6 +566,9 @@ public class GammaNorm {
 	for (int j=0;j<pxl.length;j++)
 	    pxl[j] = (float)Math.sqrt(pxl[j]);
 
+	Metrics.stop( Metrics.EUCL, t0, (long)pxl.length*in.getSize() );
+	Metrics.count( Metrics.PIXELS, (long)pxl.length*in.getSize() );
+	Metrics.count( Metrics.BYTES, 4L*pxl.length );
 	return ret;
     }
 
@@ -0,0 +1,178 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** The parameters of ROI measurements and topology, as immutable
+ *  record. A GammaNorm holds its current parameters as one reference,
+ *  so each measurement or topology works on a consistent snapshot
+ *  while the parameters may be replaced from another thread.
+ *  Created by the Builder (defaults as in the GICA dialog). */
+final class GammaParams {
+
+    final double sampleFactor;	// quotient of sample element
+    final int    bsCount;	// number of error est. samples
+    final int    nStatCount;	// number of samples for variance
+    final int    bsMax;		// max. number of error est. samples (adaptive)
+    final double bsTargetErr;	// target precision of the mean (adaptive)
+    final double bsTargetRel;	// target precision, rel. to the mean (adaptive)
+    final int    binSize;	// super-pixel size (topology)
+    final int    secSize;	// number of samples (topology)
+    final int    stride;	// output stride (topology), 1 = dense
+    final GammaNorm.Interpolation interpolation; // fills in strided topology
+    final int    permutations;	// permutation test runs, 0 = off
+    final PermutationTest.Mode permMode; // how the channel is permuted
+    final int    permChannel;	// the channel that is permuted
+    final int    permBlock;	// block size / min. shift, 0 = super-pixel size
+    final boolean colocMetrics;	// also Pearson, Manders, overlap
+    final boolean fullResult;	// show intermediate results
+    final GammaNorm.Estimator estimator;
+
+    /** The default parameters */
+    static final GammaParams DEFAULT = new Builder().build();
+
+    private GammaParams( Builder b ) {
+	sampleFactor = b.sampleFactor;
+	bsCount      = b.bsCount;
+	nStatCount   = b.nStatCount;
+	bsMax        = b.bsMax;
+	bsTargetErr  = b.bsTargetErr;
+	bsTargetRel  = b.bsTargetRel;
+	binSize      = b.binSize;
+	secSize      = b.secSize;
+	stride       = b.stride;
+	interpolation = b.interpolation;
+	permutations = b.permutations;
+	permMode     = b.permMode;
+	permChannel  = b.permChannel;
+	permBlock    = b.permBlock;
+	colocMetrics = b.colocMetrics;
+	fullResult   = b.fullResult;
+	estimator    = b.estimator;
+    }
+
+    /** A builder, starting from these parameters */
+    Builder toBuilder() {
+	return new Builder( this );
+    }
+
+    @Override
+    public String toString() {
+	return "estimator: "+estimator.label+", sample factor: "+sampleFactor+
+	    ", stat. #N: "+nStatCount+", error est. N: "+bsCount+
+	    " (max "+bsMax+", target "+bsTargetErr+" / "+bsTargetRel+")"+
+	    ", SuperPxl: "+binSize+", stat. #N (topo): "+secSize+
+	    ((stride>1)?(", stride: "+stride+" ("+interpolation.label+")"):(""))+
+	    ((permutations>0)?(", permutations: "+permutations+" ("+permMode.label+
+		", ch "+permChannel+", block "+permBlock+")"):(""))+
+	    ((colocMetrics)?(", Pearson/Manders/overlap"):(""));
+    }
+
+    /** Collects parameters for a GammaParams record */
+    static final class Builder {
+	
+	private double sampleFactor = 0.25;
+	private int    bsCount      = 20;
+	private int    nStatCount   = 20;
+	private int    bsMax        = 1000;
+	private double bsTargetErr  = 0.005;
+	private double bsTargetRel  = 0.01;
+	private int    binSize      = 12;
+	private int    secSize      = 20;
+	private int    stride       = 1;
+	private GammaNorm.Interpolation interpolation = 
+	    GammaNorm.Interpolation.BILINEAR;
+	private int    permutations = 0;
+	private PermutationTest.Mode permMode = PermutationTest.Mode.SHIFT;
+	private int    permChannel  = 0;
+	private int    permBlock    = 0;
+	private boolean colocMetrics = false;
+	private boolean fullResult  = false;
+	private GammaNorm.Estimator estimator = GammaNorm.Estimator.MONTECARLO;
+
+	/** Start from the default parameters */
+	Builder() {}
+
+	/** Start from the parameters in 'p' */
+	Builder( GammaParams p ) {
+	    sampleFactor = p.sampleFactor;
+	    bsCount      = p.bsCount;
+	    nStatCount   = p.nStatCount;
+	    bsMax        = p.bsMax;
+	    bsTargetErr  = p.bsTargetErr;
+	    bsTargetRel  = p.bsTargetRel;
+	    binSize      = p.binSize;
+	    secSize      = p.secSize;
+	    stride       = p.stride;
+	    interpolation = p.interpolation;
+	    permutations = p.permutations;
+	    permMode     = p.permMode;
+	    permChannel  = p.permChannel;
+	    permBlock    = p.permBlock;
+	    colocMetrics = p.colocMetrics;
+	    fullResult   = p.fullResult;
+	    estimator    = p.estimator;
+	}
+
+	Builder sampleFactor( double v ) { sampleFactor = v; return this; }
+	Builder bsCount( int v )	 { bsCount = v; return this; }
+	Builder nStatCount( int v )	 { nStatCount = v; return this; }
+	Builder bsMax( int v )		 { bsMax = v; return this; }
+	Builder bsTargetErr( double v )	 { bsTargetErr = v; return this; }
+	Builder bsTargetRel( double v )	 { bsTargetRel = v; return this; }
+	Builder binSize( int v )	 { binSize = v; return this; }
+	Builder secSize( int v )	 { secSize = v; return this; }
+	Builder stride( int v )		 { stride = v; return this; }
+	Builder interpolation( GammaNorm.Interpolation v ) { interpolation = v; return this; }
+	Builder permutations( int v )	 { permutations = v; return this; }
+	Builder permMode( PermutationTest.Mode v ) { permMode = v; return this; }
+	Builder permChannel( int v )	 { permChannel = v; return this; }
+	Builder permBlock( int v )	 { permBlock = v; return this; }
+	Builder colocMetrics( boolean v ) { colocMetrics = v; return this; }
+	Builder fullResult( boolean v )	 { fullResult = v; return this; }
+	Builder estimator( GammaNorm.Estimator v ) { estimator = v; return this; }
+
+	/** The immutable parameter record */
+	GammaParams build() {
+	    if ( estimator == null )
+		throw new IllegalArgumentException("No estimator set");
+	    if (!( sampleFactor > 0 )||( Double.isInfinite( sampleFactor )))
+		throw new IllegalArgumentException("Sample factor has to be > 0");
+	    if ( nStatCount < 1 )
+		throw new IllegalArgumentException("Stat. #N has to be >= 1");
+	    if ( bsCount < 2 )
+		throw new IllegalArgumentException("Bootstrap count has to be >= 2");
+	    if ( bsMax < 2 )
+		throw new IllegalArgumentException("Max. bootstrap count has to be >= 2");
+	    if (!( bsTargetErr >= 0 )||!( bsTargetRel >= 0 ))
+		throw new IllegalArgumentException("Bootstrap targets have to be >= 0");
+	    if ( binSize < 1 )
+		throw new IllegalArgumentException("Bin size has to be >= 1");
+	    if ( secSize < 2 )
+		throw new IllegalArgumentException("Stat. #N (topology) has to be >= 2");
+	    if ( stride < 1 )
+		throw new IllegalArgumentException("Stride has to be >= 1");
+	    if ( interpolation == null )
+		throw new IllegalArgumentException("No interpolation set");
+	    if (( permutations < 0 )||( permChannel < 0 )||( permBlock < 0 ))
+		throw new IllegalArgumentException("Permutation settings have to be >= 0");
+	    if ( permMode == null )
+		throw new IllegalArgumentException("No permutation mode set");
+	    return new GammaParams( this );
+	}
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** Gamma data of a 2D image, read row-wise: as bit masks of the 
+ *  channels and (if kept) the raw intensities. This is all the 
+ *  permutation test, the colocalization coefficients and the gamma 
+ *  pyramid need, so they work on heap images and mosaics alike. */
+abstract class GammaPlane extends GammaBase {
+
+    // multi-resolution counts (see pyramid()), dropped on update
+    volatile GammaPyramid pyramid;
+
+    protected GammaPlane( int w, int h, int c, float fac ) {
+	super( w, h, c, fac );
+    }
+
+    /** Read a row (or part of it) as bit mask, one bit per channel,
+     *  for up to 8 channels */
+    abstract void maskRow( int y, int x, int len, byte [] out );
+
+    /** Read the raw intensities of channel 'c', row 'y', 'len' pixel 
+     *  starting at 'x' */
+    abstract void rawRow( int c, int y, int x, int len, float [] out );
+
+    /** The multi-resolution counts of the gamma data, built on first use */
+    GammaPyramid pyramid() {
+	GammaPyramid ret = pyramid;
+	if ( ret == null ) {
+	    synchronized ( this ) {
+		if ( pyramid == null ) 
+		    pyramid = new GammaPyramid( this );
+		ret = pyramid;
+	    }
+	}
+	return ret;
+    }
+
+    /** Permutation test of a measurement (see PermutationTest) */
+    void permutationTest( GICAmeasurement gm, GammaParams p ) {
+	new PermutationTest( this, gm.area ).run( gm, p );
+    }
+
+    /** Pearson, Manders and overlap of a measurement (see ColocMetrics) */
+    void colocMetrics( GICAmeasurement gm ) {
+	ColocMetrics.measure( this, gm );
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.process.FloatProcessor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Gamma category counts at power-of-two scales, for an interactive
+ *  topology of large images. At level L, each block of 2^L x 2^L pixels
+ *  holds how many of its pixels are set in each channel, in each pair of
+ *  channels, and in all channels (col). These give the moments of all
+ *  pairs of virtual channels (sum included), so the analytic topology 
+ *  of a level needs nothing but the counts. 
+ *  <p>
+ *  The topology of level L uses windows of 'bin' blocks, so one output
+ *  pixel covers 2^L image pixels, and level 0 is the full-resolution 
+ *  analytic topology. Levels 2 and up are built once, levels 0 and 1 
+ *  are counted from the gamma masks when needed. Topology is computed 
+ *  in tiles, only for the requested viewport, and the tiles are cached. */
+class GammaPyramid {
+
+    static final int TILE = 128;	    // tile size (level pixels)
+    static final int MIN_STORED = 2;	    // levels below are not stored
+    static final int MAX_LEVEL  = 7;	    // 4^7 still fits into a char
+    static final long CACHE_BYTES = 64L<<20; // default tile cache size
+
+    final GammaPlane gn;
+    final int width, height;
+    final int nc;		// number of channels
+    final int nCat;		// number of categories
+    final int levels;		// levels 0 .. levels-1
+    
+    private final int [] catMask;   // bits that have to be set, per category
+    private final int [] lw, lh;    // level sizes
+    private final char [][][] counts; // [level][category][block]
+    
+    private final long maxCacheBytes;
+    private final Map<String, float [][]> cache = 
+	new LinkedHashMap<String, float [][]>( 64, 0.75f, true );
+    private long cacheBytes = 0;
+
+    /** Build the pyramid for the gamma data of 'g' */
+    GammaPyramid( GammaPlane g ) {
+	this( g, CACHE_BYTES );
+    }
+
+    /** Build the pyramid, caching up to 'cacheSize' bytes of tiles */
+    GammaPyramid( GammaPlane g, long cacheSize ) {
+	
+	gn = g; width = g.width; height = g.height; nc = g.cCount;
+	maxCacheBytes = cacheSize;
+	if ( nc > 8 )
+	    throw new UnsupportedOperationException(
+		"The pyramid supports up to 8 channels");
+
+	// categories: channels, pairs of channels, col
+	nCat = nc + nc*(nc-1)/2 + 1;
+	catMask = new int[ nCat ];
+	int k=0;
+	for (int c=0; c<nc; c++) 
+	    catMask[k++] = 1<<c;
+	for (int c=0; c<nc; c++) 
+	for (int d=c+1; d<nc; d++) 
+	    catMask[k++] = (1<<c)|(1<<d);
+	catMask[k] = (1<<nc)-1;
+
+	// number of levels: until the image is a few blocks wide
+	int l=1;
+	while (( l <= MAX_LEVEL )&&( Math.min( width>>l, height>>l ) >= 8 ))
+	    l++;
+	levels = l;
+	lw = new int[ levels ];
+	lh = new int[ levels ];
+	for (int i=0; i<levels; i++) {
+	    lw[i] = width>>i; lh[i] = height>>i;
+	}
+
+	// build the stored levels
+	final long t0 = Metrics.start();
+	counts = new char[ levels ][][];
+	for (int i=MIN_STORED; i<levels; i++) {
+	    counts[i] = new char[ nCat ][ lw[i]*lh[i] ];
+	    Metrics.count( Metrics.BYTES, 2L*nCat*lw[i]*lh[i] );
+	    if ( i == MIN_STORED )
+		buildFromMask( i );
+	    else
+		buildFromLevel( i );
+	}
+	final long ns = Metrics.stop( Metrics.PYRAMID, t0, (long)width*height );
+	Tools.log("Gamma pyramid: "+levels+" levels, "+
+	    (storedBytes()>>20)+" MB, "+Metrics.ms( ns ), Tools.LL.INFO );
+    }
+
+    /** Count level 'l' from the gamma masks */
+    private void buildFromMask( final int l ) {
+	final int s = 1<<l, w = lw[l];
+	final char [][] cnt = counts[l];
+	new SimpleMT.PFor( 0, lh[l] ) {
+	    public void at( int by ) {
+		final int [][] tmp = new int[ nCat ][ w ];
+		final byte [] m = new byte[ w*s ];
+		for (int r=0; r<s; r++) {
+		    gn.maskRow( by*s+r, 0, w*s, m );
+		    countRow( m, w, s, tmp, 0 );
+		}
+		for (int k=0; k<nCat; k++) 
+		for (int bx=0; bx<w; bx++) 
+		    cnt[k][ by*w+bx ] = (char)tmp[k][bx];
+	    }
+	};
+	Metrics.count( Metrics.PIXELS, (long)lw[l]*lh[l]*s*s );
+    }
+
+    /** Add the counts of a mask row to the blocks (of size 's') in 'tmp' */
+    private void countRow( byte [] m, int w, int s, int [][] tmp, int off ) {
+	for (int bx=0; bx<w; bx++)
+	for (int i=bx*s; i<(bx+1)*s; i++) {
+	    final int mm = m[i] & 0xff;
+	    if ( mm == 0 ) continue;
+	    for (int k=0; k<nCat; k++) 
+		if (( mm & catMask[k] ) == catMask[k] ) 
+		    tmp[k][ off+bx ]++;
+	}
+    }
+
+    /** Sum 2x2 blocks of level 'l-1' into level 'l' */
+    private void buildFromLevel( final int l ) {
+	final int w = lw[l], wp = lw[l-1];
+	final char [][] cnt = counts[l], prv = counts[l-1];
+	new SimpleMT.PFor( 0, lh[l] ) {
+	    public void at( int by ) {
+		for (int k=0; k<nCat; k++) 
+		for (int bx=0; bx<w; bx++) {
+		    final int p = 2*by*wp + 2*bx;
+		    cnt[k][ by*w+bx ] = (char)( prv[k][p] + prv[k][p+1] 
+			+ prv[k][p+wp] + prv[k][p+wp+1] );
+		}
+	    }
+	};
+    }
+
+    /** Memory used by the stored levels */
+    long storedBytes() {
+	long ret=0;
+	for (int i=MIN_STORED; i<levels; i++)
+	    ret += 2L*nCat*lw[i]*lh[i];
+	return ret;
+    }
+
+    /** Width of level 'l' (in blocks) */
+    int width( int l ) { return lw[l]; }
+
+    /** Height of level 'l' (in blocks) */
+    int height( int l ) { return lh[l]; }
+
+    /** The coarsest level at which a region of 'w' x 'h' image pixels
+     *  fits into 'maxW' x 'maxH' level pixels */
+    int levelFor( int w, int h, int maxW, int maxH ) {
+	int l=0;
+	while (( l < levels-1 )&&(( (w>>l) > maxW )||( (h>>l) > maxH )))
+	    l++;
+	return l;
+    }
+
+    /** Category counts of the blocks bx..bx+w-1, by..by+h-1 of level 'l' */
+    int [][] regionCounts( int l, int bx, int by, int w, int h ) {
+	final int [][] ret = new int[ nCat ][ w*h ];
+	if ( l >= MIN_STORED ) {
+	    for (int k=0; k<nCat; k++)
+	    for (int y=0; y<h; y++)
+	    for (int x=0; x<w; x++)
+		ret[k][ y*w+x ] = counts[l][k][ (by+y)*lw[l] + bx+x ];
+	} else {
+	    final int s = 1<<l;
+	    final byte [] m = new byte[ w*s ];
+	    for (int y=0; y<h; y++)
+	    for (int r=0; r<s; r++) {
+		gn.maskRow( (by+y)*s+r, bx*s, w*s, m );
+		countRow( m, w, s, ret, y*w );
+	    }
+	    Metrics.count( Metrics.PIXELS, (long)w*h*s*s );
+	}
+	return ret;
+    }
+
+    // ------ topology ------
+
+    /** The topology (norm., abs) of the viewport x,y,w,h (in pixels of
+     *  level 'l'), from windows of 'bin' x 'bin' blocks. Missing tiles
+     *  are computed in parallel, all tiles are cached. */
+    FloatProcessor [] viewport( final int l, int x, int y, int w, int h,
+	final int bin, final int nSection ) {
+	
+	if (( l<0 )||( l>=levels ))
+	    throw new IllegalArgumentException("No such level: "+l);
+	x = Math.max( 0, x ); y = Math.max( 0, y );
+	w = Math.max( 0, Math.min( w, lw[l]-x ));
+	h = Math.max( 0, Math.min( h, lh[l]-y ));
+	
+	final FloatProcessor [] ret = new FloatProcessor [] {
+	    new FloatProcessor( Math.max(w,1), Math.max(h,1) ),
+	    new FloatProcessor( Math.max(w,1), Math.max(h,1) ) };
+	if (( w==0 )||( h==0 )) 
+	    return ret;
+
+	// collect the tiles, compute the missing ones
+	final int tx0 = x/TILE, tx1 = (x+w-1)/TILE;
+	final int ty0 = y/TILE, ty1 = (y+h-1)/TILE;
+	final int ntx = tx1-tx0+1;
+	final float [][][] tiles = new float[ ntx*(ty1-ty0+1) ][][];
+	final List<Integer> missing = new ArrayList<Integer>();
+	for (int i=0; i<tiles.length; i++) {
+	    tiles[i] = cached( key( l, tx0+i%ntx, ty0+i/ntx, bin, nSection ));
+	    if ( tiles[i] == null ) 
+		missing.add(i);
+	}
+	Metrics.count( Metrics.TILE_HITS, tiles.length - missing.size() );
+	Metrics.count( Metrics.TILE_MISSES, missing.size() );
+	
+	new SimpleMT.PFor( 0, missing.size() ) {
+	    public void at( int i ) {
+		final int t = missing.get(i);
+		final int tx = tx0+t%ntx, ty = ty0+t/ntx;
+		tiles[t] = tile( l, tx, ty, bin, nSection );
+		cache( key( l, tx, ty, bin, nSection ), tiles[t] );
+	    }
+	};
+
+	// copy the viewport from the tiles
+	final float [] out    = (float [])ret[0].getPixels();
+	final float [] outAbs = (float [])ret[1].getPixels();
+	for (int yy=0; yy<h; yy++) {
+	    final int ty = (y+yy)/TILE, ry = (y+yy)%TILE;
+	    for (int xx=0; xx<w; xx++) {
+		final int tx = (x+xx)/TILE, rx = (x+xx)%TILE;
+		final float [][] t = tiles[ (ty-ty0)*ntx + tx-tx0 ];
+		out[ yy*w+xx ]    = t[0][ ry*TILE+rx ];
+		outAbs[ yy*w+xx ] = t[1][ ry*TILE+rx ];
+	    }
+	}
+	return ret;
+    }
+
+    /** Compute the topology of one tile (output pixels of level 'l'
+     *  at tx*TILE .. +TILE, ty*TILE .. +TILE, TILE x TILE, row-major) */
+    float [][] tile( int l, int tx, int ty, int bin, int nSection ) {
+	
+	final long t0 = Metrics.start();
+	final float [][] ret = new float[2][ TILE*TILE ];
+	final int W = lw[l], H = lh[l];
+
+	// window starts (level pixels) with centers in this tile
+	final int xs0 = Math.max( 0, tx*TILE - bin/2 );
+	final int xs1 = Math.min( W-bin, tx*TILE+TILE - bin/2 );
+	final int ys0 = Math.max( 0, ty*TILE - bin/2 );
+	final int ys1 = Math.min( H-bin, ty*TILE+TILE - bin/2 );
+	if (( xs1 <= xs0 )||( ys1 <= ys0 )) 
+	    return ret;
+
+	// integral images of the counts in the region the windows cover
+	final int rw = xs1-xs0+bin, rh = ys1-ys0+bin;
+	final int [][] cnt = regionCounts( l, xs0, ys0, rw, rh );
+	final long [][] sat = new long[ nCat ][ (rw+1)*(rh+1) ];
+	for (int k=0; k<nCat; k++) 
+	for (int y=0; y<rh; y++) {
+	    long row=0;
+	    for (int x=0; x<rw; x++) {
+		row += cnt[k][ y*rw+x ];
+		sat[k][ (y+1)*(rw+1)+x+1 ] = sat[k][ y*(rw+1)+x+1 ] + row;
+	    }
+	}
+
+	// the pairs of virtual channels, as in the full topology
+	final List<int []> pairs = gn.topoPairsV();
+	final double area   = (double)bin*bin*(1<<l)*(1<<l);
+	final double absFac = (double)nSection*(nSection-1);
+	final long [] c = new long[ nCat ];
+	
+	for (int ys=ys0; ys<ys1; ys++) 
+	for (int xs=xs0; xs<xs1; xs++) {
+	    
+	    // window sums of all categories
+	    final int a = (ys-ys0)*(rw+1) + xs-xs0, b = a + bin*(rw+1);
+	    for (int k=0; k<nCat; k++) 
+		c[k] = sat[k][b+bin] - sat[k][b] - sat[k][a+bin] + sat[k][a];
+	    
+	    double v=0, vAbs=0;
+	    for ( int [] p : pairs ) {
+		final double mI = sum( c, p[0] )/area, mJ = sum( c, p[1] )/area;
+		final double cov  = cross( c, p[0], p[1] )/area - mI*mJ;
+		final double varI = cross( c, p[0], p[0] )/area - mI*mI;
+		final double varJ = cross( c, p[1], p[1] )/area - mJ*mJ;
+		double rho = 0;
+		if ((varI>1e-9)&&(varJ>1e-9))
+		    rho = cov / Math.sqrt( varI*varJ );
+		v    += rho*rho;
+		vAbs += Math.pow( cov*absFac, 2 );
+	    }
+	    final int o = (ys+bin/2-ty*TILE)*TILE + xs+bin/2-tx*TILE;
+	    ret[0][o] = (float)Math.sqrt( v );
+	    ret[1][o] = (float)Math.sqrt( vAbs );
+	}
+	Metrics.stop( Metrics.TILE, t0, (long)(xs1-xs0)*(ys1-ys0) );
+	return ret;
+    }
+
+    /** Category of the pair of channels c &lt; d */
+    private int pairCat( int c, int d ) {
+	return nc + c*nc - c*(c+1)/2 + (d-c-1);
+    }
+
+    /** Sum over a window of virtual channel 'v', from the category sums */
+    private long sum( long [] c, int v ) {
+	if ( v < nc ) 
+	    return c[v];
+	if ( v == nc ) {
+	    long ret=0;
+	    for (int i=0; i<nc; i++) ret+=c[i];
+	    return ret;
+	}
+	return c[ nCat-1 ];
+    }
+
+    /** Sum of the product of virtual channels 'v' and 'w' over a window */
+    private long cross( long [] c, int v, int w ) {
+	if ( v > w ) { int t=v; v=w; w=t; }
+	if ( w == nc+1 )		// with col: all channels set
+	    return ( v == nc )?( nc*c[ nCat-1 ] ):( c[ nCat-1 ] );
+	if ( w == nc ) {		// with sum
+	    if ( v == nc ) {
+		long ret = sum( c, nc );
+		for (int i=0; i<nc; i++)
+		for (int j=i+1; j<nc; j++)
+		    ret += 2*c[ pairCat( i, j ) ];
+		return ret;
+	    }
+	    long ret = c[v];
+	    for (int i=0; i<nc; i++)
+		if ( i != v ) ret += c[ pairCat( Math.min(i,v), Math.max(i,v) ) ];
+	    return ret;
+	}
+	return ( v == w )?( c[v] ):( c[ pairCat( v, w ) ] );
+    }
+
+    // ------ tile cache ------
+
+    private static String key( int l, int tx, int ty, int bin, int n ) {
+	return l+":"+tx+":"+ty+":"+bin+":"+n;
+    }
+
+    private synchronized float [][] cached( String key ) {
+	return cache.get( key );
+    }
+
+    /** Store a tile, drop the least recently used ones over the limit */
+    private synchronized void cache( String key, float [][] t ) {
+	if ( cache.put( key, t ) == null )
+	    cacheBytes += 8L*TILE*TILE;
+	java.util.Iterator<float [][]> it = cache.values().iterator();
+	while (( cacheBytes > maxCacheBytes )&&( it.hasNext() )) {
+	    it.next(); it.remove();
+	    cacheBytes -= 8L*TILE*TILE;
+	}
+    }
+
+    /** Number of cached tiles */
+    synchronized int cachedTiles() {
+	return cache.size();
+    }
+
+    /** Drop all cached tiles */
+    synchronized void clearCache() {
+	cache.clear();
+	cacheBytes = 0;
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.IJ;
+import ij.gui.Plot;
+import ij.process.FloatProcessor;
+import ij.measure.ResultsTable;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Streaming analysis of a time-lapse (hyperstack with frames):
+ *  frames are thresholded one after another (each with its own
+ *  threshold), pipelined across the worker threads. Each worker
+ *  reuses a pooled GammaNorm, so memory does not grow with the
+ *  number of frames. Also computes the topology over a sliding
+ *  window of frames. */
+class GammaTimeLapse {
+
+    final ImagePlus imp;
+    final GammaNorm param;  // provides channels and parameters
+    final int z;	    // z-slice used (1-based)
+    final int nFrames;
+
+    // results, per frame
+    private GICAmeasurement [][] res;
+    private float [][] thr;
+
+    /** Set up for the channels and parameters of 'gn', at slice 'z' */
+    GammaTimeLapse( ImagePlus i, GammaNorm gn, int zi ) {
+	imp = i; param = gn; z = zi;
+	nFrames = imp.getNFrames();
+	if (( param.channels == null )||( param.channels.length < 2 ))
+	    throw new RuntimeException("No channels selected");
+    }
+
+    /** Load the selected channels of frame 't' (0-based) */
+    private ImageStack getFrame( int t ) {
+	ImageStack is = imp.getStack();
+	ImageStack ret = new ImageStack( imp.getWidth(), imp.getHeight() );
+	// virtual stacks read from disk, so access them one at a time
+	synchronized ( is ) {
+	    for ( int c : param.channels )
+		ret.addSlice( is.getProcessor( imp.getStackIndex( c, z, t+1 )));
+	}
+	return ret;
+    }
+
+    /** Measure the ROIs in every frame. Returns the results as [frame][roi] */
+    GICAmeasurement [][] measure( final List<RoiPixels> rois ) {
+
+	res = new GICAmeasurement[ nFrames ][ rois.size() ];
+	thr = new float[ nFrames ][ param.channels.length ];
+	
+	final Queue<GammaNorm> pool = new ConcurrentLinkedQueue<GammaNorm>();
+	final AtomicInteger done = new AtomicInteger();
+	final long t0 = Metrics.start();
+
+	new SimpleMT.StrPFor( 0, nFrames ) {
+	    public void at( int t ) {
+		
+		// get a gamma norm from the pool (or create one per worker)
+		ImageStack frame = getFrame( t );
+		GammaNorm gn = pool.poll();
+		if ( gn == null ) {
+		    gn = new GammaNorm( frame, param.thrFac, param.statsMode(), 
+			param.localRadius(), param.params() );
+		    gn.copyParameters( param );
+		} else {
+		    gn.update( frame );
+		}
+
+		for (int c=0; c<gn.cCount; c++)
+		    thr[t][c] = gn.gDats[c].thr;
+		
+		for (int r=0; r<rois.size(); r++) {
+		    GICAmeasurement gm = new GICAmeasurement( 
+			rois.get(r), imp.getTitle()+":t"+(t+1));
+		    gn.measureRoi( gm, false );
+		    res[t][r] = gm;
+		}
+		
+		pool.offer( gn );
+		IJ.showProgress( done.incrementAndGet(), nFrames );
+	    }
+	};
+	
+	Tools.log("Time-lapse: "+nFrames+" frames, "+rois.size()+" ROI(s), "+
+	    pool.size()+" buffer(s), "+Metrics.ms( Metrics.since(t0) ), Tools.LL.INFO);
+	return res;
+    }
+
+    /** Topology over a sliding window of 'k' frames, with super-pixels
+     *  of 'bin' x 'bin'. Uses the analytic estimator: per-pixel moments
+     *  are kept as window sums, updated incrementally (add the entering,
+     *  subtract the leaving frame), so each step costs one frame.
+     *  Returns the (norm., abs) topology, one slice per window position. */
+    ImageStack [] topology( final int k, final int bin, final int nSection ) {
+
+	if (( k < 1 )||( k > nFrames ))
+	    throw new RuntimeException("Window has to be 1 .. "+nFrames+" frames");
+	
+	final int w = imp.getWidth(), h = imp.getHeight(), wh = w*h;
+	final int nW = nFrames - k + 1;
+	final long t0 = Metrics.start();
+
+	// one gamma norm, refilled per frame 
+	GammaNorm gn = new GammaNorm( getFrame(0), param.thrFac, param.statsMode(),
+	    param.localRadius(), param.params() );
+	gn.copyParameters( param );
+	final int nV = gn.cCount+2;
+	final WindowSums ws = new WindowSums( w, h, gn.cCount, gn.topoPairsV() );
+
+	// ring buffer holding the virtual channels of the frames in the window
+	final byte [][][] ring = new byte[ k ][ nV ][];
+	Metrics.count( Metrics.BYTES, (long)k*nV*wh );
+	
+	thr = new float[ nFrames ][ gn.cCount ];
+	ImageStack retSt    = new ImageStack( w, h );
+	ImageStack retStAbs = new ImageStack( w, h );
+
+	for (int t=0; t<nFrames; t++) {
+	    final long t1 = Metrics.start();
+	    if ( t>0 ) 
+		gn.update( getFrame(t) );
+	    for (int c=0; c<gn.cCount; c++)
+		thr[t][c] = gn.gDats[c].thr;
+
+	    // subtract the frame leaving the window, add the new one
+	    final byte [][] pl = ring[ t%k ];
+	    if ( t >= k )
+		ws.add( pl, -1 );
+	    for (int c=0; c<gn.cCount; c++)
+		pl[c] = copy( gn.gDats[c].gammas, pl[c] );
+	    pl[ gn.cCount   ] = copy( gn.gSum.gammas, pl[ gn.cCount ] );
+	    pl[ gn.cCount+1 ] = copy( gn.gCol.gammas, pl[ gn.cCount+1 ] );
+	    ws.add( pl, 1 );
+
+	    // full window: compute its topology
+	    if ( t >= k-1 ) {
+		final float [] out = new float[ wh ], outAbs = new float[ wh ];
+		ws.accumulate( bin, k, nSection, out, outAbs );
+		for (int i=0; i<wh; i++) {
+		    out[i]    = (float)Math.sqrt( out[i] );
+		    outAbs[i] = (float)Math.sqrt( outAbs[i] );
+		}
+		final String lbl = "t"+(t-k+2)+"-"+(t+1);
+		retSt.addSlice( "Topology (norm.) "+lbl, 
+		    new FloatProcessor( w, h, out ));
+		retStAbs.addSlice( "Topology (abs) "+lbl, 
+		    new FloatProcessor( w, h, outAbs ));
+	    }
+	    Metrics.stop( Metrics.TOPO_ROW, t1, (long)wh );
+	    IJ.showProgress( t+1, nFrames );
+	}
+	
+	Tools.log("Temporal topology: "+nW+" window(s) of "+k+" frames, "+
+	    Metrics.ms( Metrics.since(t0) ), Tools.LL.INFO);
+	return new ImageStack [] { retSt, retStAbs };
+    }
+
+    /** Copy 'src' into 'dst' (allocated if null) */
+    private static byte [] copy( byte [] src, byte [] dst ) {
+	if ( dst == null ) 
+	    dst = new byte[ src.length ];
+	System.arraycopy( src, 0, dst, 0, src.length );
+	return dst;
+    }
+
+    /** The per-frame thresholds, as [frame][channel] */
+    float [][] getThresholds() {
+	return thr;
+    }
+
+    /** The gamma norm traces as ResultsTable, one row per frame */
+    ResultsTable toResultsTable() {
+	ResultsTable rt = new ResultsTable();
+	for (int t=0; t<nFrames; t++) {
+	    rt.incrementCounter();
+	    rt.addValue( "frame", t+1 );
+	    for (int r=0; r<res[t].length; r++) {
+		rt.addValue( "G norm "+(r+1), res[t][r].gNorm );
+		rt.addValue( "dG norm "+(r+1), res[t][r].gNormErr );
+		rt.addValue( "I col "+(r+1), res[t][r].colPx );
+	    }
+	    for (int c=0; c<thr[t].length; c++)
+		rt.addValue( "thr ch"+param.channels[c], thr[t][c] );
+	}
+	return rt;
+    }
+
+    /** Plot the gamma norm traces (up to 8 ROIs) */
+    Plot toPlot() {
+	final String [] col = { "red", "green", "blue", "magenta", 
+	    "cyan", "orange", "black", "gray" };
+	Plot p = new Plot( "GICA time-lapse "+imp.getTitle(), "frame", "G norm" );
+	double [] x = new double[ nFrames ];
+	for (int t=0; t<nFrames; t++) x[t]=t+1;
+	for (int r=0; r<Math.min( res[0].length, col.length ); r++) {
+	    double [] y = new double[ nFrames ];
+	    for (int t=0; t<nFrames; t++) y[t] = res[t][r].gNorm;
+	    p.setColor( col[r] );
+	    p.addPoints( x, y, Plot.LINE );
+	}
+	p.setLimitsToFit( false );
+	return p;
+    }
+
+}
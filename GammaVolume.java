@@ -0,0 +1,326 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.IJ;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Gamma data for a volume (z-stack), with one threshold per
+ *  channel and volume. The gammas are stored bit-packed (per 
+ *  z-slice), sum and col are computed on the fly, so a 
+ *  1024x1024x100 volume needs ~13 MB per channel. */
+class GammaVolume extends GammaBase {
+
+    final int depth;
+    private final float [] thrs;	// threshold per channel
+
+    // bit-packed gammas, per channel
+    private final long [][] bits;
+    private final int wordsPerSlice;
+
+    /** Create the gamma data for the selected channels ('ch', 1-based)
+     *  of time point 't' (1-based) of a hyperstack */
+    GammaVolume( final ImagePlus imp, final int [] ch, final int t, float fac ) {
+
+	super( imp.getWidth(), imp.getHeight(), ch.length, fac );
+	if ( ch.length < 2 )
+	    throw new RuntimeException("Input stack to short");
+
+	depth = imp.getNSlices();
+	final int wh = width*height;
+	wordsPerSlice = (wh+63)/64;
+	bits = new long[ cCount ][ wordsPerSlice * depth ];
+	thrs = new float[ cCount ];
+	Metrics.count( Metrics.BYTES, 8L*cCount*wordsPerSlice*depth );
+	
+	final ImageStack is = imp.getStack();
+
+	for ( int c=0; c<cCount; c++ ) {
+	    final int chan = ch[c];
+	    final long [] b = bits[c];
+
+	    // statistics over the whole volume, parallel over slices
+	    long t0 = Metrics.start();
+	    final double [] sum   = new double[ depth ];
+	    final double [] sumSq = new double[ depth ];
+	    new SimpleMT.PFor( 0, depth ) {
+		public void at(int z) {
+		    ImageProcessor ip = is.getProcessor( imp.getStackIndex( chan, z+1, t ));
+		    double s=0, sq=0;
+		    for (int i=0; i<wh; i++) {
+			final double v = ip.getf(i);
+			s+=v; sq+=v*v;
+		    }
+		    sum[z]=s; sumSq[z]=sq;
+		}
+	    };
+	    double s=0, sq=0;
+	    for (int z=0; z<depth; z++) { s+=sum[z]; sq+=sumSq[z]; }
+	    final double n = (double)wh*depth;
+	    final double avr = s/n;
+	    final double var = (sq - n*avr*avr)/(n-1);
+	    Metrics.stop( Metrics.STATISTICS, t0, (long)wh*depth );
+
+	    // threshold, parallel over slices (each slice has its own words)
+	    t0 = Metrics.start();
+	    final float thr = (float)(avr + fac * Math.sqrt(var));
+	    thrs[c] = thr;
+	    final AtomicInteger cnt = new AtomicInteger();
+	    new SimpleMT.PFor( 0, depth ) {
+		public void at(int z) {
+		    ImageProcessor ip = is.getProcessor( imp.getStackIndex( chan, z+1, t ));
+		    final int off = z*wordsPerSlice;
+		    int c=0;
+		    for (int i=0; i<wh; i++)
+			if ( ip.getf(i) > thr ) {
+			    b[ off + (i>>>6) ] |= 1L<<(i&63);
+			    c++;
+			}
+		    cnt.addAndGet(c);
+		}
+	    };
+	    Metrics.stop( Metrics.THRESHOLD, t0, (long)wh*depth );
+	    Metrics.count( Metrics.PIXELS, 3L*wh*depth );
+
+	    Tools.log( "GiCA (3D) ch "+chan+" avr: "+avr+" var: "+var+
+		" --> thr: "+thr+"  vxl: "+cnt.get()+"/"+(long)n+
+		" ratio: "+ cnt.get()/n);
+	}
+    }
+
+    /** Unpack a slice of a (virtual) channel: 0..N-1 are the channels,
+     *  N is the sum, N+1 the col */
+    void slice( int v, int z, byte [] out ) {
+	final int wh  = width*height;
+	final int off = z*wordsPerSlice;
+	
+	if ( v < cCount ) {
+	    final long [] b = bits[v];
+	    for (int i=0; i<wh; i++)
+		out[i] = (byte)((b[ off + (i>>>6) ] >>> (i&63)) & 1);
+	    return;
+	}
+
+	for (int i=0; i<wh; i++) {
+	    int sum=0;
+	    for (int c=0; c<cCount; c++)
+		sum += (int)((bits[c][ off + (i>>>6) ] >>> (i&63)) & 1);
+	    out[i] = (byte)(( v == cCount )?(sum):((sum==cCount)?(1):(0)));
+	}
+    }
+
+    // ------ ROI measurement: the area, extended over z .. z+d-1 ------
+
+    /** Set the z range to the full volume if not set */
+    private void checkRange( GICAmeasurement gm ) {
+	if (( gm.d <= 1 )||( gm.z+gm.d > depth )) {
+	    gm.z = 0;
+	    gm.d = depth;
+	}
+    }
+
+    /** Value of virtual channel 'v' (see slice) at pixel 'i' of slice 'z' */
+    private int value( int v, int z, int i ) {
+	final int w = z*wordsPerSlice + (i>>>6);
+	if ( v < cCount )
+	    return (int)(( bits[v][w] >>> (i&63) ) & 1);
+	int sum=0;
+	for (int c=0; c<cCount; c++)
+	    sum += (int)(( bits[c][w] >>> (i&63) ) & 1);
+	return ( v == cCount )?(sum):((sum==cCount)?(1):(0));
+    }
+
+    /** Linearize the measured voxels of virtual channel 'v' */
+    private byte [] gather( int v, GICAmeasurement gm ) {
+	final RoiPixels rp = gm.area;
+	byte [] ret = new byte[ rp.count()*gm.d ];
+	int pos=0;
+	for (int z=gm.z; z<gm.z+gm.d; z++)
+	for (int s=0; s<rp.spans(); s++) {
+	    final int off = rp.spanY(s)*width + rp.spanX(s);
+	    for (int i=off; i<off+rp.spanLength(s); i++)
+		ret[pos++] = (byte)value( v, z, i );
+	}
+	Metrics.count( Metrics.BYTES, ret.length );
+	return ret;
+    }
+
+    @Override
+    void measureRoi( GICAmeasurement gm, GammaParams p, boolean progress ) {
+	checkRange( gm );
+	super.measureRoi( gm, p, progress );
+    }
+
+    @Override
+    void permutationTest( GICAmeasurement gm, GammaParams p ) {
+	Tools.log("Permutation test is not available for volumes", Tools.LL.INFO);
+    }
+
+    @Override
+    void colocMetrics( GICAmeasurement gm ) {
+	Tools.log("Pearson / Manders are not available for volumes", Tools.LL.INFO);
+    }
+
+    @Override
+    protected long getSize( GICAmeasurement gm ) {
+	return (long)gm.area.count() * gm.d;
+    }
+
+    @Override
+    protected int [] getCounts( GICAmeasurement gm ) {
+	int [] ret = new int[ cCount+1 ];
+	for (int v=0; v<=cCount; v++) {
+	    byte [] g = gather( (v==0)?(cCount+1):(v-1), gm );
+	    for ( byte b : g ) ret[v]+=b;
+	}
+	return ret;
+    }
+
+    @Override
+    protected void forEachPair( GICAmeasurement gm, PairVisitor v ) {
+	for ( int [] p : measurePairsV() )
+	    v.pair( gather( p[0], gm ), gather( p[1], gm ));
+    }
+
+    @Override
+    float threshold( int c ) {
+	return thrs[c];
+    }
+
+    /** Compute the 3D topology (see getTopology3D) and write it to 'f',
+     *  as hyperstack with the norm. and abs values as two channels */
+    void writeTopology( GammaParams p, File f ) throws IOException {
+	if ( !new FileSaver( topologyImage( p.binSize, p.secSize ))
+		.saveAsTiffStack( f.getPath() ))
+	    throw new IOException("Could not write "+f);
+    }
+
+    /** The 3D topology as hyperstack (norm., abs as channels) */
+    ImagePlus topologyImage( int bin, int nSection ) {
+	final ImageStack [] st = getTopology3D( bin, nSection );
+	ImageStack out = new ImageStack( width, height );
+	for (int z=1; z<=depth; z++) {
+	    out.addSlice( st[0].getSliceLabel(z), st[0].getProcessor(z) );
+	    out.addSlice( st[1].getSliceLabel(z), st[1].getProcessor(z) );
+	}
+	ImagePlus ret = new ImagePlus( "GICA 3D topology", out );
+	ret.setDimensions( 2, depth, 1 );
+	ret.setOpenAsHyperStack( true );
+	return ret;
+    }
+
+    // ------ 3D topology ------
+
+    /** Compute the topology (norm. and abs) with cubic super-voxels of 
+     *  size 'bin'. Uses the analytic estimator: per-voxel moments are
+     *  summed over a sliding window in z (add entering, subtract 
+     *  leaving slice), then box-filtered in x and y. The volume is
+     *  split into z-slabs processed in parallel, the number of slabs 
+     *  is limited by the available memory. */
+    ImageStack [] getTopology3D( final int bin, final int nSection ) {
+
+	final int wh = width*height;
+	final int nz = depth - bin;
+	
+	final float [][] topo    = new float[ depth ][ wh ];
+	final float [][] topoAbs = new float[ depth ][ wh ];
+	Metrics.count( Metrics.BYTES, 8L*wh*depth );
+
+	if ( nz > 0 ) {
+	    // number of slabs: threads, limited by memory
+	    final long perSlab = WindowSums.bytes( width, height, cCount, 
+		topoPairsV().size() ) + (long)(cCount+2)*wh;
+	    final Runtime rt = Runtime.getRuntime();
+	    final long avail = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+	    final int nSlab = (int)Math.max( 1, Math.min( 
+		Math.min( SimpleMT.getNumThreads(), nz ),
+		(avail/2) / perSlab ));
+	    final int [][] sp = SimpleMT.split( nSlab, 0, nz );
+	    final AtomicInteger done = new AtomicInteger();
+	    
+	    Tools.log("3D topology: "+nSlab+" z-slab(s), "+
+		(perSlab*nSlab/1024/1024)+" MB buffers", Tools.LL.DEBUG);
+
+	    new SimpleMT.PFor( 0, nSlab ) {
+		public void at( int s ) {
+		    topologySlab( sp[s][0], sp[s][1], bin, nSection, 
+			topo, topoAbs, done, nz );
+		}
+	    };
+	}
+
+	// euclidean norm, create the output stacks
+	final long t0 = Metrics.start();
+	ImageStack retSt    = new ImageStack( width, height );
+	ImageStack retStAbs = new ImageStack( width, height );
+	for (int z=0; z<depth; z++) {
+	    for (int i=0; i<wh; i++) {
+		topo[z][i]    = (float)Math.sqrt( topo[z][i] );
+		topoAbs[z][i] = (float)Math.sqrt( topoAbs[z][i] );
+	    }
+	    retSt.addSlice( "Topology (norm.) z"+(z+1), 
+		new FloatProcessor( width, height, topo[z] ));
+	    retStAbs.addSlice( "Topology (abs) z"+(z+1), 
+		new FloatProcessor( width, height, topoAbs[z] ));
+	}
+	Metrics.stop( Metrics.EUCL, t0, (long)wh*depth );
+
+	return new ImageStack [] { retSt, retStAbs };
+    }
+
+    /** Topology for output windows starting at z = zs .. ze-1 */
+    private void topologySlab( int zs, int ze, final int bin, final int nSection,
+	float [][] topo, float [][] topoAbs, AtomicInteger done, int nz ) {
+	
+	final WindowSums ws = new WindowSums( width, height, cCount, topoPairsV() );
+	final byte [][] sl = new byte[ cCount+2 ][ width*height ];
+
+	// fill the first window
+	for (int z=zs; z<zs+bin; z++)
+	    addSlice( z, 1, sl, ws );
+
+	for (int z=zs; z<ze; z++) {
+	    final long t0 = Metrics.start();
+	    ws.accumulate( bin, bin, nSection, topo[ z+bin/2 ], topoAbs[ z+bin/2 ] );
+
+	    // slide the window
+	    addSlice( z, -1, sl, ws );
+	    if ( z+bin < depth )
+		addSlice( z+bin, 1, sl, ws );
+	    
+	    Metrics.stop( Metrics.TOPO_ROW, t0, (long)(width-bin)*(height-bin) );
+	    IJ.showProgress( done.incrementAndGet(), nz );
+	}
+    }
+
+    /** Add (sign=1) or subtract (sign=-1) a slice to the window sums */
+    private void addSlice( int z, int sign, byte [][] sl, WindowSums ws ) {
+	for (int v=0; v<cCount+2; v++)
+	    slice( v, z, sl[v] );
+	ws.add( sl, sign );
+    }
+
+}
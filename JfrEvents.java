@@ -0,0 +1,150 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Java Flight Recorder events for tracing the GICA pipeline.
+ *  These cost next to nothing if no recording is running. Record e.g. by
+ *  <code>
+    java -XX:StartFlightRecording=filename=gica.jfr ...
+ *  </code>
+ *  or via 'jcmd PID JFR.start', and inspect with JDK Mission Control
+ *  (events are listed under category 'GICA'). 
+ *  Needs jdk.jfr (Java 11, or 8u272+) to compile and run, so it is 
+ *  compiled separately and only loaded through Trace if present. */
+final class JfrEvents extends Trace {
+
+    JfrEvents() {};
+
+    Object begin( int type ) {
+	final Event ev;
+	switch ( type ) {
+	    case GAMMANORM: ev = new GammaNormCreate(); break;
+	    case MEASURE:   ev = new MeasureRoi(); break;
+	    case TOPOLOGY:  ev = new Topology(); break;
+	    case PAIR:      ev = new TopologyPair(); break;
+	    default:	    ev = new Chunk();
+	}
+	ev.begin();
+	return ev;
+    }
+
+    void gammaNorm( Object e, int width, int height, int channels, float thrFac ) {
+	GammaNormCreate ev = (GammaNormCreate)e;
+	ev.width = width; ev.height = height; 
+	ev.channels = channels; ev.thrFac = thrFac;
+	ev.commit();
+    }
+
+    void measureRoi( Object e, int pixels, int channels, String estimator,
+	double sampleFactor, int nStat, int bsCount, int bsUsed ) {
+	MeasureRoi ev = (MeasureRoi)e;
+	ev.pixels = pixels; ev.channels = channels; 
+	ev.estimator = estimator; ev.sampleFactor = sampleFactor;
+	ev.nStat = nStat; ev.bsCount = bsCount; ev.bsUsed = bsUsed;
+	ev.commit();
+    }
+
+    void topology( Object e, int width, int height, int channels, 
+	int binSize, int nStat, String estimator ) {
+	Topology ev = (Topology)e;
+	ev.width = width; ev.height = height; ev.channels = channels;
+	ev.binSize = binSize; ev.nStat = nStat; ev.estimator = estimator;
+	ev.commit();
+    }
+
+    void topologyPair( Object e, int width, int height, 
+	int binSize, int nStat, String estimator ) {
+	TopologyPair ev = (TopologyPair)e;
+	ev.width = width; ev.height = height; 
+	ev.binSize = binSize; ev.nStat = nStat; ev.estimator = estimator;
+	ev.commit();
+    }
+
+    void chunk( Object e, int start, int end, int stride ) {
+	Chunk ev = (Chunk)e;
+	ev.start = start; ev.end = end; ev.stride = stride;
+	ev.commit();
+    }
+
+    /** Construction of a GammaNorm (thresholding, sum and col data) */
+    @Name("de.bio_photonics.gica.GammaNorm")
+    @Label("GammaNorm construction")
+    @Category("GICA")
+    static final class GammaNormCreate extends Event {
+	@Label("Width") int width;
+	@Label("Height") int height;
+	@Label("Channels") int channels;
+	@Label("Threshold factor") float thrFac;
+    }
+
+    /** One ROI measurement */
+    @Name("de.bio_photonics.gica.MeasureRoi")
+    @Label("ROI measurement")
+    @Category("GICA")
+    static final class MeasureRoi extends Event {
+	@Label("Pixels") int pixels;
+	@Label("Channels") int channels;
+	@Label("Estimator") String estimator;
+	@Label("Sample factor") double sampleFactor;
+	@Label("Stat. N") int nStat;
+	@Label("Error est. N") int bsCount;
+	@Label("Error est. N used") int bsUsed;
+    }
+
+    /** Topology computation, all pairs */
+    @Name("de.bio_photonics.gica.Topology")
+    @Label("Topology")
+    @Category("GICA")
+    static final class Topology extends Event {
+	@Label("Width") int width;
+	@Label("Height") int height;
+	@Label("Channels") int channels;
+	@Label("Bin size") int binSize;
+	@Label("Stat. N") int nStat;
+	@Label("Estimator") String estimator;
+    }
+
+    /** Topology of one pair of gamma data (getGammaProcessor) */
+    @Name("de.bio_photonics.gica.TopologyPair")
+    @Label("Topology pair")
+    @Category("GICA")
+    static final class TopologyPair extends Event {
+	@Label("Width") int width;
+	@Label("Height") int height;
+	@Label("Bin size") int binSize;
+	@Label("Stat. N") int nStat;
+	@Label("Estimator") String estimator;
+    }
+
+    /** One chunk of a parallel loop, run on a SimpleMT worker */
+    @Name("de.bio_photonics.gica.SimpleMTChunk")
+    @Label("SimpleMT chunk")
+    @Category("GICA")
+    @Description("Part of a parallel loop run by one worker thread")
+    static final class Chunk extends Event {
+	@Label("Start") int start;
+	@Label("End") int end;
+	@Label("Stride") int stride;
+    }
+
+}
@@ -0,0 +1,481 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+
+/** Direct, memory-mapped access to the pixels of uncompressed, strip 
+ *  based TIFF files (classic and BigTIFF, 8/16 bit unsigned or 32 bit
+ *  float, chunky or planar samples). No ImageProcessors are created: 
+ *  rows are read straight from the mapped file into the caller's buffer,
+ *  so the raw image only lives in the OS page cache. Each image plane 
+ *  (IFD, and each sample within it) is one channel, ImageJ hyperstacks 
+ *  are addressed by 'plane(c,z,t)'. Files written by ImageJ beyond 4 GB
+ *  (one IFD, 'images=' in the description) are read as contiguous planes.
+ *  Uses absolute buffer reads only, so 'readRow' is thread-safe. */
+final class MappedTiff implements PixelSource {
+
+    static final int SEG_BITS = 30;
+    static final long SEG_SIZE = 1L<<SEG_BITS;
+
+    // more IFDs than this are taken as a malformed file
+    static final int MAX_IFDS = 1<<20;
+
+    /** One image plane: where its rows are, how its pixels are stored */
+    private static final class Plane {
+	long [] strips;		// file offset of each strip
+	int rowsPerStrip;
+	int bytes;		// bytes per sample
+	int pxStride;		// bytes from one pixel to the next
+	long rowBytes;		// bytes from one row to the next
+	boolean isFloat;
+    }
+
+    private final File file;
+    private final ByteBuffer [] seg;	// mapped lazily, SEG_SIZE + 'over' bytes each
+    private final long size, over;
+    private final ByteOrder order;
+    private final Plane [] all;
+    private final int [] sel;		// the planes used as channels
+    private final int w, h;
+    final int nChannels, nSlices, nFrames, samples;
+
+    private MappedTiff( File f, ByteBuffer [] s, long sz, long ov, ByteOrder o, 
+	Plane [] p, int [] se, int wi, int hi, int nc, int nz, int nt, int spp ) {
+	file = f; seg = s; size = sz; over = ov; order = o; all = p; sel = se;
+	w = wi; h = hi; nChannels = nc; nSlices = nz; nFrames = nt; samples = spp;
+    }
+
+    /** Parse the IFDs of TIFF file 'f'. Throws an IOException if the 
+     *  file cannot be read directly (compressed, tiled, ...) */
+    static MappedTiff open( File f ) throws IOException {
+	
+	RandomAccessFile raf = new RandomAccessFile( f, "r" );
+	try {
+	    final FileChannel fc = raf.getChannel();
+	    final long size = fc.size();
+	    final ByteBuffer hdr = read( fc, 0, 16, ByteOrder.LITTLE_ENDIAN );
+	    final ByteOrder order;
+	    if (( hdr.get(0) == 'I' )&&( hdr.get(1) == 'I' ))
+		order = ByteOrder.LITTLE_ENDIAN;
+	    else if (( hdr.get(0) == 'M' )&&( hdr.get(1) == 'M' ))
+		order = ByteOrder.BIG_ENDIAN;
+	    else
+		throw new IOException("Not a TIFF file: "+f);
+	    hdr.order( order );
+	    final boolean big = ( hdr.getShort(2) == 43 );
+	    if (( !big )&&( hdr.getShort(2) != 42 ))
+		throw new IOException("Not a TIFF file: "+f);
+	    long ifd = ( big )?( hdr.getLong(8) ):( hdr.getInt(4) & 0xffffffffL );
+
+	    // read all IFDs
+	    List<Plane> planes = new ArrayList<Plane>();
+	    int width = -1, height = -1, spp = -1, nIfd = 0;
+	    String descr = null;
+	    long maxRow = 0;
+	    final Set<Long> seen = new HashSet<Long>();
+	    while (( ifd != 0 )&&( ifd < size )) {
+		if ( !seen.add( ifd ) )
+		    throw new IOException("IFD loop at offset "+ifd+": "+f);
+		if ( nIfd >= MAX_IFDS )
+		    throw new IOException("More than "+MAX_IFDS+" IFDs: "+f);
+		final Ifd d = new Ifd( fc, ifd, big, order );
+		if ( d.get( 259, 1 ) != 1 )
+		    throw new IOException("Compressed TIFF, not mapped: "+f);
+		if ( d.has( 322 ) )
+		    throw new IOException("Tiled TIFF, not mapped: "+f);
+		final int wi = (int)d.get( 256, -1 ), hi = (int)d.get( 257, -1 );
+		final int sp = (int)d.get( 277, 1 );
+		final int bits = (int)d.get( 258, 8 );
+		final int fmt  = (int)d.get( 339, 1 );
+		final boolean planar = ( d.get( 284, 1 ) == 2 );
+		if ( !((( bits == 8 )||( bits == 16 ))&&( fmt == 1 )) && 
+		     !(( bits == 32 )&&( fmt == 3 )) )
+		    throw new IOException("Unsupported pixel type ("+bits+" bit, format "+
+			fmt+"): "+f);
+		if ( nIfd == 0 ) {
+		    width = wi; height = hi; spp = sp;
+		    descr = d.string( 270 );
+		} else if (( wi != width )||( hi != height )||( sp != spp ))
+		    throw new IOException("Planes of different size/type: "+f);
+
+		final long [] strips = d.values( 273 );
+		final int rps = (int)Math.min( d.get( 278, height ), height );
+		final int perImg = (height+rps-1)/rps;
+		if ( strips.length < (( planar )?( perImg*sp ):( perImg )))
+		    throw new IOException("Strip offsets missing: "+f);
+		for (int s=0; s<sp; s++) {
+		    Plane p  = new Plane();
+		    p.bytes  = bits/8;
+		    p.isFloat = ( fmt == 3 );
+		    p.rowsPerStrip = rps;
+		    p.pxStride = ( planar )?( p.bytes ):( p.bytes*sp );
+		    p.rowBytes = (long)p.pxStride*width;
+		    p.strips = new long[ perImg ];
+		    for (int i=0; i<perImg; i++)
+			p.strips[i] = strips[ ( planar )?( s*perImg+i ):( i ) ] +
+			    (( planar )?( 0 ):( s*p.bytes ));
+		    maxRow = Math.max( maxRow, p.rowBytes );
+		    planes.add( p );
+		}
+		nIfd++;
+		ifd = d.next;
+	    }
+	    if ( planes.isEmpty() )
+		throw new IOException("No images in "+f);
+
+	    // ImageJ beyond 4 GB: one IFD, further planes follow contiguously
+	    final int nImg = descrInt( descr, "images", nIfd );
+	    if (( nIfd == 1 )&&( nImg > 1 )&&( spp == 1 )) {
+		final Plane p0 = planes.get(0);
+		final long imgBytes = p0.rowBytes*height;
+		for (int i=1; i<p0.strips.length; i++)
+		    if ( p0.strips[i] != p0.strips[0] + i*p0.rowBytes*p0.rowsPerStrip )
+			throw new IOException("Non-contiguous ImageJ stack: "+f);
+		for (int n=1; n<nImg; n++) {
+		    Plane p = new Plane();
+		    p.bytes = p0.bytes; p.isFloat = p0.isFloat; 
+		    p.pxStride = p0.pxStride; p.rowBytes = p0.rowBytes;
+		    p.rowsPerStrip = p0.rowsPerStrip;
+		    p.strips = new long[ p0.strips.length ];
+		    for (int i=0; i<p.strips.length; i++)
+			p.strips[i] = p0.strips[i] + n*imgBytes;
+		    planes.add( p );
+		}
+	    }
+	    for ( Plane p : planes ) {
+		final long end = p.strips[ p.strips.length-1 ] + 
+		    ((height-1) % p.rowsPerStrip)*p.rowBytes + 
+		    (long)(width-1)*p.pxStride + p.bytes;
+		if ( end > size )
+		    throw new IOException("TIFF file truncated: "+f);
+	    }
+	    if ( maxRow > SEG_SIZE )
+		throw new IOException("Rows too long to be mapped: "+f);
+
+	    // hyperstack layout: RGB-like samples are the channels
+	    int nc = descrInt( descr, "channels", 1 );
+	    int nz = descrInt( descr, "slices", 1 );
+	    int nt = descrInt( descr, "frames", 1 );
+	    if (( spp > 1 )||( (long)nc*nz*nt != planes.size() )) {
+		nc = spp; nz = planes.size()/spp; nt = 1;
+	    }
+
+	    int [] sel = new int[ planes.size() ];
+	    for (int i=0; i<sel.length; i++) sel[i]=i;
+	    
+	    ByteBuffer [] seg = new ByteBuffer[ (int)(( size + SEG_SIZE-1 ) >>> SEG_BITS ) ];
+	    Tools.log("GiCA mapped TIFF "+f.getName()+": "+width+"x"+height+", "+
+		planes.size()+" planes ("+nc+" ch, "+nz+" z, "+nt+" t)", Tools.LL.DEBUG );
+	    return new MappedTiff( f, seg, size, maxRow, order, 
+		planes.toArray( new Plane[0] ), sel, width, height, nc, nz, nt, spp );
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /** The same file, with planes 'idx' (0-based) as channels */
+    MappedTiff select( int [] idx ) {
+	for ( int i : idx )
+	    if (( i < 0 )||( i >= all.length ))
+		throw new IllegalArgumentException("No plane "+i+" in "+file);
+	return new MappedTiff( file, seg, size, over, order, all, idx.clone(),
+	    w, h, nChannels, nSlices, nFrames, samples );
+    }
+
+    /** Plane index (0-based) of channel 'c', slice 'z', frame 't' (1-based) */
+    int plane( int c, int z, int t ) {
+	if (( c < 1 )||( c > nChannels )||( z < 1 )||( z > nSlices )||
+	    ( t < 1 )||( t > nFrames ))
+	    throw new IllegalArgumentException("No channel "+c+" (z "+z+", t "+t+
+		") in "+file);
+	return ((t-1)*nSlices + (z-1))*nChannels + (c-1);
+    }
+
+    @Override
+    public String toString() {
+	return file.getName();
+    }
+
+    /** Number of planes in the file */
+    int planes() {
+	return all.length;
+    }
+
+    public int width()    { return w; }
+    public int height()   { return h; }
+    public int channels() { return sel.length; }
+
+    public void readRow( int c, int y, float [] buf ) {
+	readRow( c, y, 0, w, buf );
+    }
+
+    public void readRow( int c, int y, int x, int len, float [] buf ) {
+	final Plane p = all[ sel[c] ];
+	final long off = p.strips[ y / p.rowsPerStrip ] + 
+	    (y % p.rowsPerStrip)*p.rowBytes + (long)x*p.pxStride;
+	final ByteBuffer b = segment( (int)( off >>> SEG_BITS ));
+	final int st = p.pxStride;
+	int pos = (int)( off & (SEG_SIZE-1) );
+	if ( p.isFloat )
+	    for (int i=0; i<len; i++, pos+=st) buf[i] = b.getFloat( pos );
+	else if ( p.bytes == 2 )
+	    for (int i=0; i<len; i++, pos+=st) buf[i] = b.getShort( pos ) & 0xffff;
+	else
+	    for (int i=0; i<len; i++, pos+=st) buf[i] = b.get( pos ) & 0xff;
+	Metrics.count( Metrics.BYTES, (long)len*p.bytes );
+    }
+
+    /** Segment 'i', mapped on first use. Segments overlap by the longest
+     *  row, so every row is contained in the segment it starts in. */
+    private ByteBuffer segment( int i ) {
+	ByteBuffer ret = seg[i];
+	if ( ret != null )
+	    return ret;
+	synchronized ( seg ) {
+	    if ( seg[i] == null ) {
+		try {
+		    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		    try {
+			final long pos = i*SEG_SIZE;
+			ret = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, pos,
+			    Math.min( SEG_SIZE + over, size - pos ));
+			ret.order( order );
+		    } finally {
+			// (the mapping stays valid after closing the file)
+			raf.close();
+		    }
+		} catch ( IOException e ) {
+		    throw new RuntimeException( e );
+		}
+		seg[i] = ret;
+	    }
+	    return seg[i];
+	}
+    }
+
+    // ------ writing ------
+
+    /** Write 32-bit float planes (width*height floats each, e.g. the 
+     *  topology of a GammaMosaic) row by row to an uncompressed TIFF. 
+     *  Like ImageJ beyond 4 GB, one IFD describes the first plane and 
+     *  'images=' in its description the number of contiguous planes, 
+     *  so ImageJ and 'open' read it back. No plane is copied to the heap. */
+    static void writeFloats( File f, int width, int height, OffHeapStore ... pl ) 
+	throws IOException {
+	
+	final long planeBytes = 4L*width*height;
+	final byte [] descr = ( "ImageJ=1.53t\nimages="+pl.length+"\nslices="+pl.length+
+	    "\nloop=false\n\0" ).getBytes( "US-ASCII" );
+	final int nTag = 11, ifdOff = 8, descrOff = ifdOff + 2 + 12*nTag + 4;
+	final int dataOff = descrOff + descr.length;
+	for ( OffHeapStore st : pl )
+	    if ( st.size() < planeBytes )
+		throw new IllegalArgumentException("Plane smaller than "+width+"x"+height);
+
+	final ByteBuffer hdr = ByteBuffer.allocate( dataOff );
+	hdr.order( ByteOrder.BIG_ENDIAN );
+	hdr.put( (byte)'M' ).put( (byte)'M' ).putShort( (short)42 ).putInt( ifdOff );
+	hdr.putShort( (short)nTag );
+	tag( hdr, 256, 4, 1, width );
+	tag( hdr, 257, 4, 1, height );
+	tag( hdr, 258, 3, 1, 32 );
+	tag( hdr, 259, 3, 1, 1 );
+	tag( hdr, 262, 3, 1, 1 );
+	tag( hdr, 270, 2, descr.length, descrOff );
+	tag( hdr, 273, 4, 1, dataOff );
+	tag( hdr, 277, 3, 1, 1 );
+	tag( hdr, 278, 4, 1, height );
+	tag( hdr, 279, 4, 1, Math.min( planeBytes, 0xffffffffL ));
+	tag( hdr, 339, 3, 1, 3 );
+	hdr.putInt( 0 );
+	hdr.put( descr );
+	hdr.flip();
+
+	RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+	try {
+	    raf.setLength( 0 );
+	    final FileChannel fc = raf.getChannel();
+	    while ( hdr.hasRemaining() )
+		fc.write( hdr );
+	    final ByteBuffer row = ByteBuffer.allocate( 4*width );
+	    row.order( ByteOrder.BIG_ENDIAN );
+	    for ( OffHeapStore st : pl ) 
+		for (int y=0; y<height; y++) {
+		    row.clear();
+		    final long o = (long)y*width;
+		    for (int x=0; x<width; x++)
+			row.putFloat( st.getFloat( o+x ));
+		    row.flip();
+		    while ( row.hasRemaining() )
+			fc.write( row );
+		}
+	} finally {
+	    raf.close();
+	}
+	Metrics.count( Metrics.PIXELS, (long)pl.length*width*height );
+    }
+
+    /** One IFD entry with a single (inline, left-aligned) value */
+    private static void tag( ByteBuffer b, int tag, int type, long count, long val ) {
+	b.putShort( (short)tag ).putShort( (short)type ).putInt( (int)count );
+	if ( type == 3 )
+	    b.putShort( (short)val ).putShort( (short)0 );
+	else
+	    b.putInt( (int)val );
+    }
+
+    // ------ parsing ------
+
+    /** 'n' bytes at position 'pos' of the file */
+    private static ByteBuffer read( FileChannel fc, long pos, int n, ByteOrder o ) 
+	throws IOException {
+	ByteBuffer ret = ByteBuffer.allocate( n );
+	while ( ret.hasRemaining() ) 
+	    if ( fc.read( ret, pos + ret.position() ) < 0 )
+		break;
+	ret.order( o );
+	return ret;
+    }
+
+    /** Integer 'key=' from an ImageJ description, 'def' if not present */
+    private static int descrInt( String descr, String key, int def ) {
+	if (( descr == null )||( !descr.startsWith("ImageJ") ))
+	    return def;
+	for ( String l : descr.split("\n") )
+	    if ( l.startsWith( key+"=" ) ) {
+		try {
+		    return Integer.parseInt( l.substring( key.length()+1 ).trim() );
+		} catch ( NumberFormatException e ) {
+		    return def;
+		}
+	    }
+	return def;
+    }
+
+    /** The entries of one IFD */
+    private static final class Ifd {
+	final FileChannel fc;
+	final ByteOrder order;
+	final int [] tag, type;
+	final long [] count, value;	// value: inline value or offset
+	final long [] pos;		// position of the value field
+	final boolean big;
+	final long next;
+
+	Ifd( FileChannel f, long off, boolean b, ByteOrder o ) throws IOException {
+	    fc = f; big = b; order = o;
+	    final int hLen = ( big )?(8):(2), eLen = ( big )?(20):(12);
+	    ByteBuffer bb = read( fc, off, hLen, order );
+	    final long nl = ( big )?( bb.getLong(0) ):( bb.getShort(0) & 0xffff );
+	    if (( nl < 0 )||( off+hLen+nl*eLen > fc.size() ))
+		throw new IOException("IFD at offset "+off+" exceeds the file");
+	    final int n = (int)nl;
+	    bb = read( fc, off+hLen, n*eLen + hLen*((big)?(1):(2)), order );
+	    tag = new int[n]; type = new int[n]; 
+	    count = new long[n]; value = new long[n]; pos = new long[n];
+	    for (int i=0; i<n; i++) {
+		final int e = i*eLen;
+		tag[i]  = bb.getShort( e ) & 0xffff;
+		type[i] = bb.getShort( e+2 ) & 0xffff;
+		count[i] = ( big )?( bb.getLong( e+4 ) ):( bb.getInt( e+4 ) & 0xffffffffL );
+		final int v = e + (( big )?(12):(8));
+		pos[i] = off + hLen + v;
+		// inline values are left-aligned in the value field
+		final int sz = size( type[i] );
+		if (( count[i] == 1 )&&( sz == 1 ))
+		    value[i] = bb.get( v ) & 0xff;
+		else if (( count[i] == 1 )&&( sz == 2 ))
+		    value[i] = bb.getShort( v ) & 0xffff;
+		else if ((( count[i] == 1 )&&( sz == 4 ))||( !big ))
+		    value[i] = bb.getInt( v ) & 0xffffffffL;
+		else 
+		    value[i] = bb.getLong( v );
+	    }
+	    next = ( big )?( bb.getLong( n*eLen ) ):( bb.getInt( n*eLen ) & 0xffffffffL );
+	}
+
+	/** Size in bytes of a TIFF field type */
+	static int size( int type ) {
+	    switch ( type ) {
+		case 1: case 2: case 6: case 7: return 1;
+		case 3: case 8: return 2;
+		case 4: case 9: case 11: case 13: return 4;
+		default: return 8;
+	    }
+	}
+
+	private int find( int t ) {
+	    for (int i=0; i<tag.length; i++)
+		if ( tag[i] == t ) return i;
+	    return -1;
+	}
+
+	boolean has( int t ) {
+	    return find( t ) >= 0;
+	}
+
+	/** First value of tag 't', or 'def' */
+	long get( int t, long def ) throws IOException {
+	    final int i = find( t );
+	    if ( i < 0 ) 
+		return def;
+	    return ( count[i] == 1 )?( value[i] ):( values( t )[0] );
+	}
+
+	/** All (integer) values of tag 't' */
+	long [] values( int t ) throws IOException {
+	    final int i = find( t );
+	    if ( i < 0 )
+		throw new IOException("TIFF tag "+t+" missing");
+	    final int sz = size( type[i] );
+	    if (( count[i] > Integer.MAX_VALUE/8 )||( count[i]*sz > fc.size() ))
+		throw new IOException("TIFF tag "+t+" too long");
+	    final int n = (int)count[i];
+	    final ByteBuffer bb = ( sz*n <= ((big)?(8):(4)) )?
+		( read( fc, pos[i], sz*n, order )):( read( fc, value[i], sz*n, order ));
+	    long [] ret = new long[n];
+	    for (int k=0; k<n; k++)
+		ret[k] = ( sz == 2 )?( bb.getShort( 2*k ) & 0xffff ):
+			 ( sz == 4 )?( bb.getInt( 4*k ) & 0xffffffffL ):
+			 ( sz == 8 )?( bb.getLong( 8*k ) ):( bb.get(k) & 0xff );
+	    return ret;
+	}
+
+	/** ASCII tag 't' as string, or null */
+	String string( int t ) throws IOException {
+	    final int i = find( t );
+	    if (( i < 0 )||( count[i] > (1<<24) ))
+		return null;
+	    final int n = (int)count[i];
+	    final ByteBuffer bb = ( n <= ((big)?(8):(4)) )?
+		( read( fc, pos[i], n, order )):( read( fc, value[i], n, order ));
+	    return new String( bb.array(), 0, Math.max( 0, n-1 ), 
+		java.nio.charset.StandardCharsets.ISO_8859_1 );
+	}
+    }
+
+}
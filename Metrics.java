@@ -0,0 +1,279 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.io.FileWriter;
+import java.io.IOException;
+
+/** Registry of per-stage timings (in ns) and counters. 
+ *  Stages are timed by
+ *  <code>
+    long t0 = Metrics.start();
+    ... 
+    Metrics.stop( Metrics.THRESHOLD, t0 );
+ *  </code>
+ *  and collected (thread-safe) until reset. The result can be
+ *  exported as JSON or CSV, from the GUI or in batch runs. */
+public final class Metrics {
+
+    // names of the stages
+    static final String STATISTICS  = "statistics";
+    static final String THRESHOLD   = "threshold";
+    static final String SUMCOL	    = "sum/col";
+    static final String SAMPLING    = "pair sampling";
+    static final String MOMENTS     = "pair moments";
+    static final String TOPO_ROW    = "topology row";
+    static final String EUCL	    = "euclidean reduction";
+    static final String GAMMANORM   = "gamma norm";
+    static final String MEASURE     = "measure roi";
+    static final String TOPOLOGY    = "topology";
+    static final String PYRAMID     = "gamma pyramid";
+    static final String TILE	    = "topology tile";
+    static final String PERMUTATION = "permutation test";
+    static final String COLOC	    = "coloc metrics";
+
+    // names of the counters
+    static final String PIXELS	    = "pixels processed";
+    static final String SAMPLES     = "samples drawn";
+    static final String BYTES	    = "bytes allocated";
+    static final String TILE_HITS   = "tile cache hits";
+    static final String TILE_MISSES = "tile cache misses";
+
+    // number of histogram buckets (log2 of ns)
+    private static final int NBUCKET = 48;
+
+    /** Statistics for one stage */
+    static final class Stage {
+	final String name;
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong total = new AtomicLong();
+	final AtomicLong items = new AtomicLong();
+	final AtomicLong min   = new AtomicLong( Long.MAX_VALUE );
+	final AtomicLong max   = new AtomicLong();
+	final AtomicLongArray hist = new AtomicLongArray( NBUCKET );
+
+	Stage( String n ) { name=n; }
+
+	void add( long ns, long it ) {
+	    count.incrementAndGet();
+	    total.addAndGet( ns );
+	    items.addAndGet( it );
+	    long c;
+	    while ( ns < (c=min.get()) && !min.compareAndSet( c, ns ));
+	    while ( ns > (c=max.get()) && !max.compareAndSet( c, ns ));
+	    hist.incrementAndGet( bucket(ns) );
+	}
+
+	/** approx. quantile, as upper edge of the histogram bucket */
+	long quantile( double q ) {
+	    final long n = count.get();
+	    long sum=0;
+	    for (int i=0; i<NBUCKET; i++) {
+		sum += hist.get(i);
+		if ( sum >= q*n && sum>0 ) 
+		    return Math.min( 1L<<i , max.get() );
+	    }
+	    return max.get();
+	}
+    }
+
+    private static final Map<String, Stage> stages = 
+	new ConcurrentHashMap<String, Stage>();
+    private static final Map<String, AtomicLong> counters = 
+	new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, AtomicLong> threadBusy = 
+	new ConcurrentHashMap<String, AtomicLong>();
+
+    private static volatile boolean enabled = true;
+
+    // batch runs: -Dgica.metrics=file.json (or .csv) saves on exit
+    static {
+	final String path = System.getProperty("gica.metrics");
+	if ( path != null )
+	    Runtime.getRuntime().addShutdownHook( new Thread() {
+		public void run() {
+		    try {
+			save( path );
+		    } catch ( IOException e ) {
+			System.err.println("ERR: "+e);
+		    }
+		}
+	    });
+    }
+
+    private Metrics() {};
+
+    /** histogram bucket: smallest i with ns <= 2^i */
+    private static int bucket( long ns ) {
+	final int b = 64 - Long.numberOfLeadingZeros( Math.max( ns-1, 0 ));
+	return Math.min( b, NBUCKET-1 );
+    }
+
+    /** Switch recording on/off */
+    public static void setEnabled( boolean v ) { enabled = v; }
+
+    /** Start timing, returns the time stamp to pass to stop */
+    static long start() {
+	return System.nanoTime();
+    }
+
+    /** Elapsed ns since 't0', without recording it */
+    static long since( long t0 ) {
+	return System.nanoTime() - t0;
+    }
+
+    /** Stop timing a stage, returns the elapsed ns */
+    static long stop( String stage, long t0 ) {
+	return stop( stage, t0, 0 );
+    }
+
+    /** Stop timing a stage that processed 'items', returns the elapsed ns */
+    static long stop( String stage, long t0, long items ) {
+	final long ns = System.nanoTime() - t0;
+	if (!enabled) return ns;
+	Stage s = stages.get( stage );
+	if ( s==null ) {
+	    synchronized ( stages ) {
+		s = stages.get( stage );
+		if ( s==null ) {
+		    s = new Stage( stage );
+		    stages.put( stage, s );
+		}
+	    }
+	}
+	s.add( ns, items );
+	return ns;
+    }
+
+    /** Add to a counter */
+    static void count( String counter, long n ) {
+	if (!enabled) return;
+	get( counters, counter ).addAndGet( n );
+    }
+
+    /** Add busy time for the current thread */
+    static void busy( long ns ) {
+	if (!enabled) return;
+	get( threadBusy, Thread.currentThread().getName() ).addAndGet( ns );
+    }
+
+    private static AtomicLong get( Map<String, AtomicLong> m, String key ) {
+	AtomicLong a = m.get( key );
+	if ( a==null ) {
+	    synchronized ( m ) {
+		a = m.get( key );
+		if ( a==null ) {
+		    a = new AtomicLong();
+		    m.put( key, a );
+		}
+	    }
+	}
+	return a;
+    }
+
+    /** Clear all recorded values */
+    public static void reset() {
+	synchronized ( stages ) { stages.clear(); }
+	synchronized ( counters ) { counters.clear(); }
+	synchronized ( threadBusy ) { threadBusy.clear(); }
+    }
+
+    /** Format ns as ms, for log output */
+    static String ms( long ns ) {
+	return String.format("ms: %.1f", ns/1.e6 );
+    }
+
+    /** Export all values as JSON */
+    public static String toJSON() {
+	StringBuilder sb = new StringBuilder("{\n  \"stages\": {");
+	String sep = "\n";
+	for ( Stage s : new TreeMap<String, Stage>( stages ).values() ) {
+	    sb.append( sep ).append("    \"").append( s.name ).append("\": {");
+	    sb.append("\"count\": ").append( s.count.get() );
+	    sb.append(", \"total_ns\": ").append( s.total.get() );
+	    sb.append(", \"min_ns\": ").append( (s.count.get()>0)?(s.min.get()):(0) );
+	    sb.append(", \"max_ns\": ").append( s.max.get() );
+	    sb.append(", \"p50_ns\": ").append( s.quantile(0.5) );
+	    sb.append(", \"p99_ns\": ").append( s.quantile(0.99) );
+	    sb.append(", \"items\": ").append( s.items.get() );
+	    sb.append(", \"histogram\": {");
+	    String hsep="";
+	    for (int i=0; i<NBUCKET; i++) 
+		if ( s.hist.get(i) > 0 ) {
+		    sb.append( hsep ).append("\"").append( 1L<<i ).append("\": ")
+			.append( s.hist.get(i) );
+		    hsep=", ";
+		}
+	    sb.append("}}");
+	    sep = ",\n";
+	}
+	sb.append("\n  },\n");
+	sb.append("  \"counters\": ").append( mapToJSON( counters ) ).append(",\n");
+	sb.append("  \"thread_busy_ns\": ").append( mapToJSON( threadBusy ) ).append("\n}\n");
+	return sb.toString();
+    }
+
+    private static String mapToJSON( Map<String, AtomicLong> m ) {
+	StringBuilder sb = new StringBuilder("{");
+	String sep = "";
+	for ( Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(m).entrySet() ) {
+	    sb.append( sep ).append("\"").append( e.getKey() ).append("\": ")
+		.append( e.getValue().get() );
+	    sep = ", ";
+	}
+	return sb.append("}").toString();
+    }
+
+    /** Export all values as CSV (one line per stage, counter, thread) */
+    public static String toCSV() {
+	StringBuilder sb = new StringBuilder(
+	    "type,name,count,total_ns,min_ns,max_ns,p50_ns,p99_ns,items\n");
+	for ( Stage s : new TreeMap<String, Stage>( stages ).values() )
+	    sb.append("stage,").append( s.name ).append(",")
+		.append( s.count.get() ).append(",")
+		.append( s.total.get() ).append(",")
+		.append( (s.count.get()>0)?(s.min.get()):(0) ).append(",")
+		.append( s.max.get() ).append(",")
+		.append( s.quantile(0.5) ).append(",")
+		.append( s.quantile(0.99) ).append(",")
+		.append( s.items.get() ).append("\n");
+	for ( Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(counters).entrySet() )
+	    sb.append("counter,").append( e.getKey() ).append(",,,,,,,")
+		.append( e.getValue().get() ).append("\n");
+	for ( Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(threadBusy).entrySet() )
+	    sb.append("thread,").append( e.getKey() ).append(",,")
+		.append( e.getValue().get() ).append(",,,,,\n");
+	return sb.toString();
+    }
+
+    /** Save to file, as CSV if the name ends in '.csv', as JSON otherwise */
+    public static void save( String path ) throws IOException {
+	FileWriter fw = new FileWriter( path );
+	try {
+	    fw.write( path.toLowerCase().endsWith(".csv")?(toCSV()):(toJSON()) );
+	} finally {
+	    fw.close();
+	}
+    }
+
+}
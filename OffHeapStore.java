@@ -0,0 +1,210 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/** Long-indexed storage outside the Java heap, for gamma maps and
+ *  topology results of images beyond 2^31 pixels. The data is held in
+ *  segments of 1 GB, either direct ByteBuffers or memory-mapped from a
+ *  (temporary) file, so the OS pages it in and out as needed. 
+ *  Accesses use absolute indices only, so concurrent reads (and writes
+ *  to different elements) from many threads are safe. 'close' frees the
+ *  memory (and deletes a temporary file) right away, instead of when the
+ *  buffers get garbage-collected; the store must not be used after. */
+final class OffHeapStore implements Closeable {
+
+    static final int SEG_BITS = 30;
+    static final long SEG_SIZE = 1L<<SEG_BITS;
+    static final long SEG_MASK = SEG_SIZE-1;
+
+    private final ByteBuffer [] seg;
+    private final long size;
+    private File temp;		// temporary file to delete on close, if any
+
+    private OffHeapStore( ByteBuffer [] s, long n ) {
+	seg = s; size = n;
+    }
+
+    /** Allocate 'n' bytes (zeroed) as direct buffers */
+    static OffHeapStore allocate( long n ) {
+	ByteBuffer [] s = new ByteBuffer[ (int)((n+SEG_MASK) >>> SEG_BITS) ];
+	for (int i=0; i<s.length; i++) {
+	    s[i] = ByteBuffer.allocateDirect( 
+		(int)Math.min( SEG_SIZE, n - i*SEG_SIZE ));
+	    s[i].order( ByteOrder.nativeOrder() );
+	}
+	Metrics.count( Metrics.BYTES, n );
+	return new OffHeapStore( s, n );
+    }
+
+    /** Map 'n' bytes of file 'f' (created or extended as needed) */
+    static OffHeapStore map( File f, long n ) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+	try {
+	    raf.setLength( Math.max( raf.length(), n ));
+	    FileChannel fc = raf.getChannel();
+	    ByteBuffer [] s = new ByteBuffer[ (int)((n+SEG_MASK) >>> SEG_BITS) ];
+	    for (int i=0; i<s.length; i++) {
+		s[i] = fc.map( FileChannel.MapMode.READ_WRITE, i*SEG_SIZE,
+		    Math.min( SEG_SIZE, n - i*SEG_SIZE ));
+		s[i].order( ByteOrder.nativeOrder() );
+	    }
+	    return new OffHeapStore( s, n );
+	} finally {
+	    // (the mapping stays valid after closing the file)
+	    raf.close();
+	}
+    }
+
+    /** Map 'n' bytes of a temporary file, deleted on close */
+    static OffHeapStore mapTemp( long n ) throws IOException {
+	File f = File.createTempFile( "gica", ".map" );
+	try {
+	    OffHeapStore ret = map( f, n );
+	    ret.temp = f;
+	    return ret;
+	} catch ( IOException e ) {
+	    f.delete();
+	    throw e;
+	}
+    }
+
+    /** Allocate 'n' bytes: direct buffers if they (comfortably) fit
+     *  into the memory limit for direct buffers, else memory-mapped */
+    static OffHeapStore create( long n ) {
+	try {
+	    return ( n < Runtime.getRuntime().maxMemory()/2 )?
+		( allocate( n ) ):( mapTemp( n ) );
+	} catch ( OutOfMemoryError e ) {
+	    Tools.log("Direct memory exhausted, using a mapped file", Tools.LL.DEBUG);
+	} catch ( IOException e ) {
+	    throw new RuntimeException( e );
+	}
+	try {
+	    return mapTemp( n );
+	} catch ( IOException e ) {
+	    throw new RuntimeException( e );
+	}
+    }
+
+    /** Unmap / free the buffers, delete the temporary file (if any) */
+    public synchronized void close() {
+	for (int i=0; i<seg.length; i++) {
+	    final ByteBuffer b = seg[i];
+	    seg[i] = null;
+	    free( b );
+	}
+	if (( temp != null )&&( !temp.delete() )) {
+	    // e.g. on Windows, if the mapping could not be released
+	    temp.deleteOnExit();
+	}
+	temp = null;
+    }
+
+    /** Release a direct or mapped buffer now. There is no public API 
+     *  for this before Java 9+ 'Unsafe.invokeCleaner', so both it and 
+     *  the Java 6-8 'cleaner()' are tried by reflection. If neither 
+     *  works, the buffer is left to the garbage collector. */
+    private static void free( ByteBuffer b ) {
+	if (( b == null )||( !b.isDirect() ))
+	    return;
+	try {
+	    final Class<?> u = Class.forName("sun.misc.Unsafe");
+	    final Field f = u.getDeclaredField("theUnsafe");
+	    f.setAccessible( true );
+	    u.getMethod( "invokeCleaner", ByteBuffer.class ).invoke( f.get( null ), b );
+	    return;
+	} catch ( Throwable e ) {
+	    // not Java 9+, try below
+	}
+	try {
+	    final Method m = b.getClass().getMethod("cleaner");
+	    m.setAccessible( true );
+	    final Object c = m.invoke( b );
+	    if ( c != null )
+		c.getClass().getMethod("clean").invoke( c );
+	} catch ( Throwable e ) {
+	    Tools.log("Buffer not freed, left to the GC: "+e, Tools.LL.DEBUG );
+	}
+    }
+
+    /** Size in bytes */
+    long size() {
+	return size;
+    }
+
+    byte get( long i ) {
+	return seg[ (int)(i >>> SEG_BITS) ].get( (int)(i & SEG_MASK) );
+    }
+
+    void put( long i, byte v ) {
+	seg[ (int)(i >>> SEG_BITS) ].put( (int)(i & SEG_MASK), v );
+    }
+
+    /** Float at float-index 'i' (i.e. byte 4*i) */
+    float getFloat( long i ) {
+	final long b = i<<2;
+	return seg[ (int)(b >>> SEG_BITS) ].getFloat( (int)(b & SEG_MASK) );
+    }
+
+    /** Set float at float-index 'i' (i.e. byte 4*i) */
+    void putFloat( long i, float v ) {
+	final long b = i<<2;
+	seg[ (int)(b >>> SEG_BITS) ].putFloat( (int)(b & SEG_MASK), v );
+    }
+
+    /** Copy 'len' bytes starting at 'i' to 'dst' */
+    void get( long i, byte [] dst, int off, int len ) {
+	while ( len > 0 ) {
+	    final int p = (int)(i & SEG_MASK);
+	    final ByteBuffer b = seg[ (int)(i >>> SEG_BITS) ].duplicate();
+	    final int n = Math.min( len, b.capacity() - p );
+	    b.position( p );
+	    b.get( dst, off, n );
+	    i += n; off += n; len -= n;
+	}
+    }
+
+    /** Copy 'len' bytes from 'src' to position 'i' */
+    void put( long i, byte [] src, int off, int len ) {
+	while ( len > 0 ) {
+	    final int p = (int)(i & SEG_MASK);
+	    final ByteBuffer b = seg[ (int)(i >>> SEG_BITS) ].duplicate();
+	    final int n = Math.min( len, b.capacity() - p );
+	    b.position( p );
+	    b.put( src, off, n );
+	    i += n; off += n; len -= n;
+	}
+    }
+
+    /** Copy 'len' floats from 'src' to float-index 'i' */
+    void putFloats( long i, float [] src, int off, int len ) {
+	// segments are multiples of 4 bytes, so floats never straddle them
+	for (int k=0; k<len; k++)
+	    putFloat( i+k, src[off+k] );
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import java.util.List;
+import java.util.Random;
+
+/** Randomization test for the gamma norm of a ROI. One channel's gamma
+ *  map is shifted (toroidal, within the ROI's bounding box) or scrambled 
+ *  in blocks relative to the other channels, which destroys their 
+ *  colocalization but keeps each channel's own structure. The gamma 
+ *  norm of many such permutations gives the null distribution.
+ *  <p>
+ *  The gammas of the bounding box are packed once into one bit mask 
+ *  byte per pixel. A permutation then only builds a histogram of the
+ *  (permuted) masks of the ROI pixels, from which the moments of all
+ *  pairs follow, and the gamma norm is computed as by the analytic 
+ *  estimator. Permutations run in parallel. The unpermuted data is
+ *  scored the same way, so the p-value does not depend on the estimator
+ *  used for the measurement (nor its sampling noise). */
+final class PermutationTest {
+
+    /** How the channel is permuted */
+    enum Mode {
+	SHIFT("shift"),
+	BLOCKS("block scramble");
+
+	final String label;
+	Mode(String l) { label=l; }
+
+	/** labels, for the dialog */
+	static String [] labels() {
+	    String [] ret = new String[ values().length ];
+	    for (int i=0; i<ret.length; i++) ret[i] = values()[i].label;
+	    return ret;
+	}
+    }
+
+    final int nc;		// number of channels
+    final RoiPixels rp;
+    private final byte [] box;	// packed masks of the bounding box
+    private final int [][] val;	// value of each virtual channel per mask
+    private final int [][] pairs;
+    
+    /** Pack the gamma masks of the ROI's bounding box */
+    PermutationTest( GammaPlane gn, RoiPixels r ) {
+	
+	if ( gn.cCount > 8 )
+	    throw new UnsupportedOperationException(
+		"Permutation test supports up to 8 channels");
+	if ( (long)r.w*r.h > Integer.MAX_VALUE )
+	    throw new UnsupportedOperationException("ROI too large for permutation test");
+	nc = gn.cCount; rp = r;
+	
+	box = new byte[ r.w*r.h ];
+	final byte [] row = new byte[ r.w ];
+	for (int y=0; y<r.h; y++) {
+	    gn.maskRow( r.y+y, r.x, r.w, row );
+	    System.arraycopy( row, 0, box, y*r.w, r.w );
+	}
+	Metrics.count( Metrics.BYTES, box.length );
+
+	// virtual channels (0..N-1 channels, N sum, N+1 col) per mask
+	val = new int[ nc+2 ][ 1<<nc ];
+	for (int m=0; m<(1<<nc); m++) {
+	    for (int c=0; c<nc; c++) 
+		val[c][m] = (m>>>c)&1;
+	    val[nc][m]   = Integer.bitCount( m );
+	    val[nc+1][m] = ( m == (1<<nc)-1 )?(1):(0);
+	}
+	final List<int []> pl = gn.measurePairsV();
+	pairs = pl.toArray( new int[ pl.size() ][] );
+    }
+
+    /** Run the test with the settings in 'p', store the p-value
+     *  and the null distribution's mean and std. dev. in 'gm' */
+    void run( GICAmeasurement gm, final GammaParams p ) {
+	
+	final int n = p.permutations;
+	if ( n <= 0 ) return;
+	final long t0 = Metrics.start();
+	final int ch    = Math.min( p.permChannel, nc-1 );
+	final int block = Math.max( 1, ( p.permBlock>0 )?( p.permBlock ):( p.binSize ));
+
+	final double obs = gammaNorm( histogram( ch, null, 0, 0, 0 ), p.nStatCount );
+	final double [] nul = new double[ n ];
+	final long seed = new Random().nextLong();
+	
+	new SimpleMT.PFor( 0, n ) {
+	    public void at( int i ) {
+		final Random rnd = new Random( seed + 31L*i );
+		int [] h;
+		if ( p.permMode == Mode.BLOCKS ) 
+		    h = histogram( ch, blockOrder( rnd, block ), block, 0, 0 );
+		else {
+		    final int [] s = shift( rnd, block );
+		    h = histogram( ch, null, 0, s[0], s[1] );
+		}
+		nul[i] = gammaNorm( h, p.nStatCount );
+	    }
+	};
+
+	// p-value: fraction of permutations at least as colocalized
+	int ge=0;
+	RunningStat rs = new RunningStat();
+	for ( double v : nul ) {
+	    rs.add( v );
+	    if ( v >= obs ) ge++;
+	}
+	gm.nPerm    = n;
+	gm.pPerm    = (ge+1)/(double)(n+1);
+	gm.nullMean = rs.mean();
+	gm.nullStd  = rs.std();
+	Metrics.stop( Metrics.PERMUTATION, t0, (long)n*rp.count() );
+	Metrics.count( Metrics.PIXELS, (long)n*rp.count() );
+    }
+
+    /** A random shift, at least 'min' pixel (if the box allows) in x or y */
+    private int [] shift( Random rnd, int min ) {
+	final int w = rp.w, h = rp.h;
+	int dx=0, dy=0;
+	for (int t=0; t<100; t++) {
+	    dx = rnd.nextInt( w ); dy = rnd.nextInt( h );
+	    if (( Math.min( dx, w-dx ) >= min )||( Math.min( dy, h-dy ) >= min ))
+		break;
+	}
+	return new int [] { dx, dy };
+    }
+
+    /** A random order of the 'block' x 'block' blocks of the box */
+    private int [] blockOrder( Random rnd, int block ) {
+	final int nb = ((rp.w+block-1)/block)*((rp.h+block-1)/block);
+	int [] ret = new int[ nb ];
+	for (int i=0; i<nb; i++) ret[i]=i;
+	for (int i=nb-1; i>0; i--) {
+	    final int j = rnd.nextInt( i+1 );
+	    final int t = ret[i]; ret[i]=ret[j]; ret[j]=t;
+	}
+	return ret;
+    }
+
+    /** Histogram of the masks of the ROI pixels, with channel 'ch' 
+     *  taken from a shifted (dx, dy) or block-scrambled ('order') position */
+    private int [] histogram( int ch, int [] order, int block, int dx, int dy ) {
+	
+	final int w = rp.w, h = rp.h;
+	final int nbx = ( order != null )?((w+block-1)/block):(0);
+	final int bit = 1<<ch;
+	final int [] hist = new int[ 1<<nc ];
+	
+	for (int s=0; s<rp.spans(); s++) {
+	    final int y  = rp.spanY(s) - rp.y;
+	    final int x0 = rp.spanX(s) - rp.x;
+	    for (int x=x0; x<x0+rp.spanLength(s); x++) {
+		int sx, sy;
+		if ( order != null ) {
+		    final int b = order[ (y/block)*nbx + x/block ];
+		    sx = ( (b%nbx)*block + x%block ) % w;
+		    sy = ( (b/nbx)*block + y%block ) % h;
+		} else {
+		    sx = x+dx; if ( sx >= w ) sx-=w;
+		    sy = y+dy; if ( sy >= h ) sy-=h;
+		}
+		final int m = ( box[ y*w+x ] & ~bit ) | ( box[ sy*w+sx ] & bit );
+		hist[ m & 0xff ]++;
+	    }
+	}
+	return hist;
+    }
+
+    /** The gamma norm (analytic) from a histogram of masks */
+    private double gammaNorm( int [] hist, int nStat ) {
+	long n=0;
+	for ( int v : hist ) n+=v;
+	double sumR2=0;
+	final long [] mo = new long[5];
+	for ( int [] pr : pairs ) {
+	    java.util.Arrays.fill( mo, 0 );
+	    final int [] vi = val[ pr[0] ], vj = val[ pr[1] ];
+	    for (int m=0; m<hist.length; m++) {
+		if ( hist[m] == 0 ) continue;
+		mo[0] += (long)hist[m]*vi[m];       mo[1] += (long)hist[m]*vj[m];
+		mo[2] += (long)hist[m]*vi[m]*vi[m]; mo[3] += (long)hist[m]*vj[m]*vj[m];
+		mo[4] += (long)hist[m]*vi[m]*vj[m];
+	    }
+	    sumR2 += GammaData.anaMeasureData( mo, n, nStat )[0];
+	}
+	return Math.sqrt( sumR2 );
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImageStack;
+
+/** Row-wise access to the pixels of a multi-channel image, for
+ *  images that are too large to be held as ImageStack. 
+ *  'readRow' may be called from several threads at once. */
+interface PixelSource {
+
+    /** image width */
+    int width();
+    
+    /** image height */
+    int height();
+
+    /** number of channels */
+    int channels();
+
+    /** Read row 'y' of channel 'c' (both 0-based) into 'buf' */
+    void readRow( int c, int y, float [] buf );
+
+    /** Read 'len' pixels of row 'y', starting at 'x', of channel 'c' 
+     *  into 'buf' (so a span costs its length, not the row width) */
+    void readRow( int c, int y, int x, int len, float [] buf );
+
+    /** An ImageStack (one slice per channel) as pixel source */
+    class FromStack implements PixelSource {
+	final ImageStack is;
+	
+	FromStack( ImageStack s ) {
+	    is = s;
+	}
+	
+	public int width()    { return is.getWidth(); }
+	public int height()   { return is.getHeight(); }
+	public int channels() { return is.getSize(); }
+	
+	public void readRow( int c, int y, float [] buf ) {
+	    readRow( c, y, 0, is.getWidth(), buf );
+	}
+
+	public void readRow( int c, int y, int x, int len, float [] buf ) {
+	    final int off = y*is.getWidth() + x;
+	    final Object px = is.getPixels( c+1 );
+	    if ( px instanceof float [] )
+		System.arraycopy( (float [])px, off, buf, 0, len );
+	    else if ( px instanceof short [] )
+		for (int i=0; i<len; i++) buf[i] = ((short [])px)[off+i] & 0xffff;
+	    else if ( px instanceof byte [] )
+		for (int i=0; i<len; i++) buf[i] = ((byte [])px)[off+i] & 0xff;
+	    else
+		throw new RuntimeException("Only grayscale images supported");
+	}
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.swing.table.AbstractTableModel;
+
+/** Table of GICA measurements, stored column-wise in primitive arrays
+ *  (grown by doubling, so appends are O(1) amortized). Can be shown
+ *  in a JTable, copied into an ImageJ ResultsTable, saved as CSV / TSV,
+ *  and streamed to a file row by row as measurements come in.
+ *  Appends and reads are synchronized. Table listeners are notified on
+ *  the appending thread, so add from the EDT if shown in a JTable. */
+class ResultTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    // columns, as in GICAmeasurement.tsvHeader
+    static final String [] COLUMNS = GICAmeasurement.tsvHeader().split("\t");
+    // type of each column: string, double, int, long
+    private static final String KIND = "SDDDDDIIIIIIILSLDDDDDDD";
+    static final int NSTR = 2;	    // label, Ich (counts per channel)
+    static final int NDBL = 12;	    // gNorm, gNormErr, IcolRel, gNormRel, thr, pPerm, nullMean, nullStd,
+				    // pearson, M1, M2, overlap (first channel pair)
+    static final int NINT = 7;	    // Nerr, x, y, w, h, z, d
+    static final int NLNG = 2;	    // Icol, Itotal
+    
+    // index of each column within the arrays of its type
+    private static final int [] IDX = new int[ KIND.length() ];
+    static {
+	int s=0, d=0, i=0, l=0;
+	for (int c=0; c<KIND.length(); c++) {
+	    final char k = KIND.charAt(c);
+	    IDX[c] = (k=='S')?(s++):((k=='D')?(d++):((k=='I')?(i++):(l++)));
+	}
+	if (( COLUMNS.length != KIND.length() )||( s!=NSTR )||( d!=NDBL )||
+	    ( i!=NINT )||( l!=NLNG ))
+	    throw new IllegalStateException("Result columns do not match");
+    }
+
+    private String [][] str   = new String[ NSTR ][ 64 ];
+    private double [][] dbl   = new double[ NDBL ][ 64 ];
+    private int    [][] ints  = new int[ NINT ][ 64 ];
+    private long   [][] lngs  = new long[ NLNG ][ 64 ];
+    private int rows = 0;
+
+    private Writer stream = null;
+    private char   streamSep;
+
+    // ------ appending ------
+
+    /** Append a measurement */
+    void add( GICAmeasurement gm ) {
+	final int r;
+	synchronized ( this ) {
+	    r = append( gm );
+	    writeStream( r, r+1 );
+	}
+	fireTableRowsInserted( r, r );
+    }
+
+    /** Append a list of measurements */
+    void addAll( List<GICAmeasurement> l ) {
+	if ( l.isEmpty() ) return;
+	final int r0;
+	synchronized ( this ) {
+	    r0 = rows;
+	    for ( GICAmeasurement gm : l ) 
+		append( gm );
+	    writeStream( r0, rows );
+	}
+	fireTableRowsInserted( r0, r0+l.size()-1 );
+    }
+
+    private int append( GICAmeasurement gm ) {
+	if ( rows == str[0].length ) 
+	    grow();
+	final int r = rows++;
+	str[0][r] = gm.imgLabel;
+	str[1][r] = gm.channelCounts();
+	dbl[0][r] = gm.gNorm;   dbl[1][r] = gm.gNormErr;
+	dbl[2][r] = gm.colPx;   dbl[3][r] = gm.af;	dbl[4][r] = gm.thr;
+	dbl[5][r] = gm.pPerm;   dbl[6][r] = gm.nullMean;	dbl[7][r] = gm.nullStd;
+	dbl[8][r] = GICAmeasurement.first( gm.pearson );
+	dbl[9][r] = GICAmeasurement.first( gm.m1 );
+	dbl[10][r] = GICAmeasurement.first( gm.m2 );
+	dbl[11][r] = GICAmeasurement.first( gm.overlap );
+	ints[0][r] = gm.bsUsed; 
+	ints[1][r] = gm.x; ints[2][r] = gm.y; ints[3][r] = gm.w; ints[4][r] = gm.h;
+	ints[5][r] = gm.z; ints[6][r] = gm.d;
+	lngs[0][r] = (gm.listI!=null)?(gm.listI[0]):(0);
+	lngs[1][r] = gm.area.count()*(long)gm.d;
+	return r;
+    }
+
+    private void grow() {
+	final int n = 2*str[0].length;
+	for (int i=0; i<NSTR; i++) str[i]  = Arrays.copyOf( str[i], n );
+	for (int i=0; i<NDBL; i++) dbl[i]  = Arrays.copyOf( dbl[i], n );
+	for (int i=0; i<NINT; i++) ints[i] = Arrays.copyOf( ints[i], n );
+	for (int i=0; i<NLNG; i++) lngs[i] = Arrays.copyOf( lngs[i], n );
+    }
+
+    /** Remove all rows (a running stream keeps going) */
+    void clear() {
+	final int n;
+	synchronized ( this ) {
+	    n = rows;
+	    rows = 0;
+	    for ( String [] s : str ) Arrays.fill( s, null );
+	}
+	if ( n > 0 )
+	    fireTableRowsDeleted( 0, n-1 );
+    }
+
+    /** Number of rows */
+    synchronized int size() {
+	return rows;
+    }
+
+    /** The gamma norm of row 'r' */
+    synchronized double gNorm( int r ) {
+	return dbl[0][r];
+    }
+
+    // ------ TableModel ------
+
+    @Override
+    public synchronized int getRowCount() {
+	return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+	return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName( int c ) {
+	return COLUMNS[c];
+    }
+
+    @Override
+    public Class<?> getColumnClass( int c ) {
+	switch ( KIND.charAt(c) ) {
+	    case 'D': return Double.class;
+	    case 'I': return Integer.class;
+	    case 'L': return Long.class;
+	    default:  return String.class;
+	}
+    }
+
+    @Override
+    public synchronized Object getValueAt( int r, int c ) {
+	switch ( KIND.charAt(c) ) {
+	    case 'D': return dbl[ IDX[c] ][r];
+	    case 'I': return ints[ IDX[c] ][r];
+	    case 'L': return lngs[ IDX[c] ][r];
+	    default:  return str[ IDX[c] ][r];
+	}
+    }
+
+    // ------ export ------
+
+    /** One row as text, separated by 'sep' (',' or tab) */
+    synchronized String row( int r, char sep ) {
+	StringBuilder sb = new StringBuilder( 128 );
+	for (int c=0; c<KIND.length(); c++) {
+	    if ( c > 0 ) sb.append( sep );
+	    if ( KIND.charAt(c) == 'S' )
+		sb.append( quote( str[ IDX[c] ][r], sep ));
+	    else if ( KIND.charAt(c) == 'D' )
+		sb.append( String.format( Locale.US, "%.6f", dbl[ IDX[c] ][r] ));
+	    else
+		sb.append( getValueAt( r, c ));
+	}
+	return sb.toString();
+    }
+
+    /** The header line, separated by 'sep' */
+    static String header( char sep ) {
+	StringBuilder sb = new StringBuilder();
+	for (int c=0; c<COLUMNS.length; c++) 
+	    sb.append( (c>0)?(""+sep):("") ).append( COLUMNS[c] );
+	return sb.toString();
+    }
+
+    /** quote labels (CSV) that contain the separator or quotes */
+    private static String quote( String s, char sep ) {
+	if ( s == null ) return "";
+	if ( sep == ',' && ( s.indexOf(',')>=0 || s.indexOf('"')>=0 ))
+	    return "\""+s.replace("\"","\"\"")+"\"";
+	if ( sep == '\t' ) 
+	    return s.replace('\t',' ');
+	return s;
+    }
+
+    /** Separator for a file: ',' for .csv, tab otherwise */
+    static char separator( File f ) {
+	return ( f.getName().toLowerCase().endsWith(".csv") )?(','):('\t');
+    }
+
+    /** Save all rows as CSV or TSV (by file extension) */
+    void save( File f ) throws IOException {
+	final char sep = separator( f );
+	Writer w = new BufferedWriter( new FileWriter( f ));
+	try {
+	    w.write( header( sep ) ); 
+	    w.write( "\n" );
+	    final int n = size();
+	    for (int r=0; r<n; r++) {
+		w.write( row( r, sep ));
+		w.write( "\n" );
+	    }
+	} finally {
+	    w.close();
+	}
+    }
+
+    /** Write every row (existing and appended) to 'f', as CSV or TSV.
+     *  An existing file is appended to (header only if it is empty). */
+    synchronized void streamTo( File f ) throws IOException {
+	closeStream();
+	final boolean fresh = ( !f.exists() )||( f.length() == 0 );
+	streamSep = separator( f );
+	stream = new BufferedWriter( new FileWriter( f, true ));
+	if ( fresh ) 
+	    stream.write( header( streamSep ) + "\n" );
+	writeStream( 0, rows );
+    }
+
+    /** Write rows r0 .. r1-1 to the stream, flushed per call */
+    private void writeStream( int r0, int r1 ) {
+	if ( stream == null ) return;
+	try {
+	    for (int r=r0; r<r1; r++) {
+		stream.write( row( r, streamSep ));
+		stream.write( "\n" );
+	    }
+	    stream.flush();
+	} catch ( IOException e ) {
+	    Tools.log("Result stream failed, closed: "+e, Tools.LL.ERROR);
+	    closeStream();
+	}
+    }
+
+    /** Stop streaming */
+    synchronized void closeStream() {
+	if ( stream == null ) return;
+	try {
+	    stream.close();
+	} catch ( IOException e ) {
+	    Tools.log("Closing result stream: "+e, Tools.LL.ERROR);
+	}
+	stream = null;
+    }
+
+    /** Copy into an ImageJ ResultsTable */
+    synchronized ResultsTable toResultsTable() {
+	ResultsTable rt = new ResultsTable();
+	for (int r=0; r<rows; r++) {
+	    rt.incrementCounter();
+	    for (int c=0; c<COLUMNS.length; c++) 
+		if ( KIND.charAt(c) == 'S' )
+		    rt.addValue( COLUMNS[c], str[ IDX[c] ][r] );
+		else
+		    rt.addValue( COLUMNS[c], ((Number)getValueAt( r, c )).doubleValue() );
+	}
+	return rt;
+    }
+
+}
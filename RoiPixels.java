@@ -0,0 +1,180 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** The pixels of a (possibly non-rectangular) ROI, compiled once
+ *  into run-length spans along x. All sampling and counting works
+ *  on these spans, so pixels outside the mask are never touched. */
+class RoiPixels {
+
+    // spans: row, first x, length
+    private int [] sy, sx, sl;
+    private int nSpans;
+    private int count;
+
+    // bounding box
+    final int x, y, w, h;
+    
+    // label (for segmentation label images, 0 otherwise)
+    int label;
+
+    /** create empty, with bounding box */
+    private RoiPixels( int xi, int yi, int wi, int hi ) {
+	x=xi; y=yi; w=wi; h=hi;
+	sy = new int[ Math.max(hi,1) ];
+	sx = new int[ sy.length ];
+	sl = new int[ sy.length ];
+    }
+
+    /** append a span */
+    private void addSpan( int row, int x0, int len ) {
+	if (len<=0) return;
+	if ( nSpans == sy.length ) {
+	    sy = Arrays.copyOf( sy, nSpans*2 );
+	    sx = Arrays.copyOf( sx, nSpans*2 );
+	    sl = Arrays.copyOf( sl, nSpans*2 );
+	}
+	sy[nSpans]=row; sx[nSpans]=x0; sl[nSpans]=len;
+	nSpans++;
+	count+=len;
+    }
+
+    /** A rectangular area */
+    static RoiPixels fromRect( int xi, int yi, int wi, int hi ) {
+	RoiPixels ret = new RoiPixels( xi, yi, wi, hi );
+	for (int yy=yi; yy<yi+hi; yy++)
+	    ret.addSpan( yy, xi, wi );
+	return ret;
+    }
+
+    /** Compile an ImageJ area ROI (rectangle, polygon, freehand, ...), 
+     *  clipped to an image of size 'width' x 'height'. Returns null
+     *  if the ROI is not an area. */
+    static RoiPixels fromRoi( Roi roi, int width, int height ) {
+	
+	if (( roi == null )||( !roi.isArea() )) return null;
+	Rectangle b = roi.getBounds().intersection( 
+	    new Rectangle( 0, 0, width, height ));
+	if ( b.isEmpty() ) return null;
+
+	ImageProcessor mask = roi.getMask();
+	if ( mask == null )
+	    return fromRect( b.x, b.y, b.width, b.height );
+
+	// the mask is relative to the (unclipped) ROI bounds
+	final Rectangle rb = roi.getBounds();
+	RoiPixels ret = new RoiPixels( b.x, b.y, b.width, b.height );
+	
+	for (int yy=b.y; yy<b.y+b.height; yy++) {
+	    int start=-1;
+	    for (int xx=b.x; xx<=b.x+b.width; xx++) {
+		final boolean in = (xx<b.x+b.width) &&
+		    ( mask.get( xx-rb.x, yy-rb.y ) != 0 );
+		if ( in && start<0 ) start = xx;
+		if ( !in && start>=0 ) {
+		    ret.addSpan( yy, start, xx-start );
+		    start=-1;
+		}
+	    }
+	}
+	return ret;
+    }
+
+    /** Compile all labels of a segmentation label image (pixel value 
+     *  = object id, 0 = background) in one pass. */
+    static List<RoiPixels> fromLabels( ImageProcessor lbl ) {
+	
+	final int width  = lbl.getWidth();
+	final int height = lbl.getHeight();
+	
+	// first pass: bounding boxes
+	Map<Integer, int []> bb = new TreeMap<Integer, int []>();
+	for (int yy=0; yy<height; yy++)
+	for (int xx=0; xx<width; xx++) {
+	    final int l = (int)lbl.getf(xx,yy);
+	    if (l==0) continue;
+	    int [] b = bb.get(l);
+	    if (b==null) {
+		b = new int [] { xx, yy, xx, yy };
+		bb.put( l, b );
+	    }
+	    b[0] = Math.min(b[0],xx); b[1] = Math.min(b[1],yy);
+	    b[2] = Math.max(b[2],xx); b[3] = Math.max(b[3],yy);
+	}
+
+	// second pass: spans, per label
+	Map<Integer, RoiPixels> rp = new TreeMap<Integer, RoiPixels>();
+	for ( Map.Entry<Integer, int []> e : bb.entrySet() ) {
+	    int [] b = e.getValue();
+	    RoiPixels r = new RoiPixels( b[0], b[1], b[2]-b[0]+1, b[3]-b[1]+1 );
+	    r.label = e.getKey();
+	    rp.put( e.getKey(), r );
+	}
+
+	for (int yy=0; yy<height; yy++) {
+	    int xx=0;
+	    while (xx<width) {
+		final int l = (int)lbl.getf(xx,yy);
+		int start = xx;
+		while (( xx<width )&&( (int)lbl.getf(xx,yy) == l )) xx++;
+		if (l!=0) 
+		    rp.get(l).addSpan( yy, start, xx-start );
+	    }
+	}
+
+	return new ArrayList<RoiPixels>( rp.values() );
+    }
+
+    /** number of pixels in the ROI */
+    int count() { return count; }
+    
+    /** number of spans */
+    int spans() { return nSpans; }
+
+    /** row of span 'i' */
+    int spanY(int i) { return sy[i]; }
+    
+    /** first x of span 'i' */
+    int spanX(int i) { return sx[i]; }
+    
+    /** length of span 'i' */
+    int spanLength(int i) { return sl[i]; }
+
+    /** Copy the ROI's pixels from a (row-major, 'width' wide) 
+     *  array into a linear array */
+    byte [] gather( byte [] src, int width ) {
+	byte [] ret = new byte[ count ];
+	int pos=0;
+	for (int i=0; i<nSpans; i++) {
+	    System.arraycopy( src, sy[i]*width+sx[i], ret, pos, sl[i] );
+	    pos+=sl[i];
+	}
+	return ret;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** Running mean and variance (Welford's algorithm), to
+ *  accumulate statistics without storing all values */
+class RunningStat {
+    
+    private long   n;
+    private double mean, m2;
+
+    /** add a value */
+    void add( double x ) {
+	n++;
+	final double d = x - mean;
+	mean += d/n;
+	m2   += d*(x-mean);
+    }
+
+    /** number of values added */
+    long count() { return n; }
+
+    /** the mean of all values */
+    double mean() { return mean; }
+
+    /** the (sample) variance of all values */
+    double var() { return (n>1)?(m2/(n-1)):(0); }
+
+    /** the (sample) standard deviation of all values */
+    double std() { return Math.sqrt( var() ); }
+
+    /** the standard error of the mean */
+    double sem() { return (n>0)?(Math.sqrt( var()/n )):(0); }
+
+}
@@ -52,15 +52,20 @@ new SimpleMT.PFor(0,len) {
  * */
 public final class SimpleMT {
 
-    private static int nrThreads = Runtime.getRuntime().availableProcessors();
+    private static volatile int nrThreads = Runtime.getRuntime().availableProcessors();
     static {
 	Tools.log("(multi-core) init to "+nrThreads+" threads ",Tools.LL.DEBUG);
     }
-    private static ExecutorService ex = 
+    private static volatile ExecutorService ex = 
 	Executors.newFixedThreadPool(nrThreads);
 
     static private boolean doParallel = true;
-    static private boolean parallelInProgress = false;
+    
+    // set in the worker threads, so nested loops run serial
+    static private final ThreadLocal<Boolean> inWorker = 
+	new ThreadLocal<Boolean>() {
+	    @Override protected Boolean initialValue() { return false; }
+	};
 
 
     /*
@@ -103,26 +108,30 @@ public final class SimpleMT {
     
     /** Execute a parallel loop, called by the constructor */
     private static void execute(final PFor loop){
-	if (doParallel&&(!parallelInProgress)) {
+	if (doParallel&&(!inWorker.get())) {
 	    // only run the outermost loop in parallel
-	    parallelInProgress=true;
 	    
 	    // split the loop into sub-loop
-	    final int [][] sp = split( nrThreads, loop.start, loop.end );
-	    List<Calls> cb = new ArrayList<Calls>(nrThreads);
-	    for (int i=0; i<nrThreads; i++) {
+	    final int nr = nrThreads;
+	    final int [][] sp = split( nr, loop.start, loop.end );
+	    List<Calls> cb = new ArrayList<Calls>(nr);
+	    for (int i=0; i<nr; i++) {
 		final int j=i;
 		cb.add( new Calls() {
 		    final int s = sp[j][0], e = sp[j][1];
 		    public Object call() {
+			inWorker.set(true);
+			final long t0 = System.nanoTime();
+			final Object ev = Trace.T.begin( Trace.CHUNK );
 			for(int i=s;i<e;i+=loop.inc)
 			    loop.at(i);
+			Trace.T.chunk( ev, s, e, loop.inc );
+			Metrics.busy( System.nanoTime()-t0 );
 			return null;
 		    }
 		} );
 	    }
 	    execute( cb );
-	    parallelInProgress=false;
 	
 	} else {
 	    // run in serial if already in parallel loop, or parallel is turned off
@@ -133,26 +142,29 @@ public final class SimpleMT {
 
     /** Execute a parallel loop, called by the constructor */
     private static void execute(final StrPFor loop){
-	if (doParallel&&(!parallelInProgress)) {
+	if (doParallel&&(!inWorker.get())) {
 	    // only run the outermost loop in parallel
-	    parallelInProgress=true;
 	    
 	    // split the loop into sub-loop
-	    List<Calls> cb = new ArrayList<Calls>(nrThreads);
 	    final int nr = nrThreads;
+	    List<Calls> cb = new ArrayList<Calls>(nr);
 
 	    for (int i=0; i<nr; i++) {
 		final int j=i;
 		cb.add( new Calls() {
 		    public Object call() {
+			inWorker.set(true);
+			final long t0 = System.nanoTime();
+			final Object ev = Trace.T.begin( Trace.CHUNK );
 			for(int i=loop.start+j; i<loop.end; i+=nr)
 			    loop.at(i);
+			Trace.T.chunk( ev, loop.start+j, loop.end, nr );
+			Metrics.busy( System.nanoTime()-t0 );
 			return null;
 		    }
 		} );
 	    }
 	    execute( cb );
-	    parallelInProgress=false;
 	
 	} else {
 	    // run in serial if already in parallel loop, or parallel is turned off
@@ -165,16 +177,24 @@ public final class SimpleMT {
     /** Abbreviation */
     private interface Calls extends Callable<Object> {} ;
     
-    /** execute and wait for all callables */
+    /** execute and wait for all callables. An exception thrown in a
+     *  loop is rethrown here (unchecked ones as they are, others wrapped
+     *  in a RuntimeException), so the caller of the loop sees it. */
     static void execute( List<Calls> jobs ) {
 	try {
 	    List<Future<Object>> fut = ex.invokeAll( jobs );
 	    for (Future<Object> t : fut )
 		t.get();
 	} catch (InterruptedException e) {
-	    System.err.println("ERR: "+e);	
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Parallel loop interrupted", e );
 	} catch ( ExecutionException e) {
-	    System.err.println("ERR: "+e);	
+	    final Throwable c = e.getCause();
+	    if ( c instanceof RuntimeException )
+		throw (RuntimeException)c;
+	    if ( c instanceof Error )
+		throw (Error)c;
+	    throw new RuntimeException( c );
 	}
     }
 
@@ -192,6 +212,25 @@ public final class SimpleMT {
 	return sp;
     }
 
+    /** The number of threads used for parallel loops */
+    public static int getNumThreads() {
+	return (doParallel)?(nrThreads):(1);
+    }
+
+    /** Set the number of threads for parallel loops. Replaces (and shuts
+     *  down) the shared thread pool, so this is only for the scaling 
+     *  benchmark, between its runs, while no loop is running. */
+    static synchronized void setNumThreads(int n) {
+	if ( n < 1 )
+	    throw new IllegalArgumentException("Need at least one thread");
+	if ( n == nrThreads ) 
+	    return;
+	ex.shutdown();
+	ex = Executors.newFixedThreadPool(n);
+	nrThreads = n;
+	Tools.log("(multi-core) set to "+n+" threads ",Tools.LL.DEBUG);
+    }
+
     /** Switch parallel implementation on/off.
      *  Used mostly for benchmarking, if 'value' is false,
      *  all calls will run in standard, serial mode. */
@@ -0,0 +1,166 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+
+/** Mean and variance of a channel, estimated from a stratified sample
+ *  of its pixels (instead of full passes over the image), with an 
+ *  approximate 95% confidence bound on the resulting threshold. */
+final class ThresholdStats {
+
+    /** How the threshold statistics are obtained */
+    enum Mode {
+	EXACT("exact"),			// full passes (mean, then variance)
+	SAMPLED("sampled"),		// from a sample only
+	REFINED("sampled + refined");	// exact, fixed up while thresholding
+
+	final String label;
+	Mode(String l) { label=l; }
+
+	/** labels, for the dialog */
+	static String [] labels() {
+	    String [] ret = new String[ values().length ];
+	    for (int i=0; i<ret.length; i++) ret[i] = values()[i].label;
+	    return ret;
+	}
+    }
+
+    /** default number of pixels sampled */
+    static final int SAMPLES = 1<<16;
+    
+    /** strata per direction (images), so SAMPLES/256 pixels per stratum */
+    static final int STRATA = 16;
+
+    final double mean, var;
+    final double seMean, seStd;	// standard errors of mean and std. dev.
+    final long n;		// number of pixels sampled
+
+    private ThresholdStats( double m, double v, double sm, double ss, long ni ) {
+	mean = m; var = v; seMean = sm; seStd = ss; n = ni;
+    }
+
+    /** The threshold, mean + fac * std. dev. */
+    double threshold( float fac ) {
+	return mean + fac*Math.sqrt( var );
+    }
+
+    /** Approx. 95% confidence bound (+-) of the threshold */
+    double bound( float fac ) {
+	return 1.96*Math.sqrt( seMean*seMean + fac*fac*seStd*seStd );
+    }
+
+    /** Whether sampling is worth it for an image of 'n' pixels */
+    static boolean worthIt( long pixels ) {
+	return pixels >= 4L*SAMPLES;
+    }
+
+    /** Sample 'nSample' pixels of 'ip', evenly over STRATA x STRATA blocks */
+    static ThresholdStats sample( ImageProcessor ip, int nSample, long seed ) {
+	
+	final long t0 = Metrics.start();
+	final int w = ip.getWidth(), h = ip.getHeight();
+	final int sx = Math.min( STRATA, w ), sy = Math.min( STRATA, h );
+	final int perStratum = Math.max( 2, nSample/(sx*sy) );
+	final Random rnd = new Random( seed );
+	
+	double mean=0, ex2=0, seM2=0;
+	final double [] all = new double[ sx*sy*perStratum ];
+	int pos=0;
+	for (int j=0; j<sy; j++)
+	for (int i=0; i<sx; i++) {
+	    // stratum bounds, weight by its area
+	    final int x0 = i*w/sx, x1 = (i+1)*w/sx;
+	    final int y0 = j*h/sy, y1 = (j+1)*h/sy;
+	    final double wt = (double)(x1-x0)*(y1-y0)/((double)w*h);
+	    
+	    double s=0, sq=0;
+	    for (int k=0; k<perStratum; k++) {
+		final double v = ip.getf( x0 + rnd.nextInt( x1-x0 ), y0 + rnd.nextInt( y1-y0 ));
+		all[pos++] = v;
+		s+=v; sq+=v*v;
+	    }
+	    final double m = s/perStratum;
+	    final double v = Math.max( 0, (sq - perStratum*m*m)/(perStratum-1) );
+	    mean += wt*m;
+	    ex2  += wt*( v*(perStratum-1)/perStratum + m*m );
+	    seM2 += wt*wt*v/perStratum;
+	}
+	final double var = Math.max( 0, ex2 - mean*mean ) * pos/(pos-1.);
+	Metrics.stop( Metrics.STATISTICS, t0, pos );
+	return new ThresholdStats( mean, var, Math.sqrt( seM2 ), seStd( all, pos, mean, var ), pos );
+    }
+
+    /** Sample channel 'c' of 'src' by full rows: one random row in each
+     *  of 'nRows' bands. The error of the mean is estimated from the 
+     *  spread of the row means, as pixels within a row are correlated. */
+    static ThresholdStats sample( PixelSource src, int c, int nRows, long seed ) {
+	
+	final long t0 = Metrics.start();
+	final int w = src.width(), h = src.height();
+	nRows = Math.max( 2, Math.min( nRows, h ));
+	final Random rnd = new Random( seed );
+	final float [] row = new float[ w ];
+	final double [] rowMean = new double[ nRows ];
+	// (for the error of the std. dev., a subset of pixels is kept)
+	final int keep = Math.max( 1, SAMPLES/nRows );
+	final double [] all = new double[ nRows*Math.min( keep, w ) ];
+	
+	int pos=0;
+	double s=0, sq=0;
+	for (int k=0; k<nRows; k++) {
+	    final int y0 = k*h/nRows, y1 = Math.max( (k+1)*h/nRows, y0+1 );
+	    src.readRow( c, y0 + rnd.nextInt( y1-y0 ), row );
+	    double rs=0;
+	    for (int x=0; x<w; x++) {
+		rs+=row[x]; sq+=row[x]*(double)row[x];
+	    }
+	    for (int i=0; i<Math.min( keep, w ); i++) 
+		all[pos++] = row[ rnd.nextInt( w ) ];
+	    s += rs;
+	    rowMean[k] = rs/w;
+	}
+	final double n = (double)nRows*w;
+	final double mean = s/n;
+	final double var  = Math.max( 0, (sq - n*mean*mean)/(n-1) );
+	double vb=0;
+	for ( double m : rowMean ) vb += (m-mean)*(m-mean);
+	vb /= (nRows-1);
+	Metrics.stop( Metrics.STATISTICS, t0, (long)n );
+	return new ThresholdStats( mean, var, Math.sqrt( vb/nRows ), 
+	    seStd( all, pos, mean, var ), (long)n );
+    }
+
+    /** Standard error of the std. dev., from the 4th central moment */
+    private static double seStd( double [] v, int n, double mean, double var ) {
+	if (( var <= 0 )||( n < 2 )) return 0;
+	double m4=0;
+	for (int i=0; i<n; i++) m4 += Math.pow( v[i]-mean, 4 );
+	m4 /= n;
+	final double seVar = Math.sqrt( Math.max( 0, m4 - var*var )/n );
+	return seVar / ( 2*Math.sqrt( var ));
+    }
+
+    @Override
+    public String toString() {
+	return String.format( "n=%d, avr %.4g (+-%.2g), std %.4g (+-%.2g)",
+	    n, mean, seMean, Math.sqrt( var ), seStd );
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** Topology values (norm., abs) computed only for every 'stride'-th
+ *  window (and the last one) in x and y, and interpolated (bilinear or 
+ *  bicubic) for the windows in between. Neighbouring windows overlap by all but one
+ *  row or column, so their values are highly correlated. */
+final class TopologyGrid {
+
+    final int stride, bin;
+    final int nx, ny;	    // number of windows (x, y) in the image
+    final int gx, gy;	    // number of grid points (x, y)
+    final int width;	    // image width
+    final float [] val, valAbs;
+    private boolean norms = false;	// values are norms (see sqrt)
+
+    /** An empty grid for an image of 'w' x 'h' */
+    TopologyGrid( int w, int h, int b, int s ) {
+	width = w; bin = b; stride = s;
+	nx = Math.max( w-b, 0 ); 
+	ny = Math.max( h-b, 0 );
+	gx = points( nx, s );
+	gy = points( ny, s );
+	val    = new float[ gx*gy ];
+	valAbs = new float[ gx*gy ];
+	Metrics.count( Metrics.BYTES, 8L*gx*gy );
+    }
+
+    /** Number of grid points for 'n' windows: every 's'-th, and the last */
+    static int points( int n, int s ) {
+	return (n>0)?((n-1+s-1)/s+1):(0);
+    }
+
+    /** Window x position of grid column 'i' */
+    int x( int i ) { return Math.min( i*stride, nx-1 ); }
+
+    /** Window y position of grid row 'j' */
+    int y( int j ) { return Math.min( j*stride, ny-1 ); }
+
+    /** Take the square root of all values (after summing squares).
+     *  The values are then norms, and the bicubic interpolation of 
+     *  them is clamped to >= 0 (signed per-pair values are not). */
+    void sqrt() {
+	norms = true;
+	for (int i=0; i<val.length; i++) {
+	    val[i]    = (float)Math.sqrt( val[i] );
+	    valAbs[i] = (float)Math.sqrt( valAbs[i] );
+	}
+    }
+
+    /** Interpolate the windows starting at rows y0 .. y1-1, stored at
+     *  their centers in 'out' and 'outAbs' (starting at image row 'rowOff') */
+    void interpolate( GammaNorm.Interpolation m, int y0, int y1, 
+	final float [] out, final float [] outAbs, final int rowOff ) {
+	
+	final boolean cubic = ( m == GammaNorm.Interpolation.BICUBIC );
+	final int yEnd = Math.min( y1, ny );
+	new SimpleMT.PFor( y0, yEnd ) {
+	    public void at( int y ) {
+		final int   jy = Math.min( y/stride, gy-1 );
+		final float ty = ( jy < gy-1 )?( (y-y(jy))/(float)( y(jy+1)-y(jy) )):(0);
+		final int off = (y+bin/2-rowOff)*width + bin/2;
+		for (int x=0; x<nx; x++) {
+		    final int   ix = Math.min( x/stride, gx-1 );
+		    final float tx = ( ix < gx-1 )?( (x-x(ix))/(float)( x(ix+1)-x(ix) )):(0);
+		    if ( cubic ) {
+			out[off+x]    = bicubic( val, ix, jy, tx, ty );
+			outAbs[off+x] = bicubic( valAbs, ix, jy, tx, ty );
+		    } else {
+			out[off+x]    = bilinear( val, ix, jy, tx, ty );
+			outAbs[off+x] = bilinear( valAbs, ix, jy, tx, ty );
+		    }
+		}
+	    }
+	};
+    }
+
+    /** grid value, indices clamped to the grid */
+    private float at( float [] v, int i, int j ) {
+	i = Math.max( 0, Math.min( gx-1, i ));
+	j = Math.max( 0, Math.min( gy-1, j ));
+	return v[ j*gx+i ];
+    }
+
+    private float bilinear( float [] v, int i, int j, float tx, float ty ) {
+	final float a = at( v, i, j )   * (1-tx) + at( v, i+1, j )   * tx;
+	final float b = at( v, i, j+1 ) * (1-tx) + at( v, i+1, j+1 ) * tx;
+	return a*(1-ty) + b*ty;
+    }
+
+    private float bicubic( float [] v, int i, int j, float tx, float ty ) {
+	final float r0 = cubicRow( v, i, j-1, tx );
+	final float r1 = cubicRow( v, i, j,   tx );
+	final float r2 = cubicRow( v, i, j+1, tx );
+	final float r3 = cubicRow( v, i, j+2, tx );
+	final float ret = cubic( r0, r1, r2, r3, ty );
+	// (norms can not be negative, so do not let overshoot go there)
+	return ( norms )?( Math.max( 0, ret )):( ret );
+    }
+
+    /** Spline along grid row 'j', between columns i and i+1 */
+    private float cubicRow( float [] v, int i, int j, float tx ) {
+	return cubic( at( v, i-1, j ), at( v, i, j ), 
+	    at( v, i+1, j ), at( v, i+2, j ), tx );
+    }
+
+    /** Catmull-Rom spline between p1 and p2 */
+    private static float cubic( float p0, float p1, float p2, float p3, float t ) {
+	return p1 + 0.5f*t*( p2-p0 + t*( 2*p0 - 5*p1 + 4*p2 - p3 
+	    + t*( 3*(p1-p2) + p3 - p0 )));
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** Chooses how a topology is computed, from an estimate of its peak
+ *  memory use and the free heap:
+ *  <ul>
+ *  <li>IN_MEMORY: all pair images are kept (only for intermediate results)
+ *  <li>STREAMING: pairs are summed up as they are computed, only the
+ *	two output images are held
+ *  <li>TILED: rows are computed in strips and written to disk, the
+ *	result is opened as virtual stack
+ *  </ul> */
+final class TopologyPlan {
+
+    enum Strategy { IN_MEMORY, STREAMING, TILED };
+
+    /** fraction of the free heap a plan may use */
+    static final double HEAP_FRACTION = 0.7;
+
+    final Strategy strategy;
+    final long estimate;    // peak memory (bytes) of the chosen strategy
+    final long available;   // free heap (bytes) at planning time
+    final int stripRows;    // rows per strip (tiled)
+    final boolean dropsFullResult;  // intermediate results cannot be shown
+
+    private TopologyPlan( Strategy s, long e, long a, int r, boolean d ) {
+	strategy = s; estimate = e; available = a; stripRows = r; 
+	dropsFullResult = d;
+    }
+
+    /** Peak memory of keeping all pair images (and the intermediate results) */
+    static long inMemoryBytes( int w, int h, int nc, int nPairs, boolean full ) {
+	final long wh = (long)w*h;
+	return 8L*wh*nPairs + 8L*wh + ((full)?(4L*wh*(nc+2)):(0));
+    }
+
+    /** Peak memory of the streaming reduction */
+    static long streamingBytes( int w, int h ) {
+	return 8L*w*h;
+    }
+
+    /** Peak memory of one strip of 'rows' rows (tiled) */
+    static long tiledBytes( int w, int rows ) {
+	return 12L*w*rows;
+    }
+
+    /** Working memory of all strategies: per thread, the column sums of
+     *  one window row (analytic) or the pixels of one 'bin' x 'bin' window
+     *  and its 'n' samples (Monte Carlo), and the grid of a strided 
+     *  topology. (The gamma data itself is allocated before planning, so
+     *  it is already accounted for by the free heap.) */
+    static long workBytes( int w, int h, int bin, int n, int stride, int threads ) {
+	final long perThread = 48L*(w+1) + 8L*bin*bin + 8L*n;
+	final long grid = ( stride > 1 )?( 8L*
+	    TopologyGrid.points( Math.max( w-bin, 0 ), stride ) *
+	    (long)TopologyGrid.points( Math.max( h-bin, 0 ), stride )):( 0 );
+	return threads*perThread + grid;
+    }
+
+    /** Free heap, i.e. what can still be allocated */
+    static long freeHeap() {
+	final Runtime rt = Runtime.getRuntime();
+	return rt.maxMemory() - ( rt.totalMemory() - rt.freeMemory() );
+    }
+
+    /** Plan the topology of 'gn' with parameters 'p' */
+    static TopologyPlan plan( GammaNorm gn, GammaParams p ) {
+	return plan( gn.width, gn.height, gn.cCount, gn.topoPairsV().size(),
+	    p.fullResult, p.binSize, p.secSize, p.stride, freeHeap() );
+    }
+
+    /** Plan a topology for the given size, channels, window size 'bin',
+     *  samples 'n', output stride and free memory */
+    static TopologyPlan plan( int w, int h, int nc, int nPairs, 
+	boolean full, int bin, int n, int stride, long avail ) {
+	
+	final long budget = (long)( avail * HEAP_FRACTION );
+	final long work = workBytes( w, h, bin, n, stride, SimpleMT.getNumThreads() );
+	
+	// (without intermediate results, streaming gives the same for less)
+	final long inMem = work + inMemoryBytes( w, h, nc, nPairs, full );
+	if (( full )&&( inMem <= budget ))
+	    return new TopologyPlan( Strategy.IN_MEMORY, inMem, avail, h, false );
+
+	final long stream = work + streamingBytes( w, h );
+	if ( stream <= budget )
+	    return new TopologyPlan( Strategy.STREAMING, stream, avail, h, full );
+
+	// strips: as many rows as fit, at least one
+	final int rows = (int)Math.max( 1, Math.min( h, 
+	    ( budget - work ) / tiledBytes( w, 1 )));
+	return new TopologyPlan( Strategy.TILED, work + tiledBytes( w, rows ), 
+	    avail, rows, full );
+    }
+
+    @Override
+    public String toString() {
+	String ret = "topology plan: "+strategy+", est. "+(estimate>>20)+" MB of "+
+	    (available>>20)+" MB free";
+	if ( strategy == Strategy.TILED ) 
+	    ret += ", strips of "+stripRows+" rows";
+	if ( dropsFullResult )
+	    ret += ", intermediate results skipped";
+	return ret;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.ImageCanvas;
+import ij.process.FloatProcessor;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/** Shows the topology of the part of an image visible in its window,
+ *  computed from the GammaPyramid at the level matching the zoom. 
+ *  Follows panning and zooming of the source image (checked every
+ *  250 ms), only missing tiles are computed. If the gamma data is
+ *  updated, its new pyramid is built and the view recomputed. */
+class TopologyViewer {
+
+    final GammaNorm gn;
+    final ImagePlus src;
+    final ImagePlus view;
+    private final Timer timer;
+
+    private Rectangle shown = null;	// viewport shown (level pixels)
+    private int shownLevel = -1;
+    private GammaPyramid shownPyramid = null;
+    private boolean busy = false;
+
+    /** Start following the window of 'gn.sourceImg' */
+    TopologyViewer( GammaNorm g ) {
+	gn = g; src = g.sourceImg;
+	gn.pyramid();
+	view = new ImagePlus();
+	view.setProperty("bbp.gica.isGammaNormDisplay", gn);
+	
+	timer = new Timer( 250, new ActionListener() {
+	    public void actionPerformed( ActionEvent e ) {
+		update();
+	    }
+	});
+	timer.start();
+	update();
+    }
+
+    /** Compute and show the topology, if the visible part has changed */
+    void update() {
+	
+	// stop if one of the windows got closed
+	if (( src.getWindow() == null )||
+	    (( shownLevel >= 0 )&&( view.getWindow() == null ))) {
+	    timer.stop();
+	    return;
+	}
+	if ( busy ) return;
+
+	// the pyramid of the current gamma data (dropped on its update)
+	final GammaPyramid pyramid = gn.pyramid;
+	if ( pyramid == null ) {
+	    rebuild();
+	    return;
+	}
+
+	// the visible part of the source, at the level matching the zoom
+	final ImageCanvas ic = src.getCanvas();
+	final Rectangle r = ic.getSrcRect();
+	final Rectangle screen = ic.getBounds();
+	final int l = pyramid.levelFor( r.width, r.height, 
+	    Math.max( screen.width, 64 ), Math.max( screen.height, 64 ));
+	final Rectangle vp = new Rectangle( r.x>>l, r.y>>l, 
+	    Math.max( 1, r.width>>l ), Math.max( 1, r.height>>l ));
+	if (( pyramid == shownPyramid )&&( l == shownLevel )&&( vp.equals( shown )))
+	    return;
+
+	final GammaParams p = gn.params();
+	busy = true;
+	
+	class ViewportCompute extends SwingWorker<FloatProcessor [], Object> {
+	    @Override
+	    public FloatProcessor [] doInBackground() {
+		return pyramid.viewport( l, vp.x, vp.y, vp.width, vp.height,
+		    p.binSize, p.secSize );
+	    }
+	    @Override
+	    protected void done() {
+		busy = false;
+		try {
+		    FloatProcessor [] res = get();
+		    ImageStack is = new ImageStack( res[0].getWidth(), res[0].getHeight() );
+		    is.addSlice( "Topology (norm.)", res[0] );
+		    is.addSlice( "Topology (abs)", res[1] );
+		    final int slice = Math.max( 1, view.getCurrentSlice() );
+		    view.setStack( "GICA topology (level "+l+", x"+(1<<l)+", at "+
+			r.x+","+r.y+")", is );
+		    view.setSlice( Math.min( slice, 2 ) );
+		    view.resetDisplayRange();
+		    if ( shownLevel < 0 ) 
+			view.show();
+		    shown = vp; shownLevel = l; shownPyramid = pyramid;
+		} catch ( Exception e ) {
+		    Tools.log("Viewport topology failed: "+e, Tools.LL.ERROR);
+		    timer.stop();
+		}
+	    }
+	};
+	(new ViewportCompute()).execute();
+    }
+
+    /** Build the pyramid of the updated gamma data, in the background */
+    private void rebuild() {
+	busy = true;
+	class PyramidBuild extends SwingWorker<Object, Object> {
+	    @Override
+	    public Object doInBackground() {
+		gn.pyramid();
+		return null;
+	    }
+	    @Override
+	    protected void done() {
+		busy = false;
+		try {
+		    get();
+		} catch ( Exception e ) {
+		    Tools.log("Viewport topology failed: "+e, Tools.LL.ERROR);
+		    timer.stop();
+		}
+	    }
+	};
+	(new PyramidBuild()).execute();
+    }
+
+    /** Stop following the source window */
+    void stop() {
+	timer.stop();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+/** Hooks for tracing the GICA pipeline with the Java Flight Recorder.
+ *  The events (JfrEvents) need jdk.jfr, so they are compiled separately
+ *  (see Makefile) and only loaded if it is present at runtime. Otherwise,
+ *  e.g. on older Java versions, all hooks do nothing. Usage:
+ *  <code>
+    final Object ev = Trace.T.begin( Trace.MEASURE );
+    ...
+    Trace.T.measureRoi( ev, ... );
+ *  </code> */
+abstract class Trace {
+
+    // event types for 'begin'
+    static final int GAMMANORM = 0, MEASURE = 1, TOPOLOGY = 2, PAIR = 3, CHUNK = 4;
+
+    /** The hooks in use: flight recorder events, or no-ops */
+    static final Trace T = create();
+
+    /** Start an event of 'type', returns the handle for committing it */
+    abstract Object begin( int type );
+
+    /** Commit a GammaNorm construction */
+    abstract void gammaNorm( Object ev, int width, int height, int channels, float thrFac );
+
+    /** Commit a ROI measurement */
+    abstract void measureRoi( Object ev, int pixels, int channels, String estimator,
+	double sampleFactor, int nStat, int bsCount, int bsUsed );
+
+    /** Commit a topology computation (all pairs) */
+    abstract void topology( Object ev, int width, int height, int channels, 
+	int binSize, int nStat, String estimator );
+
+    /** Commit the topology of one pair */
+    abstract void topologyPair( Object ev, int width, int height, 
+	int binSize, int nStat, String estimator );
+
+    /** Commit a chunk of a parallel loop */
+    abstract void chunk( Object ev, int start, int end, int stride );
+
+    /** The flight recorder events if jdk.jfr and JfrEvents are available */
+    private static Trace create() {
+	try {
+	    Class.forName("jdk.jfr.Event");
+	    return (Trace)Class.forName("de.bio_photonics.gica.JfrEvents").newInstance();
+	} catch ( Throwable e ) {
+	    // no jdk.jfr, or JfrEvents not compiled: tracing off
+	    return new Off();
+	}
+    }
+
+    /** Tracing switched off */
+    static final class Off extends Trace {
+	Object begin( int type ) { return null; }
+	void gammaNorm( Object ev, int width, int height, int channels, float thrFac ) {}
+	void measureRoi( Object ev, int pixels, int channels, String estimator,
+	    double sampleFactor, int nStat, int bsCount, int bsUsed ) {}
+	void topology( Object ev, int width, int height, int channels, 
+	    int binSize, int nStat, String estimator ) {}
+	void topologyPair( Object ev, int width, int height, 
+	    int binSize, int nStat, String estimator ) {}
+	void chunk( Object ev, int start, int end, int stride ) {}
+    }
+
+}
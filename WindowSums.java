@@ -0,0 +1,165 @@
+/*
+This file is part of Gamma-norm Image Colocalization Analysis (GICA).
+
+GICA is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+GICA is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GICA.  If not, see <http://www.gnu.org/licenses/>
+*/
+package de.bio_photonics.gica;
+
+import java.util.List;
+
+/** Running sums of per-pixel moments over a window of planes 
+ *  (z-slices of a volume, or frames of a time-lapse), for the 
+ *  analytic topology. Planes are added and removed as the window 
+ *  slides, so each step costs one plane's work, not the window's.
+ *  Virtual channels are 0..N-1 (channels), N (sum), N+1 (col). */
+class WindowSums {
+
+    final int width, height, nV, cCount;
+    final List<int []> pairs;
+
+    // window sums: per virtual channel (sum, sum of squares), per 
+    // pair (cross). Binary channels share sum and sum of squares.
+    private final int [][] winS, winQ, winC;
+    
+    // the same, box-filtered in x and y
+    private final int [][] boxS, boxQ;
+    private final int [] boxC, tmp;
+
+    /** Create (empty) window sums for images with 'nc' channels */
+    WindowSums( int w, int h, int nc, List<int []> p ) {
+	width = w; height = h; cCount = nc; pairs = p;
+	nV = cCount+2;
+	final int wh = width*height;
+
+	winS = new int[ nV ][ wh ];
+	winQ = new int[ nV ][];
+	boxS = new int[ nV ][ wh ];
+	boxQ = new int[ nV ][];
+	for (int v=0; v<nV; v++) {
+	    winQ[v] = ( v == cCount )?( new int[wh] ):( winS[v] );
+	    boxQ[v] = ( v == cCount )?( new int[wh] ):( boxS[v] );
+	}
+	winC = new int[ pairs.size() ][ wh ];
+	boxC = new int[ wh ];
+	tmp  = new int[ wh ];
+	Metrics.count( Metrics.BYTES, bytes( w, h, nc, pairs.size() ));
+    }
+
+    /** Memory needed for window sums of this size */
+    static long bytes( int w, int h, int nc, int nPairs ) {
+	return 4L*w*h*( 2*(nc+2) + 2 + nPairs + 2 );
+    }
+
+    /** Add (sign=1) or subtract (sign=-1) a plane, given per virtual channel */
+    void add( final byte [][] pl, final int sign ) {
+	
+	final int wh = width*height;
+	new SimpleMT.PFor( 0, height ) {
+	    public void at( int y ) {
+		final int s0 = y*width, s1 = s0+width;
+		for (int v=0; v<nV; v++) {
+		    final byte [] s = pl[v];
+		    final int [] ws = winS[v];
+		    for (int i=s0; i<s1; i++) 
+			ws[i] += sign*s[i];
+		    if ( winQ[v] != ws ) {
+			final int [] wq = winQ[v];
+			for (int i=s0; i<s1; i++) 
+			    wq[i] += sign*s[i]*s[i];
+		    }
+		}
+		for (int p=0; p<pairs.size(); p++) {
+		    final byte [] si = pl[ pairs.get(p)[0] ];
+		    final byte [] sj = pl[ pairs.get(p)[1] ];
+		    final int [] wc = winC[p];
+		    for (int i=s0; i<s1; i++) 
+			wc[i] += sign*si[i]*sj[i];
+		}
+	    }
+	};
+	Metrics.count( Metrics.PIXELS, (long)wh*nV );
+    }
+
+    /** For each window of 'bin' x 'bin' pixel (and the planes in the 
+     *  window, 'nPlanes'), add the squared correlation and squared
+     *  absolute covariance of all pairs to 'out' and 'outAbs', at the
+     *  window's center. */
+    void accumulate( final int bin, final int nPlanes, final int nSection,
+	final float [] out, final float [] outAbs ) {
+	
+	final double area = (double)bin*bin*nPlanes;
+	final double absFac = (double)nSection*(nSection-1);
+	
+	// box-filter the per-channel sums
+	for (int v=0; v<nV; v++) {
+	    boxFilter( winS[v], boxS[v], tmp, bin );
+	    if ( boxQ[v] != boxS[v] )
+		boxFilter( winQ[v], boxQ[v], tmp, bin );
+	}
+
+	// per pair: correlation and covariance
+	for (int p=0; p<pairs.size(); p++) {
+	    final int vi = pairs.get(p)[0], vj = pairs.get(p)[1];
+	    boxFilter( winC[p], boxC, tmp, bin );
+	    
+	    new SimpleMT.PFor( 0, height-bin ) {
+		public void at( int y ) {
+		    for (int x=0; x<width-bin; x++) {
+			final int i = y*width+x;
+			final double mI = boxS[vi][i]/area, mJ = boxS[vj][i]/area;
+			final double cov  = boxC[i]/area - mI*mJ;
+			final double varI = boxQ[vi][i]/area - mI*mI;
+			final double varJ = boxQ[vj][i]/area - mJ*mJ;
+			double rho = 0;
+			if ((varI>1e-9)&&(varJ>1e-9))
+			    rho = cov / Math.sqrt( varI*varJ );
+			final int o = (y+bin/2)*width + x+bin/2;
+			out[o]    += rho*rho;
+			outAbs[o] += Math.pow( cov*absFac, 2 );
+		    }
+		}
+	    };
+	}
+    }
+
+    /** Box filter of size 'bin' x 'bin', result at the window's
+     *  upper left corner (valid for x,y < width-bin, height-bin) */
+    void boxFilter( final int [] in, final int [] out, final int [] tmp, final int bin ) {
+	
+	// along x
+	new SimpleMT.PFor( 0, height ) {
+	    public void at( int y ) {
+		final int off = y*width;
+		int s=0;
+		for (int x=0; x<bin && x<width; x++) s+=in[off+x];
+		for (int x=0; x<width-bin; x++) {
+		    tmp[off+x] = s;
+		    s += in[off+x+bin] - in[off+x];
+		}
+	    }
+	};
+	// along y
+	new SimpleMT.PFor( 0, Math.max( width-bin, 0 ) ) {
+	    public void at( int x ) {
+		int s=0;
+		for (int y=0; y<bin && y<height; y++) s+=tmp[y*width+x];
+		for (int y=0; y<height-bin; y++) {
+		    out[y*width+x] = s;
+		    s += tmp[(y+bin)*width+x] - tmp[y*width+x];
+		}
+	    }
+	};
+    }
+
+}